@@ -0,0 +1,131 @@
+package com.icechn.videorecorder.filter.hardvideofilter;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.GLES20;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.icechn.videorecorder.core.GLHelper;
+import com.icechn.videorecorder.model.OffScreenGLWrapper;
+import com.icechn.videorecorder.tools.GLESTools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 在设备上比较{@link LowResSkinBlurHardVideoFilter}和{@link SkinBlurHardVideoFilter}的GPU耗时，
+ * 全部为肤色和全部为非肤色两种输入分别统计。默认不运行，需要时去掉@Ignore手动执行，
+ * 结果输出到logcat的SkinBlurBenchmark
+ */
+@Ignore("benchmark, run manually")
+@RunWith(AndroidJUnit4.class)
+public class SkinBlurBenchmark {
+    private static final String TAG = "SkinBlurBenchmark";
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int STEP_SCALE = 3;
+    // 第一轮统计包含shader编译后的首次绘制，只取第二轮
+    private static final int FRAME_COUNT = 200;
+
+    private OffScreenGLWrapper glWrapper;
+    private int inputTexture;
+    private int frameBuffer;
+    private int frameBufferTexture;
+    private FloatBuffer shapeBuffer;
+    private FloatBuffer textureBuffer;
+
+    @Before
+    public void setUp() {
+        glWrapper = new OffScreenGLWrapper();
+        GLHelper.initOffScreenGL(glWrapper);
+        GLHelper.makeCurrent(glWrapper);
+        int[] fb = new int[1];
+        int[] fbTexture = new int[1];
+        GLESTools.createFrameBuff(fb, fbTexture, WIDTH, HEIGHT);
+        frameBuffer = fb[0];
+        frameBufferTexture = fbTexture[0];
+        int[] texture = new int[1];
+        GLES20.glGenTextures(1, texture, 0);
+        inputTexture = texture[0];
+        shapeBuffer = GLHelper.getShapeVerticesBuffer();
+        textureBuffer = GLHelper.getMediaCodecTextureVerticesBuffer();
+    }
+
+    @After
+    public void tearDown() {
+        GLES20.glDeleteTextures(2, new int[]{inputTexture, frameBufferTexture}, 0);
+        GLES20.glDeleteFramebuffers(1, new int[]{frameBuffer}, 0);
+        EGL14.eglMakeCurrent(glWrapper.eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        EGL14.eglDestroySurface(glWrapper.eglDisplay, glWrapper.eglSurface);
+        EGL14.eglDestroyContext(glWrapper.eglDisplay, glWrapper.eglContext);
+        GLHelper.terminateDisplay(glWrapper.eglDisplay);
+    }
+
+    /**
+     * 以rgb为中心加少量噪声填充输入纹理
+     */
+    private void fillInput(int r, int g, int b) {
+        ByteBuffer pixels = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4);
+        Random random = new Random(42);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            int noise = random.nextInt(17) - 8;
+            pixels.put((byte) (r + noise)).put((byte) (g + noise)).put((byte) (b + noise)).put((byte) 0xFF);
+        }
+        pixels.flip();
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, inputTexture);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, WIDTH, HEIGHT, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    /**
+     * @return 每帧平均耗时，ms
+     */
+    private float measure(OriginalHardVideoFilter filter) {
+        filter.onInit(WIDTH, HEIGHT);
+        filter.setProfileEnabled(true);
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            filter.onDraw(inputTexture, frameBuffer, shapeBuffer, textureBuffer);
+        }
+        float timeMs = filter.getAverageDrawTimeMs();
+        filter.onDestroy();
+        return timeMs;
+    }
+
+    private void compare(String name) {
+        Context context = InstrumentationRegistry.getTargetContext();
+        float fullResMs = measure(new SkinBlurHardVideoFilter(context, STEP_SCALE));
+        float lowResMs = measure(new LowResSkinBlurHardVideoFilter(context, STEP_SCALE));
+        String result = name + " " + WIDTH + "x" + HEIGHT + ": full res " + fullResMs + "ms, low res " + lowResMs
+                + "ms, ratio " + (lowResMs / fullResMs);
+        Log.i(TAG, result);
+        assertTrue(result, fullResMs > 0 && lowResMs > 0);
+    }
+
+    @Test
+    public void skinPixels() {
+        fillInput(224, 172, 140);
+        compare("skin");
+    }
+
+    @Test
+    public void nonSkinPixels() {
+        fillInput(40, 80, 200);
+        compare("non-skin");
+    }
+}
@@ -1,15 +1,13 @@
-#ifdef GAUSSIAN_BLUR_RADIUS
-#define RADIUS GAUSSIAN_BLUR_RADIUS
-#else
-#define RADIUS 10.
+#ifndef GAUSSIAN_SUM
+#define GAUSSIAN_SUM sum += texture2D(uCamTexture, vCamTextureCoord).rgb;
 #endif
 
 precision highp float;
 varying vec2 vCamTextureCoord;
 uniform sampler2D uCamTexture;
+uniform sampler2D uOriginTexture;
 uniform vec2 step;
 uniform vec4 ignoreRect;
-const int blurRadius = 10;
 
 void main(){
 	lowp vec2 point = vec2(vCamTextureCoord.x,vCamTextureCoord.y);
@@ -17,25 +15,12 @@ void main(){
 		&& point.x>ignoreRect.r && point.x<ignoreRect.b
 		&& point.y>ignoreRect.g && point.y<ignoreRect.a)
 	{
-		gl_FragColor = texture2D(uCamTexture, vCamTextureCoord);
+		gl_FragColor = texture2D(uOriginTexture, vCamTextureCoord);
 		return ;
 	}
 
-	vec2 currPos = vCamTextureCoord - (step*RADIUS);
-    vec2 endPos = vCamTextureCoord + (step*RADIUS);
-	vec3 sum=vec3(0.,0.,0.);
-    float fact=0.;
-    for(float r=-RADIUS;r<=RADIUS;r+=1.)
-    {
-	    if(any(lessThanEqual(currPos,vec2(0.,0.)))||any(greaterThanEqual(currPos,vec2(1.,1.))))
-        {
-			currPos+=step;
-            continue;
-        }
-        float gauss = exp(r*r / (-4.*RADIUS));
-        sum += pow(texture2D(uCamTexture,currPos).rgb,vec3(2.,2.,2.))*gauss;
-        fact += gauss;
-        currPos+=step;
-    }
-    gl_FragColor = vec4(sqrt(sum/fact),1.);
-}
\ No newline at end of file
+	// 线性采样合并后的偏移和权重作为常量展开，不占用uniform
+	vec3 sum = vec3(0.);
+	GAUSSIAN_SUM
+	gl_FragColor = vec4(sum,1.);
+}
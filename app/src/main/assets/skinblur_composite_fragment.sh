@@ -0,0 +1,17 @@
+precision highp float;
+uniform sampler2D uCamTexture;
+uniform sampler2D uSmoothTexture;
+varying highp vec2 vCamTextureCoord;
+const float maxdelta = 0.08;
+const highp mat3 rgb2yuv = mat3(0.299,-0.147,0.615,0.587,-0.289,-0.515,0.114,0.436,-0.1);
+void main(){
+    vec4 color = texture2D(uCamTexture,vCamTextureCoord);
+    vec3 yuv = rgb2yuv*color.rgb;
+    if(yuv.g<-0.225 || yuv.g>0.0 || yuv.b<0.022 || yuv.b>0.206){
+        gl_FragColor = color;
+        return;
+    }
+    vec3 smoothColor = texture2D(uSmoothTexture,vCamTextureCoord).rgb;
+    // 低分辨率结果在边缘处会混入相邻像素的颜色，和原图一样按通道限制最大偏差
+    gl_FragColor = vec4(clamp(smoothColor, color.rgb - maxdelta, color.rgb + maxdelta),1.0);
+}
@@ -5,6 +5,7 @@ import android.media.AudioRecord;
 import android.media.MediaRecorder;
 import android.util.Log;
 
+import com.icechn.videorecorder.core.EncoderStatsCollector;
 import com.icechn.videorecorder.core.audio.AudioCore;
 import com.icechn.videorecorder.encoder.MediaMuxerWrapper;
 import com.icechn.videorecorder.filter.softaudiofilter.BaseSoftAudioFilter;
@@ -45,9 +46,18 @@ public class AudioClient {
         }
     }
 
-    public boolean startRecording(MediaMuxerWrapper muxer) {
+    public void setEncoderStatsCollector(EncoderStatsCollector collector) {
         synchronized (syncOp) {
-            softAudioCore.startRecording(muxer);
+            softAudioCore.setEncoderStatsCollector(collector);
+        }
+    }
+
+    /**
+     * @param proxyMuxer 代理视频的输出，同样写入音频，可以为null
+     */
+    public boolean startRecording(MediaMuxerWrapper muxer, MediaMuxerWrapper proxyMuxer) {
+        synchronized (syncOp) {
+            softAudioCore.startRecording(muxer, proxyMuxer);
             audioRecord.startRecording();
             audioRecordThread = new AudioRecordThread();
             audioRecordThread.start();
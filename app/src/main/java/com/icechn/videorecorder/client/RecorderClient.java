@@ -5,6 +5,11 @@ import android.content.Context;
 import android.graphics.SurfaceTexture;
 import android.util.Log;
 
+import com.icechn.videorecorder.core.EncoderStatsCollector;
+import com.icechn.videorecorder.core.listener.IEncoderStatsListener;
+import com.icechn.videorecorder.core.listener.IFrameTapListener;
+import com.icechn.videorecorder.core.listener.ISegmentListener;
+import com.icechn.videorecorder.core.listener.ISnapshotListener;
 import com.icechn.videorecorder.core.listener.IVideoChange;
 import com.icechn.videorecorder.encoder.MediaMuxerWrapper;
 import com.icechn.videorecorder.filter.hardvideofilter.BaseHardVideoFilter;
@@ -13,6 +18,7 @@ import com.icechn.videorecorder.model.MediaMakerConfig;
 import com.icechn.videorecorder.model.RecordConfig;
 import com.icechn.videorecorder.model.Size;
 
+import java.io.File;
 import java.io.IOException;
 
 public class RecorderClient {
@@ -24,6 +30,12 @@ public class RecorderClient {
     private VideoClient mVideoClient;
     private AudioClient mAudioClient;
     private MediaMakerConfig mMediaMakerConfig;
+    private ISegmentListener mSegmentListener;
+    private ISegmentListener mProxySegmentListener;
+    private IEncoderStatsListener mEncoderStatsListener;
+    private String mEncoderStatsLogPath;
+    private EncoderStatsCollector mEncoderStatsCollector;
+    private boolean mIsRecording = false;
 
     public RecorderClient() {
         mSyncObj = new Object();
@@ -48,6 +60,7 @@ public class RecorderClient {
             mMediaMakerConfig.isSquare = config.isSquare();
             mMediaMakerConfig.saveVideoEnable = config.isSaveVideoEnable();
             mMediaMakerConfig.saveVideoPath = config.getSaveVideoPath();
+            mMediaMakerConfig.proxyVideoPath = config.getProxyVideoPath();
 
             mVideoClient = new VideoClient(context, mMediaMakerConfig);
             mAudioClient = new AudioClient(mMediaMakerConfig);
@@ -86,8 +99,10 @@ public class RecorderClient {
     public void startRecording() {
         synchronized (mSyncObj) {
             prepareMuxer();
-            mVideoClient.startRecording(mMuxer);
-            mAudioClient.startRecording(mMuxer);
+            prepareEncoderStats();
+            mVideoClient.startRecording(mMuxer, mProxyMuxer);
+            mAudioClient.startRecording(mMuxer, mProxyMuxer);
+            mIsRecording = true;
             Log.d("", "RecorderClient,startRecording()");
         }
     }
@@ -99,10 +114,115 @@ public class RecorderClient {
         synchronized (mSyncObj) {
             mVideoClient.stopRecording();
             mAudioClient.stopRecording();
+            if (mEncoderStatsCollector != null) {
+                // 视频编码是在GL线程中异步停止的，这里只释放自己的引用，
+                // 两个编码输出线程都结束后日志才会关闭
+                mEncoderStatsCollector.release();
+                mEncoderStatsCollector = null;
+            }
+            mIsRecording = false;
             Log.d("", "RecorderClient,stopRecording()");
         }
     }
 
+    /**
+     * segment mode.<br/>
+     * the first call starts recording into path, later calls keep the encoders running and
+     * switch to path at the next keyframe, so no frames are lost between segments.<br/>
+     * finished segments are reported by {@link #setSegmentListener}, call {@link #stopRecording} at the end.<br/>
+     *
+     * when a proxy video is set, its segment is written next to path with a "_proxy" suffix,
+     * see {@link #startSegment(String, String)}, finished proxy segments are reported by
+     * {@link #setProxySegmentListener} with their own paths.<br/>
+     *
+     * @param path file of the new segment
+     */
+    public void startSegment(String path) {
+        String proxyPath = null;
+        if (mMediaMakerConfig.proxyVideoScale > 0 && mMediaMakerConfig.proxyVideoPath != null) {
+            proxyPath = getProxySegmentPath(path);
+        }
+        startSegment(path, proxyPath);
+    }
+
+    /**
+     * segment mode with the proxy video.<br/>
+     * the proxy switches and pauses together with the segment, at its own next keyframe.<br/>
+     * the proxy is only available when the first segment has one.<br/>
+     *
+     * @param path      file of the new segment
+     * @param proxyPath file of the proxy segment, null to drop the proxy of this segment
+     */
+    public void startSegment(String path, String proxyPath) {
+        synchronized (mSyncObj) {
+            if (!mIsRecording) {
+                updateVideoSavePath(path);
+                updateProxyVideoSavePath(proxyPath);
+                startRecording();
+                return;
+            }
+            if (mMuxer != null) {
+                mMuxer.switchSegment(path);
+                if (mProxyMuxer != null) {
+                    if (proxyPath != null) {
+                        mProxyMuxer.switchSegment(proxyPath);
+                    } else {
+                        mProxyMuxer.pauseSegment();
+                    }
+                }
+                mVideoClient.requestKeyFrame();
+            }
+        }
+    }
+
+    private static String getProxySegmentPath(String path) {
+        int nameStart = path.lastIndexOf(File.separatorChar) + 1;
+        int extStart = path.lastIndexOf('.');
+        if (extStart <= nameStart) {
+            return path + "_proxy";
+        }
+        return path.substring(0, extStart) + "_proxy" + path.substring(extStart);
+    }
+
+    /**
+     * segment mode.<br/>
+     * finish the current segment immediately, encoded data is dropped until next {@link #startSegment}.<br/>
+     */
+    public void pauseSegment() {
+        synchronized (mSyncObj) {
+            if (mIsRecording && mMuxer != null) {
+                mMuxer.pauseSegment();
+                if (mProxyMuxer != null) {
+                    mProxyMuxer.pauseSegment();
+                }
+            }
+        }
+    }
+
+    /**
+     * called on main thread when a segment file is finished, including the last one on {@link #stopRecording}
+     *
+     * @param listener
+     */
+    public void setSegmentListener(ISegmentListener listener) {
+        synchronized (mSyncObj) {
+            mSegmentListener = listener;
+        }
+    }
+
+    /**
+     * called on main thread when a proxy video file is finished, with the proxy path.<br/>
+     * in segment mode every proxy segment is reported as soon as it is complete,
+     * success is false when the proxy of the recording could not be created.<br/>
+     *
+     * @param listener
+     */
+    public void setProxySegmentListener(ISegmentListener listener) {
+        synchronized (mSyncObj) {
+            mProxySegmentListener = listener;
+        }
+    }
+
     /**
      * call it AFTER {@link #prepare}
      *
@@ -133,6 +253,17 @@ public class RecorderClient {
         return mMediaMakerConfig.saveVideoEnable ? mMediaMakerConfig.saveVideoPath : null;
     }
 
+    /**
+     * file of the low resolution proxy, see {@link RecordConfig#setProxyVideo(float, int)}.<br/>
+     * takes effect from the next {@link #startRecording}, in segment mode every segment has its own proxy,
+     * see {@link #startSegment(String, String)}.<br/>
+     *
+     * @param path null to disable the proxy
+     */
+    public void updateProxyVideoSavePath(String path) {
+        mMediaMakerConfig.proxyVideoPath = path;
+    }
+
     /**
      * change camera on running.<br/>
      */
@@ -185,6 +316,98 @@ public class RecorderClient {
         mVideoClient.setVideoChangeListener(videoChangeListener);
     }
 
+    /**
+     * listener for downscaled filtered frames, e.g. face detect.<br/>
+     * frames are read back asynchronously and delivered on a worker thread.<br/>
+     *
+     * @param listener null to disable
+     * @param width    readback width
+     * @param height   readback height
+     * @param fps      max callback rate
+     */
+    public void setFrameTapListener(IFrameTapListener listener, int width, int height, int fps) {
+        mVideoClient.setFrameTapListener(listener, width, height, fps);
+    }
+
+    /**
+     * ask the encoder for a keyframe(IDR) as soon as possible.<br/>
+     * only works while recording. periodic keyframes can be set by {@link RecordConfig#setKeyFrameAlignInterval(int)}.<br/>
+     */
+    public void requestKeyFrame() {
+        mVideoClient.requestKeyFrame();
+    }
+
+    /**
+     * number of encoded video frames taken from the encoder in the last drain, more than 1 means output backed up.<br/>
+     * 0 if not recording.<br/>
+     */
+    public int getEncoderOutputQueueDepth() {
+        return mVideoClient.getEncoderOutputQueueDepth();
+    }
+
+    /**
+     * time from feeding the latest video frame to the encoder to getting its output.<br/>
+     * 0 if not recording.<br/>
+     */
+    public int getEncodeLatencyMs() {
+        return mVideoClient.getEncodeLatencyMs();
+    }
+
+    /**
+     * per-frame statistics of the encoded video and audio streams: size, frame type, encode latency,
+     * keyframe interval and rolling 1s bitrate.<br/>
+     * called on the encoder output threads, takes effect from the next {@link #startRecording}.<br/>
+     *
+     * @param listener null to disable
+     */
+    public void setEncoderStatsListener(IEncoderStatsListener listener) {
+        synchronized (mSyncObj) {
+            mEncoderStatsListener = listener;
+        }
+    }
+
+    /**
+     * write the same statistics as {@link #setEncoderStatsListener} to a compact binary file,
+     * format described in {@link EncoderStatsCollector}.<br/>
+     * the file is overwritten by every {@link #startRecording}.<br/>
+     *
+     * @param path null to disable
+     */
+    public void setEncoderStatsLogPath(String path) {
+        synchronized (mSyncObj) {
+            mEncoderStatsLogPath = path;
+        }
+    }
+
+    private void prepareEncoderStats() {
+        if (mEncoderStatsListener != null || mEncoderStatsLogPath != null) {
+            mEncoderStatsCollector = new EncoderStatsCollector(mEncoderStatsListener, mEncoderStatsLogPath);
+        } else {
+            mEncoderStatsCollector = null;
+        }
+        mVideoClient.setEncoderStatsCollector(mEncoderStatsCollector);
+        mAudioClient.setEncoderStatsCollector(mEncoderStatsCollector);
+    }
+
+    /**
+     * save the next filtered frame as jpeg, without blocking the caller or dropping recorded frames.<br/>
+     * only works while previewing or recording.<br/>
+     *
+     * @param path     jpeg file path
+     * @param listener result callback on main thread, can be null
+     * @return false if neither previewing nor recording
+     */
+    public boolean takeSnapshot(String path, ISnapshotListener listener) {
+        return takeSnapshot(path, 90, listener);
+    }
+
+    /**
+     * @param quality jpeg quality, 0-100
+     */
+    public boolean takeSnapshot(String path, int quality, ISnapshotListener listener) {
+        return mVideoClient.takeSnapshot(path, quality, listener);
+    }
+
     /**
      * toggle flash light
      *
@@ -248,16 +471,34 @@ public class RecorderClient {
     }
 
     private MediaMuxerWrapper mMuxer = null;
+    private MediaMuxerWrapper mProxyMuxer = null;
 
     private void prepareMuxer() {
+        mMuxer = null;
+        mProxyMuxer = null;
         if (!mMediaMakerConfig.saveVideoEnable) {
             return;
         }
         try {
             mMuxer = new MediaMuxerWrapper(mMediaMakerConfig.saveVideoPath);
             mMuxer.setTrackCount(2);
+            mMuxer.setSegmentListener(mSegmentListener);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (mMuxer != null && mMediaMakerConfig.proxyVideoScale > 0 && mMediaMakerConfig.proxyVideoPath != null) {
+            try {
+                mProxyMuxer = new MediaMuxerWrapper(mMediaMakerConfig.proxyVideoPath);
+                mProxyMuxer.setTrackCount(2);
+                mProxyMuxer.setSegmentListener(mProxySegmentListener);
+            } catch (IOException e) {
+                // 只影响代理视频
+                Log.e(TAG, "create proxy muxer failed", e);
+                if (mProxySegmentListener != null) {
+                    CallbackDelivery.getInstance().post(new ISegmentListener.SegmentRunable(mProxySegmentListener,
+                            mMediaMakerConfig.proxyVideoPath, false));
+                }
+            }
+        }
     }
 }
@@ -7,6 +7,10 @@ import android.hardware.Camera.CameraInfo;
 import android.util.Log;
 
 import com.icechn.videorecorder.core.CameraHelper;
+import com.icechn.videorecorder.core.EncoderCapabilities;
+import com.icechn.videorecorder.core.EncoderStatsCollector;
+import com.icechn.videorecorder.core.listener.IFrameTapListener;
+import com.icechn.videorecorder.core.listener.ISnapshotListener;
 import com.icechn.videorecorder.core.listener.IVideoChange;
 import com.icechn.videorecorder.core.video.IVideoCore;
 import com.icechn.videorecorder.core.video.VideoCore;
@@ -27,6 +31,7 @@ public class VideoClient {
     private static final String TAG = "VideoClient";
 
     private final Object mPrepareSyncObj = new Object();
+    private final Context mContext;
     private final MediaMakerConfig mMediaMakerConfig;
     private IVideoCore mVideoCore;
     private boolean isRecording;
@@ -40,6 +45,7 @@ public class VideoClient {
     private boolean mIsFrontCamera;
 
     public VideoClient(Context context, MediaMakerConfig parameters) {
+        mContext = context;
         mMediaMakerConfig = parameters;
         mCameraNum = Camera.getNumberOfCameras();
         mCurrentCameraIndex = Camera.CameraInfo.CAMERA_FACING_BACK;
@@ -65,6 +71,15 @@ public class VideoClient {
             CameraHelper.selectCameraFpsRange(parameters, mMediaMakerConfig);
             mMediaMakerConfig.videoFPS = Math.min(config.getVideoFPS(), mMediaMakerConfig.previewMaxFps / 1000);
             resolveResolution(mMediaMakerConfig, config.getTargetVideoSize());
+            // 与MediaCodecHelper.createHardVideoMediaCodec中编码器的宽高一致
+            EncoderCapabilities capabilities = EncoderCapabilities.select(mContext, config.getVideoCodec(),
+                    mMediaMakerConfig.previewVideoHeight, mMediaMakerConfig.previewVideoWidth, mMediaMakerConfig.videoFPS);
+            if (capabilities != null) {
+                capabilities.applyTo(mMediaMakerConfig, mMediaMakerConfig.previewVideoHeight,
+                        mMediaMakerConfig.previewVideoWidth, mMediaMakerConfig.videoFPS);
+            } else {
+                mMediaMakerConfig.videoCodec = MediaMakerConfig.VIDEO_CODEC_AVC;
+            }
             if (!CameraHelper.selectCameraColorFormat(parameters, mMediaMakerConfig)) {
                 Log.e(TAG, "CameraHelper.selectCameraColorFormat,Failed");
                 mMediaMakerConfig.dump();
@@ -75,7 +90,7 @@ public class VideoClient {
                 mMediaMakerConfig.dump();
                 return false;
             }
-            mVideoCore = new VideoCore(mMediaMakerConfig);
+            mVideoCore = new VideoCore(mContext, mMediaMakerConfig);
             if (!mVideoCore.prepare(config)) {
                 return false;
             }
@@ -157,7 +172,10 @@ public class VideoClient {
         }
     }
 
-    public boolean startRecording(MediaMuxerWrapper muxer) {
+    /**
+     * @param proxyMuxer null表示不编码代理视频
+     */
+    public boolean startRecording(MediaMuxerWrapper muxer, MediaMuxerWrapper proxyMuxer) {
         synchronized (mPrepareSyncObj) {
             if (!isWorking() && !isPreviewing) {
                 if (!startVideo()) {
@@ -167,7 +185,7 @@ public class VideoClient {
                 }
                 mVideoCore.updateCamTexture(mCameraTexture);
             }
-            mVideoCore.startRecording(muxer);
+            mVideoCore.startRecording(muxer, proxyMuxer);
             if (mMediaMakerConfig.saveVideoEnable) {
                 isRecording = true;
             }
@@ -310,6 +328,53 @@ public class VideoClient {
         }
     }
 
+    public void setFrameTapListener(IFrameTapListener listener, int width, int height, int fps) {
+        synchronized (mPrepareSyncObj) {
+            if (mVideoCore != null) {
+                mMediaMakerConfig.isFaceDetectEnable = listener != null;
+                mVideoCore.setFrameTapListener(listener, width, height, fps);
+            }
+        }
+    }
+
+    public void requestKeyFrame() {
+        synchronized (mPrepareSyncObj) {
+            if (mVideoCore != null && isWorking()) {
+                mVideoCore.requestKeyFrame();
+            }
+        }
+    }
+
+    public void setEncoderStatsCollector(EncoderStatsCollector collector) {
+        synchronized (mPrepareSyncObj) {
+            if (mVideoCore != null) {
+                mVideoCore.setEncoderStatsCollector(collector);
+            }
+        }
+    }
+
+    public int getEncoderOutputQueueDepth() {
+        synchronized (mPrepareSyncObj) {
+            return mVideoCore != null ? mVideoCore.getEncoderOutputQueueDepth() : 0;
+        }
+    }
+
+    public int getEncodeLatencyMs() {
+        synchronized (mPrepareSyncObj) {
+            return mVideoCore != null ? mVideoCore.getEncodeLatencyMs() : 0;
+        }
+    }
+
+    public boolean takeSnapshot(String path, int quality, ISnapshotListener listener) {
+        synchronized (mPrepareSyncObj) {
+            if (mVideoCore == null || (!isPreviewing && !isWorking())) {
+                return false;
+            }
+            mVideoCore.takeSnapshot(path, quality, listener);
+            return true;
+        }
+    }
+
     private void resolveResolution(MediaMakerConfig config, Size targetVideoSize) {
         float pw, ph, vw, vh;
         if (config.isPortrait) {
@@ -0,0 +1,416 @@
+package com.icechn.videorecorder.core;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import com.icechn.videorecorder.model.MediaMakerConfig;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * 视频编码器能力探测。
+ * 每种mime只枚举一次编码器，选出的编码器名、profile/level、码率模式和颜色格式保存在SharedPreferences中，
+ * 以Build.FINGERPRINT作为版本，系统升级后重新探测，之后的录制不需要再枚举。
+ */
+public class EncoderCapabilities {
+    private static final String TAG = "EncoderCapabilities";
+    private static final String PREFS_NAME = "encoder_capabilities";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+
+    private static final HashMap<String, EncoderCapabilities> sCache = new HashMap<>();
+
+    /**
+     * AVC各level允许的最大宏块速率和帧大小（宏块），H.264 Table A-1
+     */
+    private static final long[][] AVC_LEVEL_LIMITS = {
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel1, 1485, 99},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel11, 3000, 396},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel12, 6000, 396},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel13, 11880, 396},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel2, 11880, 396},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel21, 19800, 792},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel22, 20250, 1620},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel3, 40500, 1620},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel31, 108000, 3600},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel32, 216000, 5120},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel4, 245760, 8192},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel41, 245760, 8192},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel42, 522240, 8704},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel5, 589824, 22080},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel51, 983040, 36864},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel52, 2073600, 36864},
+    };
+
+    /**
+     * HEVC Main tier各level允许的最大亮度采样率和帧大小（像素），H.265 Table A.8/A.9
+     */
+    private static final long[][] HEVC_LEVEL_LIMITS = {
+            {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel1, 552960L, 36864},
+            {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel2, 3686400L, 122880},
+            {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel21, 7372800L, 245760},
+            {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel3, 16588800L, 552960},
+            {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel31, 33177600L, 983040},
+            {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel4, 66846720L, 2228224},
+            {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel41, 133693440L, 2228224},
+            {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel5, 267386880L, 8912896},
+            {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel51, 534773760L, 8912896},
+            {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel52, 1069547520L, 8912896},
+            {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel6, 1069547520L, 35651584},
+            {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel61, 2139095040L, 35651584},
+            {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel62, 4278190080L, 35651584},
+    };
+
+    /**
+     * 按优先级排列
+     */
+    private static final int[] AVC_PROFILES = {
+            MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
+            MediaCodecInfo.CodecProfileLevel.AVCProfileMain,
+            MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline,
+    };
+
+    /**
+     * Main10需要10bit输入，这里只用Main
+     */
+    private static final int[] HEVC_PROFILES = {
+            MediaCodecInfo.CodecProfileLevel.HEVCProfileMain,
+    };
+
+    private final String mime;
+    private final String codecName;
+    private final boolean isCbrSupported;
+    private final boolean isVbrSupported;
+    // 每个profile支持的最高level
+    private final int[] profiles;
+    private final int[] maxLevels;
+    private final int[] colorFormats;
+
+    private EncoderCapabilities(String mime, String codecName, boolean isCbrSupported, boolean isVbrSupported,
+                                int[] profiles, int[] maxLevels, int[] colorFormats) {
+        this.mime = mime;
+        this.codecName = codecName;
+        this.isCbrSupported = isCbrSupported;
+        this.isVbrSupported = isVbrSupported;
+        this.profiles = profiles;
+        this.maxLevels = maxLevels;
+        this.colorFormats = colorFormats;
+    }
+
+    /**
+     * @param context 为null时不读写磁盘缓存
+     * @return 设备上没有该mime的编码器时返回null
+     */
+    public static synchronized EncoderCapabilities get(Context context, String mime) {
+        if (sCache.containsKey(mime)) {
+            return sCache.get(mime);
+        }
+        SharedPreferences prefs = null;
+        if (context != null) {
+            prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            if (!Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+                prefs.edit().clear().putString(KEY_FINGERPRINT, Build.FINGERPRINT).apply();
+            }
+        }
+        EncoderCapabilities capabilities = null;
+        boolean isCached = false;
+        if (prefs != null && prefs.contains(mime)) {
+            isCached = true;
+            String value = prefs.getString(mime, "");
+            if (value.length() > 0) {
+                capabilities = parse(mime, value);
+                if (capabilities == null) {
+                    isCached = false;
+                }
+            }
+        }
+        if (!isCached) {
+            capabilities = probe(mime);
+            if (prefs != null) {
+                // 没有编码器也记下来，避免每次都枚举
+                prefs.edit().putString(mime, capabilities == null ? "" : capabilities.serialize()).apply();
+            }
+        }
+        Log.d(TAG, "encoder capabilities of " + mime + (isCached ? " (cached)" : " (probed)") + " : " + capabilities);
+        sCache.put(mime, capabilities);
+        return capabilities;
+    }
+
+    /**
+     * 选择实际使用的视频编码。HEVC在以下情况回退到AVC：系统低于7.0（MediaMuxer不支持HEVC）、
+     * 没有HEVC编码器、或者编码器的Main profile达不到该分辨率和帧率需要的level。
+     *
+     * @return 选中编码的能力，连AVC编码器都探测不到时返回null
+     */
+    public static EncoderCapabilities select(Context context, String mime, int width, int height, int fps) {
+        if (MediaMakerConfig.VIDEO_CODEC_HEVC.equals(mime)) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                EncoderCapabilities hevc = get(context, mime);
+                if (hevc != null && hevc.selectProfile(width, height, fps) != -1) {
+                    return hevc;
+                }
+            }
+            Log.w(TAG, "HEVC is not available for " + width + "x" + height + "@" + fps + ", fallback to AVC");
+        }
+        return get(context, MediaMakerConfig.VIDEO_CODEC_AVC);
+    }
+
+    private static EncoderCapabilities probe(String mime) {
+        MediaCodecInfo selected = null;
+        MediaCodecInfo.CodecCapabilities selectedCaps = null;
+        int count = MediaCodecList.getCodecCount();
+        for (int i = 0; i < count; i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (!info.isEncoder() || !isTypeSupported(info, mime)) {
+                continue;
+            }
+            MediaCodecInfo.CodecCapabilities caps;
+            try {
+                caps = info.getCapabilitiesForType(mime);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "getCapabilitiesForType failed : " + info.getName());
+                continue;
+            }
+            // 列表中硬件编码器通常排在前面，只在没有硬件编码器时使用软件编码器
+            if (selected == null || (isSoftwareCodec(selected.getName()) && !isSoftwareCodec(info.getName()))) {
+                selected = info;
+                selectedCaps = caps;
+            }
+        }
+        if (selected == null) {
+            return null;
+        }
+        ArrayList<Integer> profileList = new ArrayList<>();
+        ArrayList<Integer> levelList = new ArrayList<>();
+        if (selectedCaps.profileLevels != null) {
+            for (MediaCodecInfo.CodecProfileLevel profileLevel : selectedCaps.profileLevels) {
+                int index = profileList.indexOf(profileLevel.profile);
+                if (index < 0) {
+                    profileList.add(profileLevel.profile);
+                    levelList.add(profileLevel.level);
+                } else if (profileLevel.level > levelList.get(index)) {
+                    levelList.set(index, profileLevel.level);
+                }
+            }
+        }
+        boolean cbr = false;
+        boolean vbr = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            MediaCodecInfo.EncoderCapabilities encoderCaps = selectedCaps.getEncoderCapabilities();
+            if (encoderCaps != null) {
+                cbr = encoderCaps.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
+                vbr = encoderCaps.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR);
+            }
+        }
+        int[] colors = selectedCaps.colorFormats == null ? new int[0] : selectedCaps.colorFormats.clone();
+        return new EncoderCapabilities(mime, selected.getName(), cbr, vbr,
+                toArray(profileList), toArray(levelList), colors);
+    }
+
+    private static boolean isTypeSupported(MediaCodecInfo info, String mime) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mime)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSoftwareCodec(String name) {
+        return name.startsWith("OMX.google.") || name.startsWith("c2.android.");
+    }
+
+    public String getMime() {
+        return mime;
+    }
+
+    public String getCodecName() {
+        return codecName;
+    }
+
+    /**
+     * 选择能以该分辨率和帧率编码的profile，AVC按High > Main > Baseline，HEVC只用Main
+     *
+     * @return 都不满足或者mime未知时返回-1，由编码器自己决定
+     */
+    public int selectProfile(int width, int height, int fps) {
+        int[] candidates = getProfileCandidates();
+        if (candidates == null) {
+            return -1;
+        }
+        int requiredLevel = getRequiredLevel(width, height, fps);
+        for (int profile : candidates) {
+            int maxLevel = getMaxLevel(profile);
+            if (maxLevel != -1 && maxLevel >= requiredLevel) {
+                return profile;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return 能满足该分辨率和帧率的最低level，不超过profile支持的最高level；无法确定时返回-1
+     */
+    public int selectLevel(int profile, int width, int height, int fps) {
+        int maxLevel = getMaxLevel(profile);
+        if (maxLevel == -1) {
+            return -1;
+        }
+        int requiredLevel = getRequiredLevel(width, height, fps);
+        return requiredLevel == -1 ? maxLevel : Math.min(requiredLevel, maxLevel);
+    }
+
+    /**
+     * CBR优先，码率更平稳；不支持时使用VBR
+     *
+     * @return -1表示系统版本过低或都不支持
+     */
+    public int selectBitrateMode() {
+        if (isCbrSupported) {
+            return MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+        }
+        if (isVbrSupported) {
+            return MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+        }
+        return -1;
+    }
+
+    /**
+     * buffer输入时使用的颜色格式，NV12优先
+     *
+     * @return 都不支持时返回-1
+     */
+    public int selectColorFormat() {
+        if (isColorFormatSupported(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar)) {
+            return MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+        }
+        if (isColorFormatSupported(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar)) {
+            return MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar;
+        }
+        return -1;
+    }
+
+    public boolean isColorFormatSupported(int colorFormat) {
+        for (int color : colorFormats) {
+            if (color == colorFormat) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 把为该分辨率和帧率选出的编码参数写入config
+     */
+    public void applyTo(MediaMakerConfig config, int width, int height, int fps) {
+        config.videoCodec = mime;
+        config.mediaCodecAVCName = codecName;
+        config.mediaCodecAVCProfile = selectProfile(width, height, fps);
+        config.mediaCodecAVCLevel = config.mediaCodecAVCProfile == -1 ? -1
+                : selectLevel(config.mediaCodecAVCProfile, width, height, fps);
+        config.mediaCodecAVCBitrateMode = selectBitrateMode();
+        config.mediaCodecAVCColorFormat = selectColorFormat();
+    }
+
+    private int[] getProfileCandidates() {
+        if (MediaMakerConfig.VIDEO_CODEC_AVC.equals(mime)) {
+            return AVC_PROFILES;
+        }
+        if (MediaMakerConfig.VIDEO_CODEC_HEVC.equals(mime)) {
+            return HEVC_PROFILES;
+        }
+        return null;
+    }
+
+    private int getRequiredLevel(int width, int height, int fps) {
+        long[][] limits;
+        long frameSize;
+        if (MediaMakerConfig.VIDEO_CODEC_AVC.equals(mime)) {
+            limits = AVC_LEVEL_LIMITS;
+            frameSize = (long) ((width + 15) / 16) * ((height + 15) / 16);
+        } else if (MediaMakerConfig.VIDEO_CODEC_HEVC.equals(mime)) {
+            limits = HEVC_LEVEL_LIMITS;
+            frameSize = (long) width * height;
+        } else {
+            return -1;
+        }
+        long rate = frameSize * fps;
+        for (long[] limit : limits) {
+            if (rate <= limit[1] && frameSize <= limit[2]) {
+                return (int) limit[0];
+            }
+        }
+        return (int) limits[limits.length - 1][0];
+    }
+
+    private int getMaxLevel(int profile) {
+        for (int i = 0; i < profiles.length; i++) {
+            if (profiles[i] == profile) {
+                return maxLevels[i];
+            }
+        }
+        return -1;
+    }
+
+    private String serialize() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(codecName).append(';').append(isCbrSupported ? 1 : 0).append(';').append(isVbrSupported ? 1 : 0).append(';');
+        for (int i = 0; i < profiles.length; i++) {
+            sb.append(i == 0 ? "" : ",").append(profiles[i]).append(':').append(maxLevels[i]);
+        }
+        sb.append(';');
+        for (int i = 0; i < colorFormats.length; i++) {
+            sb.append(i == 0 ? "" : ",").append(colorFormats[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return 格式不对时返回null，调用方重新探测
+     */
+    private static EncoderCapabilities parse(String mime, String value) {
+        String[] parts = value.split(";", -1);
+        if (parts.length != 5) {
+            return null;
+        }
+        try {
+            ArrayList<Integer> profileList = new ArrayList<>();
+            ArrayList<Integer> levelList = new ArrayList<>();
+            if (parts[3].length() > 0) {
+                for (String item : parts[3].split(",")) {
+                    String[] profileLevel = item.split(":");
+                    profileList.add(Integer.parseInt(profileLevel[0]));
+                    levelList.add(Integer.parseInt(profileLevel[1]));
+                }
+            }
+            ArrayList<Integer> colorList = new ArrayList<>();
+            if (parts[4].length() > 0) {
+                for (String item : parts[4].split(",")) {
+                    colorList.add(Integer.parseInt(item));
+                }
+            }
+            return new EncoderCapabilities(mime, parts[0], "1".equals(parts[1]), "1".equals(parts[2]),
+                    toArray(profileList), toArray(levelList), toArray(colorList));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "invalid cached capabilities : " + value);
+            return null;
+        }
+    }
+
+    private static int[] toArray(ArrayList<Integer> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return mime + ":" + serialize();
+    }
+}
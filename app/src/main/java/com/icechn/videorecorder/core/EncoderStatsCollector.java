@@ -0,0 +1,277 @@
+package com.icechn.videorecorder.core;
+
+import android.util.Log;
+
+import com.icechn.videorecorder.core.listener.IEncoderStatsListener;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 一次录制的编码输出统计，由VideoSenderThread和AudioSenderThread共用。
+ * 二进制日志为文件头"EST1"加上每帧20字节的大端记录：
+ * track(1) frameType(1) latencyMs(2) size(4) presentationTimeUs(8) bitrate(4)
+ */
+public class EncoderStatsCollector {
+    private static final String TAG = "EncoderStatsCollector";
+    private static final byte[] LOG_MAGIC = {'E', 'S', 'T', '1'};
+    private static final long BITRATE_WINDOW_US = 1000000;
+    // 60fps视频和44.1kHz AAC一秒内的帧数都远小于该值
+    private static final int WINDOW_CAPACITY = 256;
+
+    private final IEncoderStatsListener mListener;
+    private DataOutputStream mLogStream;
+    // 创建者和每个写入统计的编码输出线程各持有一个引用
+    private int mRefCount = 1;
+    private final TrackStats mVideoStats = new TrackStats();
+    private final TrackStats mAudioStats = new TrackStats();
+
+    /**
+     * @param logPath 二进制日志路径，null表示不写日志
+     */
+    public EncoderStatsCollector(IEncoderStatsListener listener, String logPath) {
+        mListener = listener;
+        if (logPath != null) {
+            try {
+                mLogStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logPath)));
+                mLogStream.write(LOG_MAGIC);
+            } catch (IOException e) {
+                Log.e(TAG, "open stats log " + logPath + " failed", e);
+                closeLog();
+            }
+        }
+    }
+
+    /**
+     * @param data      编码输出
+     * @param nalOffset 第一个图像NAL头的绝对位置
+     */
+    public void onVideoFrame(ByteBuffer data, int nalOffset, int end, boolean isHevc, boolean isKeyFrame,
+                             int size, long presentationTimeUs, long latencyUs) {
+        int frameType = getFrameType(data, nalOffset, end, isHevc);
+        onFrame(mVideoStats, IEncoderStatsListener.TRACK_VIDEO, frameType,
+                isKeyFrame || frameType == IEncoderStatsListener.FRAME_TYPE_IDR, size, presentationTimeUs, latencyUs);
+    }
+
+    public void onAudioFrame(int size, long presentationTimeUs, long latencyUs) {
+        onFrame(mAudioStats, IEncoderStatsListener.TRACK_AUDIO, IEncoderStatsListener.FRAME_TYPE_AUDIO,
+                false, size, presentationTimeUs, latencyUs);
+    }
+
+    private void onFrame(TrackStats stats, int track, int frameType, boolean isKeyFrame,
+                         int size, long presentationTimeUs, long latencyUs) {
+        int keyFrameIntervalMs = 0;
+        int bitrate;
+        synchronized (stats) {
+            if (isKeyFrame) {
+                if (stats.lastKeyFrameUs >= 0) {
+                    keyFrameIntervalMs = (int) ((presentationTimeUs - stats.lastKeyFrameUs) / 1000);
+                }
+                stats.lastKeyFrameUs = presentationTimeUs;
+            }
+            bitrate = stats.add(presentationTimeUs, size);
+        }
+        int latencyMs = (int) Math.max(0, latencyUs / 1000);
+        if (mListener != null) {
+            mListener.onEncodedFrame(track, frameType, size, presentationTimeUs, latencyMs, keyFrameIntervalMs, bitrate);
+        }
+        writeLog(track, frameType, latencyMs, size, presentationTimeUs, bitrate);
+    }
+
+    private synchronized void writeLog(int track, int frameType, int latencyMs, int size, long presentationTimeUs, int bitrate) {
+        if (mLogStream == null) {
+            return;
+        }
+        try {
+            mLogStream.writeByte(track);
+            mLogStream.writeByte(frameType);
+            mLogStream.writeShort(Math.min(latencyMs, Short.MAX_VALUE));
+            mLogStream.writeInt(size);
+            mLogStream.writeLong(presentationTimeUs);
+            mLogStream.writeInt(bitrate);
+        } catch (IOException e) {
+            Log.e(TAG, "write stats log failed, stop logging", e);
+            closeLog();
+        }
+    }
+
+    /**
+     * 编码输出线程开始使用之前调用，与{@link #release()}成对
+     */
+    public synchronized void retain() {
+        mRefCount++;
+    }
+
+    /**
+     * 创建者不再使用、或编码输出线程join之后调用，最后一个引用释放时关闭日志
+     */
+    public synchronized void release() {
+        if (mRefCount > 0 && --mRefCount == 0) {
+            closeLog();
+        }
+    }
+
+    private void closeLog() {
+        if (mLogStream != null) {
+            try {
+                mLogStream.close();
+            } catch (IOException ignored) {
+            }
+            mLogStream = null;
+        }
+    }
+
+    /**
+     * AVC解析slice_type；HEVC只解析每帧第一个slice，并假设PPS中num_extra_slice_header_bits为0
+     */
+    static int getFrameType(ByteBuffer data, int nalOffset, int end, boolean isHevc) {
+        if (nalOffset < 0 || nalOffset >= end) {
+            return IEncoderStatsListener.FRAME_TYPE_UNKNOWN;
+        }
+        int header = data.get(nalOffset) & 0xFF;
+        BitReader reader;
+        int sliceType;
+        if (isHevc) {
+            int nalType = (header >> 1) & 0x3F;
+            if (nalType == 19 || nalType == 20) {
+                return IEncoderStatsListener.FRAME_TYPE_IDR;
+            }
+            if (nalType >= 16 && nalType <= 23) {
+                return IEncoderStatsListener.FRAME_TYPE_I;
+            }
+            reader = new BitReader(data, nalOffset + 2, end);
+            if (reader.readBit() != 1) {
+                return IEncoderStatsListener.FRAME_TYPE_UNKNOWN;
+            }
+            reader.readUe(); // slice_pic_parameter_set_id
+            sliceType = reader.readUe();
+            switch (sliceType) {
+                case 0:
+                    return IEncoderStatsListener.FRAME_TYPE_B;
+                case 1:
+                    return IEncoderStatsListener.FRAME_TYPE_P;
+                case 2:
+                    return IEncoderStatsListener.FRAME_TYPE_I;
+                default:
+                    return IEncoderStatsListener.FRAME_TYPE_UNKNOWN;
+            }
+        }
+        int nalType = header & 0x1F;
+        if (nalType == NalUnitScanner.AVC_NAL_IDR) {
+            return IEncoderStatsListener.FRAME_TYPE_IDR;
+        }
+        if (nalType != 1) {
+            return IEncoderStatsListener.FRAME_TYPE_UNKNOWN;
+        }
+        reader = new BitReader(data, nalOffset + 1, end);
+        reader.readUe(); // first_mb_in_slice
+        sliceType = reader.readUe();
+        if (sliceType < 0) {
+            return IEncoderStatsListener.FRAME_TYPE_UNKNOWN;
+        }
+        switch (sliceType % 5) {
+            case 0:
+            case 3:
+                return IEncoderStatsListener.FRAME_TYPE_P;
+            case 1:
+                return IEncoderStatsListener.FRAME_TYPE_B;
+            default:
+                return IEncoderStatsListener.FRAME_TYPE_I;
+        }
+    }
+
+    private static class TrackStats {
+        final long[] times = new long[WINDOW_CAPACITY];
+        final int[] sizes = new int[WINDOW_CAPACITY];
+        int head;
+        int count;
+        long windowBytes;
+        long lastKeyFrameUs = -1;
+
+        /**
+         * @return 最近BITRATE_WINDOW_US内的码率
+         */
+        int add(long timeUs, int size) {
+            while (count > 0 && (count == WINDOW_CAPACITY || times[head] <= timeUs - BITRATE_WINDOW_US)) {
+                windowBytes -= sizes[head];
+                head = (head + 1) % WINDOW_CAPACITY;
+                count--;
+            }
+            int tail = (head + count) % WINDOW_CAPACITY;
+            times[tail] = timeUs;
+            sizes[tail] = size;
+            count++;
+            windowBytes += size;
+            return (int) Math.min(Integer.MAX_VALUE, windowBytes * 8 * 1000000 / BITRATE_WINDOW_US);
+        }
+    }
+
+    /**
+     * 读取slice头，跳过防竞争字节00 00 03
+     */
+    private static class BitReader {
+        private final ByteBuffer mData;
+        private final int mEnd;
+        private int mPos;
+        private int mBit = 8;
+        private int mCurrent;
+        private int mZeros;
+
+        BitReader(ByteBuffer data, int pos, int end) {
+            mData = data;
+            mPos = pos;
+            mEnd = end;
+        }
+
+        /**
+         * @return 数据不够时返回-1
+         */
+        int readBit() {
+            if (mBit == 8) {
+                if (mPos >= mEnd) {
+                    return -1;
+                }
+                int b = mData.get(mPos++) & 0xFF;
+                if (mZeros >= 2 && b == 3) {
+                    if (mPos >= mEnd) {
+                        return -1;
+                    }
+                    b = mData.get(mPos++) & 0xFF;
+                    mZeros = 0;
+                }
+                mZeros = b == 0 ? mZeros + 1 : 0;
+                mCurrent = b;
+                mBit = 0;
+            }
+            return (mCurrent >> (7 - mBit++)) & 1;
+        }
+
+        /**
+         * Exp-Golomb ue(v)，出错时返回-1
+         */
+        int readUe() {
+            int leadingZeros = 0;
+            int bit;
+            while ((bit = readBit()) == 0) {
+                if (++leadingZeros > 31) {
+                    return -1;
+                }
+            }
+            if (bit < 0) {
+                return -1;
+            }
+            int value = 0;
+            for (int i = 0; i < leadingZeros; i++) {
+                bit = readBit();
+                if (bit < 0) {
+                    return -1;
+                }
+                value = (value << 1) | bit;
+            }
+            return (1 << leadingZeros) - 1 + value;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import android.graphics.SurfaceTexture;
 import android.opengl.EGL14;
 import android.opengl.EGLConfig;
 import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
 import android.view.Surface;
@@ -12,6 +13,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.microedition.khronos.egl.EGL10;
 
@@ -29,6 +31,8 @@ public class GLHelper {
 
     // Android-specific extension.
     private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+    // 工作线程中仍在使用默认display的共享上下文个数
+    private static final AtomicInteger sSharedDisplayUsers = new AtomicInteger(0);
 
     private static final String VERTEX_SHADER = "" +
             "attribute vec4 aPosition;\n" +
@@ -146,7 +150,34 @@ public class GLHelper {
     public static int COORDS_PER_VERTEX = 2;
     public static int TEXTURE_COORDS_PER_VERTEX = 2;
 
+    /**
+     * 工作线程创建共享上下文之前调用，与{@link #releaseSharedDisplay()}成对使用
+     */
+    public static void acquireSharedDisplay() {
+        sSharedDisplayUsers.incrementAndGet();
+    }
+
+    public static void releaseSharedDisplay() {
+        sSharedDisplayUsers.decrementAndGet();
+    }
+
+    /**
+     * 默认display是进程内共用的，还有工作线程的共享上下文存活时不能eglTerminate，否则其上下文会失效
+     */
+    public static void terminateDisplay(EGLDisplay display) {
+        if (sSharedDisplayUsers.get() == 0) {
+            EGL14.eglTerminate(display);
+        }
+    }
+
     public static void initOffScreenGL(OffScreenGLWrapper wrapper) {
+        initOffScreenGL(wrapper, EGL14.EGL_NO_CONTEXT);
+    }
+
+    /**
+     * @param sharedContext 与之共享纹理等资源的上下文，EGL_NO_CONTEXT表示不共享
+     */
+    public static void initOffScreenGL(OffScreenGLWrapper wrapper, EGLContext sharedContext) {
         wrapper.eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
         if (EGL14.EGL_NO_DISPLAY == wrapper.eglDisplay) {
             throw new RuntimeException("initOffScreenGL get eglGetDisplay has failed : " + GLUtils.getEGLErrorString(EGL14.eglGetError()));
@@ -183,7 +214,7 @@ public class GLHelper {
                 EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
                 EGL14.EGL_NONE
         };
-        wrapper.eglContext = EGL14.eglCreateContext(wrapper.eglDisplay, wrapper.eglConfig, EGL14.EGL_NO_CONTEXT, contextSpec, 0);
+        wrapper.eglContext = EGL14.eglCreateContext(wrapper.eglDisplay, wrapper.eglConfig, sharedContext, contextSpec, 0);
         if (EGL14.EGL_NO_CONTEXT == wrapper.eglContext) {
             throw new RuntimeException("initOffScreenGL eglCreateContext has failed : " + GLUtils.getEGLErrorString(EGL14.eglGetError()));
         }
@@ -33,17 +33,10 @@ public class MediaCodecHelper {
         videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, config.mediaCodecAVCFrameRate);
         videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.mediaCodecAVCIFrameInterval);
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            videoFormat.setInteger(MediaFormat.KEY_PROFILE, MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline);
-            videoFormat.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
-        }
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            videoFormat.setInteger(MediaFormat.KEY_LEVEL, MediaCodecInfo.CodecProfileLevel.AVCLevel31);
-        }
+        setProfileLevel(config, videoFormat);
 
         try {
-            MediaCodec videoCodec = MediaCodec.createEncoderByType("video/avc");
+            MediaCodec videoCodec = createVideoEncoder(config, videoFormat.getString(MediaFormat.KEY_MIME));
             // select color
             int[] colorful = videoCodec.getCodecInfo().getCapabilitiesForType(videoFormat.getString(MediaFormat.KEY_MIME)).colorFormats;
             int dstVideoColorFormat = -1;
@@ -79,7 +72,7 @@ public class MediaCodecHelper {
     public static MediaCodec createHardVideoMediaCodec(MediaMakerConfig config, MediaFormat videoFormat) {
         try {
 
-            MediaCodec videoCodec = MediaCodec.createEncoderByType("video/avc");
+            MediaCodec videoCodec = createVideoEncoder(config, videoFormat.getString(MediaFormat.KEY_MIME));
             videoFormat.setInteger(MediaFormat.KEY_WIDTH, config.previewVideoHeight);
             videoFormat.setInteger(MediaFormat.KEY_HEIGHT, config.previewVideoWidth);
             videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
@@ -88,16 +81,7 @@ public class MediaCodecHelper {
             videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, config.mediaCodecAVCFrameRate);
             videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.mediaCodecAVCIFrameInterval);
 
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                videoFormat.setInteger(MediaFormat.KEY_PROFILE, MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline);
-                videoFormat.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
-            }
-
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                videoFormat.setInteger(MediaFormat.KEY_LEVEL, MediaCodecInfo.CodecProfileLevel.AVCLevel31);
-            }
-
-            // config.mediaCodecAVCProfile \ config.mediaCodecAVCLevel ???
+            setProfileLevel(config, videoFormat);
             return videoCodec;
         } catch (IOException e) {
             e.printStackTrace();
@@ -105,6 +89,49 @@ public class MediaCodecHelper {
         }
     }
 
+    /**
+     * 优先使用{@link EncoderCapabilities}探测出的编码器，创建失败时按类型创建
+     */
+    private static MediaCodec createVideoEncoder(MediaMakerConfig config, String mime) throws IOException {
+        if (config.mediaCodecAVCName != null) {
+            try {
+                return MediaCodec.createByCodecName(config.mediaCodecAVCName);
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "createByCodecName " + config.mediaCodecAVCName + " failed, fallback to createEncoderByType", e);
+            }
+        }
+        return MediaCodec.createEncoderByType(mime);
+    }
+
+    /**
+     * 没有探测结果时AVC使用Baseline、CBR和Level 3.1，其它编码由编码器自己决定
+     */
+    private static void setProfileLevel(MediaMakerConfig config, MediaFormat videoFormat) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            int profile = -1;
+            int level = -1;
+            int bitrateMode = -1;
+            if (config.mediaCodecAVCName != null) {
+                profile = config.mediaCodecAVCProfile;
+                level = config.mediaCodecAVCLevel;
+                bitrateMode = config.mediaCodecAVCBitrateMode;
+            } else if (MediaMakerConfig.VIDEO_CODEC_AVC.equals(videoFormat.getString(MediaFormat.KEY_MIME))) {
+                profile = MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+                level = MediaCodecInfo.CodecProfileLevel.AVCLevel31;
+                bitrateMode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+            }
+            if (profile != -1) {
+                videoFormat.setInteger(MediaFormat.KEY_PROFILE, profile);
+            }
+            if (bitrateMode != -1) {
+                videoFormat.setInteger(MediaFormat.KEY_BITRATE_MODE, bitrateMode);
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && profile != -1 && level != -1) {
+                videoFormat.setInteger(MediaFormat.KEY_LEVEL, level);
+            }
+        }
+    }
+
     /**
      * 创建音频编码器
      *
@@ -0,0 +1,217 @@
+package com.icechn.videorecorder.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * H.264/H.265码流的NAL扫描，只记录位置，不拷贝数据。
+ * Annex-B码流支持3字节和4字节起始码、一个buffer中有多个NAL；
+ * 4字节长度前缀的链刚好覆盖整个buffer时按长度前缀解析，其次按起始码解析，都不是时整个buffer当作一个NAL。
+ * 扫描范围是reset时buffer的[position, limit)，不会修改buffer的position和limit。
+ * 一个实例只能在一个线程中使用，可以反复reset。
+ */
+public class NalUnitScanner {
+    public static final int AVC_NAL_IDR = 5;
+    public static final int AVC_NAL_SEI = 6;
+    public static final int AVC_NAL_SPS = 7;
+    public static final int AVC_NAL_PPS = 8;
+    public static final int AVC_NAL_AUD = 9;
+    public static final int HEVC_NAL_VPS = 32;
+    public static final int HEVC_NAL_SPS = 33;
+    public static final int HEVC_NAL_PPS = 34;
+
+    private static final int MODE_ANNEX_B = 0;
+    private static final int MODE_LENGTH_PREFIXED = 1;
+    private static final int MODE_SINGLE = 2;
+
+    private ByteBuffer mBuffer;
+    private int mLimit;
+    private int mMode;
+    // 下一次从这里开始找
+    private int mNext;
+    private int mNalStart = -1;
+    private int mNalEnd = -1;
+
+    public NalUnitScanner reset(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mLimit = buffer.limit();
+        mNext = buffer.position();
+        mNalStart = -1;
+        mNalEnd = -1;
+        // 长度在0x100~0x1FF之间的长度前缀是00 00 01 xx，看起来像起始码，
+        // 所以先检查长度链是否刚好覆盖整个buffer，不满足再按Annex-B解析
+        if (isLengthPrefixed(buffer, mNext, mLimit)) {
+            mMode = MODE_LENGTH_PREFIXED;
+        } else if (isAnnexB(buffer, mNext, mLimit)) {
+            mMode = MODE_ANNEX_B;
+        } else {
+            mMode = MODE_SINGLE;
+        }
+        return this;
+    }
+
+    /**
+     * 移动到下一个NAL
+     *
+     * @return false表示已经没有NAL
+     */
+    public boolean next() {
+        while (mNext < mLimit) {
+            switch (mMode) {
+                case MODE_ANNEX_B: {
+                    int startCode = findStartCode(mBuffer, mNext, mLimit);
+                    if (startCode < 0) {
+                        mNext = mLimit;
+                        return false;
+                    }
+                    int start = startCode + 3;
+                    int nextStartCode = findStartCode(mBuffer, start, mLimit);
+                    int end = nextStartCode < 0 ? mLimit : nextStartCode;
+                    mNext = end;
+                    // 4字节起始码的第一个0和trailing_zero_8bits不属于NAL
+                    while (end > start && mBuffer.get(end - 1) == 0) {
+                        end--;
+                    }
+                    if (end > start) {
+                        mNalStart = start;
+                        mNalEnd = end;
+                        return true;
+                    }
+                }
+                break;
+                case MODE_LENGTH_PREFIXED: {
+                    int length = readLength(mBuffer, mNext);
+                    mNalStart = mNext + 4;
+                    mNalEnd = mNalStart + length;
+                    mNext = mNalEnd;
+                    return true;
+                }
+                default: {
+                    mNalStart = mNext;
+                    mNalEnd = mLimit;
+                    mNext = mLimit;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 当前NAL头在buffer中的绝对位置
+     */
+    public int getNalOffset() {
+        return mNalStart;
+    }
+
+    /**
+     * @return 当前NAL的长度，包括NAL头，不包括起始码或长度前缀
+     */
+    public int getNalLength() {
+        return mNalEnd - mNalStart;
+    }
+
+    public int getAvcNalType() {
+        return mBuffer.get(mNalStart) & 0x1F;
+    }
+
+    public int getHevcNalType() {
+        return (mBuffer.get(mNalStart) >> 1) & 0x3F;
+    }
+
+    /**
+     * @return 与原buffer共享数据的当前NAL，position为0
+     */
+    public ByteBuffer slice() {
+        ByteBuffer duplicate = mBuffer.duplicate();
+        duplicate.limit(mNalEnd);
+        duplicate.position(mNalStart);
+        return duplicate.slice();
+    }
+
+    /**
+     * 跳过编码器在图像前重复输出的参数集、AUD和SEI，找到第一个图像NAL。
+     * 从这里开始写入muxer不依赖起始码的长度，也不会把参数集混进样本里
+     *
+     * @return 第一个图像NAL头的绝对位置，没有图像NAL时返回-1
+     */
+    public int findFirstPictureNal(ByteBuffer buffer, boolean isHevc) {
+        reset(buffer);
+        while (next()) {
+            if (isHevc ? getHevcNalType() < 32 : isAvcPicture(getAvcNalType())) {
+                return mNalStart;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return 第一个指定类型的AVC NAL，没有时返回null
+     */
+    public ByteBuffer findAvcNal(ByteBuffer buffer, int nalType) {
+        reset(buffer);
+        while (next()) {
+            if (getAvcNalType() == nalType) {
+                return slice();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAvcPicture(int nalType) {
+        return nalType >= 1 && nalType <= AVC_NAL_IDR;
+    }
+
+    /**
+     * 查找00 00 01，数据中的字节大于1时可以一次跳过3个字节
+     *
+     * @return 起始码第一个字节的位置，没有时返回-1
+     */
+    static int findStartCode(ByteBuffer buffer, int from, int to) {
+        int i = from + 2;
+        while (i < to) {
+            byte b = buffer.get(i);
+            if (b == 0) {
+                i++;
+            } else if (b == 1 && buffer.get(i - 1) == 0 && buffer.get(i - 2) == 0) {
+                return i - 2;
+            } else {
+                i += 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 以若干个0加01开头
+     */
+    private static boolean isAnnexB(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        while (i < to && buffer.get(i) == 0) {
+            i++;
+        }
+        return i - from >= 2 && i < to && buffer.get(i) == 1;
+    }
+
+    /**
+     * 长度前缀是大端，不受buffer的ByteOrder影响
+     */
+    private static int readLength(ByteBuffer buffer, int index) {
+        return ((buffer.get(index) & 0xFF) << 24) | ((buffer.get(index + 1) & 0xFF) << 16)
+                | ((buffer.get(index + 2) & 0xFF) << 8) | (buffer.get(index + 3) & 0xFF);
+    }
+
+    /**
+     * 所有长度前缀刚好覆盖整个buffer
+     */
+    private static boolean isLengthPrefixed(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        while (to - i >= 4) {
+            int length = readLength(buffer, i);
+            if (length <= 0 || length > to - i - 4) {
+                return false;
+            }
+            i += 4 + length;
+        }
+        return i == to;
+    }
+}
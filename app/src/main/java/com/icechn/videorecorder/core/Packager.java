@@ -14,10 +14,19 @@ public class Packager {
     public static class H264Packager {
 
         public static byte[] generateAVCDecoderConfigurationRecord(MediaFormat mediaFormat) {
-            ByteBuffer SPSByteBuff = mediaFormat.getByteBuffer("csd-0");
-            SPSByteBuff.position(4);
-            ByteBuffer PPSByteBuff = mediaFormat.getByteBuffer("csd-1");
-            PPSByteBuff.position(4);
+            return generateAVCDecoderConfigurationRecord(mediaFormat.getByteBuffer("csd-0"), mediaFormat.getByteBuffer("csd-1"));
+        }
+
+        /**
+         * csd的起始码可以是3或4字节，SPS和PPS也可以都在csd-0中，不会修改csd的position
+         */
+        public static byte[] generateAVCDecoderConfigurationRecord(ByteBuffer csd0, ByteBuffer csd1) {
+            NalUnitScanner scanner = new NalUnitScanner();
+            ByteBuffer SPSByteBuff = findAvcNal(scanner, NalUnitScanner.AVC_NAL_SPS, csd0, csd1);
+            ByteBuffer PPSByteBuff = findAvcNal(scanner, NalUnitScanner.AVC_NAL_PPS, csd1, csd0);
+            if (SPSByteBuff == null || PPSByteBuff == null || SPSByteBuff.remaining() < 4) {
+                throw new IllegalArgumentException("SPS or PPS not found in csd");
+            }
             int spslength = SPSByteBuff.remaining();
             int ppslength = PPSByteBuff.remaining();
             int length = 11 + spslength + ppslength;
@@ -52,6 +61,14 @@ public class Packager {
 
             return result;
         }
+
+        private static ByteBuffer findAvcNal(NalUnitScanner scanner, int nalType, ByteBuffer first, ByteBuffer second) {
+            ByteBuffer nal = first != null ? scanner.findAvcNal(first, nalType) : null;
+            if (nal == null && second != null) {
+                nal = scanner.findAvcNal(second, nalType);
+            }
+            return nal;
+        }
     }
 
     public static class FLVPackager {
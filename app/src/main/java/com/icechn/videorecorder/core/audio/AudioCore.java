@@ -11,6 +11,7 @@ import android.os.Message;
 import android.os.SystemClock;
 import android.util.Log;
 
+import com.icechn.videorecorder.core.EncoderStatsCollector;
 import com.icechn.videorecorder.core.MediaCodecHelper;
 import com.icechn.videorecorder.encoder.MediaMuxerWrapper;
 import com.icechn.videorecorder.filter.softaudiofilter.BaseSoftAudioFilter;
@@ -44,6 +45,9 @@ public class AudioCore {
     private AudioFilterHandler audioFilterHandler;
     private HandlerThread audioFilterHandlerThread;
     private AudioSenderThread audioSenderThread;
+    private EncoderStatsCollector encoderStatsCollector;
+    // 本次录制的统计，编码输出线程结束后release
+    private EncoderStatsCollector recordingStatsCollector;
 
     public AudioCore(MediaMakerConfig parameters) {
         mediaMakerConfig = parameters;
@@ -91,7 +95,17 @@ public class AudioCore {
         }
     }
 
-    public void startRecording(MediaMuxerWrapper muxer) {
+    /**
+     * 在startRecording之前调用，对之后的录制生效，null表示关闭
+     */
+    public void setEncoderStatsCollector(EncoderStatsCollector collector) {
+        encoderStatsCollector = collector;
+    }
+
+    /**
+     * @param proxyMuxer 音频同时写入的第二个muxer，可以为null
+     */
+    public void startRecording(MediaMuxerWrapper muxer, MediaMuxerWrapper proxyMuxer) {
         synchronized (syncOp) {
             try {
                 for (AudioBuff buff : orignAudioBuffs) {
@@ -105,6 +119,12 @@ public class AudioCore {
                 lastAudioQueueBuffIndex = 0;
                 audioFilterHandlerThread = new HandlerThread("audioFilterHandlerThread");
                 audioSenderThread = new AudioSenderThread("AudioSenderThread", dstAudioEncoder, muxer);
+                if (encoderStatsCollector != null) {
+                    encoderStatsCollector.retain();
+                }
+                recordingStatsCollector = encoderStatsCollector;
+                audioSenderThread.setStatsCollector(recordingStatsCollector);
+                audioSenderThread.setProxyMuxer(proxyMuxer);
                 audioFilterHandlerThread.start();
                 audioSenderThread.start();
                 audioFilterHandler = new AudioFilterHandler(audioFilterHandlerThread.getLooper());
@@ -133,6 +153,11 @@ public class AudioCore {
             }
             audioFilterHandlerThread = null;
             audioSenderThread = null;
+            if (recordingStatsCollector != null) {
+                // 编码输出线程已经结束，不会再写入统计
+                recordingStatsCollector.release();
+                recordingStatsCollector = null;
+            }
             if (dstAudioEncoder != null) {
                 dstAudioEncoder.stop();
                 dstAudioEncoder.release();
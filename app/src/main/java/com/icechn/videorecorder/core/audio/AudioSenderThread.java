@@ -2,8 +2,10 @@ package com.icechn.videorecorder.core.audio;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.icechn.videorecorder.core.EncoderStatsCollector;
 import com.icechn.videorecorder.encoder.MediaMuxerWrapper;
 
 import java.lang.ref.WeakReference;
@@ -17,6 +19,7 @@ public class AudioSenderThread extends Thread {
     private MediaCodec.BufferInfo eInfo;
     private long startTime = 0;
     private MediaCodec dstAudioEncoder;
+    private EncoderStatsCollector statsCollector;
 
     AudioSenderThread(String name, MediaCodec encoder, MediaMuxerWrapper muxer) {
         super(name);
@@ -26,6 +29,20 @@ public class AudioSenderThread extends Thread {
         mWeakMuxer = new WeakReference<MediaMuxerWrapper>(muxer);
     }
 
+    /**
+     * 需要在start之前调用
+     */
+    void setStatsCollector(EncoderStatsCollector collector) {
+        statsCollector = collector;
+    }
+
+    /**
+     * 同样写入代理视频的muxer，需要在start之前调用
+     */
+    void setProxyMuxer(MediaMuxerWrapper muxer) {
+        mWeakProxyMuxer = muxer != null ? new WeakReference<MediaMuxerWrapper>(muxer) : null;
+    }
+
     private boolean shouldQuit = false;
 
     void quit() {
@@ -42,13 +59,24 @@ public class AudioSenderThread extends Thread {
                 }
             }
         }
+        if (mProxyMuxerStarted) {
+            final MediaMuxerWrapper proxyMuxer = mWeakProxyMuxer != null ? mWeakProxyMuxer.get() : null;
+            if (proxyMuxer != null) {
+                try {
+                    proxyMuxer.stop();
+                } catch (final Exception e) {
+                    Log.e("AudioSenderThread", "failed stopping proxy muxer", e);
+                }
+            }
+        }
     }
 
     @Override
     public void run() {
         final MediaMuxerWrapper muxer = mWeakMuxer != null ? mWeakMuxer.get() : null;
         boolean isMuxerEnable = muxer != null;
-        Log.w("AudioSenderThread", "muxer enable:"+isMuxerEnable);
+        final MediaMuxerWrapper proxyMuxer = mWeakProxyMuxer != null ? mWeakProxyMuxer.get() : null;
+        Log.w("AudioSenderThread", "muxer enable:"+isMuxerEnable+" proxy enable:"+(proxyMuxer != null));
 
         while (!shouldQuit) {
             int eobIndex = dstAudioEncoder.dequeueOutputBuffer(eInfo, WAIT_TIME);
@@ -69,6 +97,11 @@ public class AudioSenderThread extends Thread {
                         muxer.start();
                         mMuxerStarted = true;
                     }
+                    if (proxyMuxer != null) {
+                        mProxyTrackIndex = proxyMuxer.addTrack(dstAudioEncoder.getOutputFormat());
+                        proxyMuxer.start();
+                        mProxyMuxerStarted = true;
+                    }
                     break;
                 default:
                     Log.d("","AudioSenderThread,MediaCode,eobIndex=" + eobIndex);
@@ -83,11 +116,24 @@ public class AudioSenderThread extends Thread {
                         ByteBuffer realData = dstAudioEncoder.getOutputBuffers()[eobIndex];
                         realData.position(eInfo.offset);
                         realData.limit(eInfo.offset + eInfo.size);
+                        if (statsCollector != null) {
+                            // 输入时间戳是采集时的uptime
+                            statsCollector.onAudioFrame(eInfo.size, eInfo.presentationTimeUs,
+                                    SystemClock.uptimeMillis() * 1000 - eInfo.presentationTimeUs);
+                        }
                         if (isMuxerEnable && mMuxerStarted) {
                             eInfo.presentationTimeUs = getPTSUs();
                             muxer.writeSampleData(mTrackIndex, realData, eInfo);
                             prevOutputPTSUs = eInfo.presentationTimeUs;
                         }
+                        if (proxyMuxer != null && mProxyMuxerStarted) {
+                            if (!(isMuxerEnable && mMuxerStarted)) {
+                                eInfo.presentationTimeUs = getPTSUs();
+                                prevOutputPTSUs = eInfo.presentationTimeUs;
+                            }
+                            // muxer按BufferInfo读取，不改变realData，两个文件写入相同的样本
+                            proxyMuxer.writeSampleData(mProxyTrackIndex, realData, eInfo);
+                        }
                     }
                     dstAudioEncoder.releaseOutputBuffer(eobIndex, false);
                     break;
@@ -99,6 +145,9 @@ public class AudioSenderThread extends Thread {
     protected WeakReference<MediaMuxerWrapper> mWeakMuxer;
     protected int mTrackIndex;
     protected boolean mMuxerStarted = false;
+    protected WeakReference<MediaMuxerWrapper> mWeakProxyMuxer;
+    protected int mProxyTrackIndex;
+    protected boolean mProxyMuxerStarted = false;
     /**
      * previous presentationTimeUs for writing
      */
@@ -0,0 +1,26 @@
+package com.icechn.videorecorder.core.listener;
+
+/**
+ * 每个编码输出帧的统计，在视频、音频各自的编码输出线程中回调，不要做耗时操作
+ */
+public interface IEncoderStatsListener {
+    int TRACK_VIDEO = 0;
+    int TRACK_AUDIO = 1;
+
+    int FRAME_TYPE_UNKNOWN = 0;
+    int FRAME_TYPE_IDR = 1;
+    int FRAME_TYPE_I = 2;
+    int FRAME_TYPE_P = 3;
+    int FRAME_TYPE_B = 4;
+    int FRAME_TYPE_AUDIO = 5;
+
+    /**
+     * @param frameType          从NAL头和slice头解析，音频为FRAME_TYPE_AUDIO
+     * @param presentationTimeUs 送入编码器时的时间戳（uptime）
+     * @param latencyMs          从送入编码器到取出输出的时间
+     * @param keyFrameIntervalMs 关键帧距上一个关键帧的时间，非关键帧和第一个关键帧为0
+     * @param bitrate            该轨道最近1秒的码率
+     */
+    void onEncodedFrame(int track, int frameType, int size, long presentationTimeUs,
+                        int latencyMs, int keyFrameIntervalMs, int bitrate);
+}
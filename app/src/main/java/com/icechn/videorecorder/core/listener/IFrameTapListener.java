@@ -0,0 +1,16 @@
+package com.icechn.videorecorder.core.listener;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 接收缩小后的滤镜输出帧，用于人脸检测等CPU分析。
+ * 回调在独立的工作线程中执行，不会阻塞渲染线程。
+ */
+public interface IFrameTapListener {
+    /**
+     * @param rgba        RGBA_8888，第一行为画面顶部，行之间没有填充。
+     *                    回调返回后buffer会被复用，需要保留数据时请自行拷贝
+     * @param timestampMs 与录制时间戳同一时间基准（uptime）
+     */
+    void onFrame(ByteBuffer rgba, int width, int height, long timestampMs);
+}
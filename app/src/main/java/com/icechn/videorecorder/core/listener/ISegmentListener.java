@@ -0,0 +1,30 @@
+package com.icechn.videorecorder.core.listener;
+
+/**
+ * 分段录制中某一段文件写完，在主线程回调
+ */
+public interface ISegmentListener {
+    /**
+     * @param success false表示该段没有写入任何数据或者写文件失败，文件已被删除或不可用
+     */
+    void onSegmentFinished(String path, boolean success);
+
+    class SegmentRunable implements Runnable {
+        ISegmentListener segmentListener;
+        String path;
+        boolean success;
+
+        public SegmentRunable(ISegmentListener segmentListener, String path, boolean success) {
+            this.segmentListener = segmentListener;
+            this.path = path;
+            this.success = success;
+        }
+
+        @Override
+        public void run() {
+            if (segmentListener != null) {
+                segmentListener.onSegmentFinished(path, success);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.icechn.videorecorder.core.listener;
+
+/**
+ * 拍照结果，在主线程回调
+ */
+public interface ISnapshotListener {
+    /**
+     * @param success false表示读取或写入文件失败，或者拍照前录制已经销毁
+     */
+    void onSnapshot(String path, boolean success);
+
+    class SnapshotRunable implements Runnable {
+        ISnapshotListener snapshotListener;
+        String path;
+        boolean success;
+
+        public SnapshotRunable(ISnapshotListener snapshotListener, String path, boolean success) {
+            this.snapshotListener = snapshotListener;
+            this.path = path;
+            this.success = success;
+        }
+
+        @Override
+        public void run() {
+            if (snapshotListener != null) {
+                snapshotListener.onSnapshot(path, success);
+            }
+        }
+    }
+}
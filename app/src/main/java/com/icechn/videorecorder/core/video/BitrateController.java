@@ -0,0 +1,105 @@
+package com.icechn.videorecorder.core.video;
+
+import android.util.Log;
+
+/**
+ * 根据存储预算闭环调节视频码率。
+ * VideoSenderThread每写出一帧报告一次大小，每秒统计一次实际码率，
+ * 以预算码率减去累计超出部分（在CATCH_UP_SECONDS内还清）为目标，每次最多调整MAX_STEP，避免画质跳变。
+ */
+class BitrateController {
+    private static final String TAG = "BitrateController";
+    private static final long WINDOW_US = 1000000;
+    private static final float CATCH_UP_SECONDS = 10f;
+    private static final float MAX_STEP = 0.15f;
+    // 变化小于该比例时不重设编码器
+    private static final float MIN_CHANGE = 0.03f;
+    private static final float SMOOTH_FACTOR = 0.5f;
+    private static final int MIN_BITRATE = 100 * 1000;
+
+    interface IBitrateChangeListener {
+        /**
+         * 在VideoSenderThread中回调
+         */
+        void onBitrateChange(int bitrate);
+    }
+
+    private final long mTargetBps;
+    private final int mMinBitrate;
+    private final int mMaxBitrate;
+    private final IBitrateChangeListener mListener;
+    private int mCurrentBitrate;
+
+    private long mStartUs = -1;
+    private long mWindowStartUs;
+    private long mWindowBytes;
+    private long mTotalBytes;
+    private float mMeasuredBps = -1;
+
+    /**
+     * @param budgetBytesPerMinute 视频轨的存储预算
+     * @param initialBitrate       编码器当前的码率
+     */
+    BitrateController(long budgetBytesPerMinute, int initialBitrate, IBitrateChangeListener listener) {
+        if (budgetBytesPerMinute <= 0) {
+            throw new IllegalArgumentException("invalid budget " + budgetBytesPerMinute);
+        }
+        mTargetBps = budgetBytesPerMinute * 8 / 60;
+        mMinBitrate = (int) Math.max(MIN_BITRATE, mTargetBps / 4);
+        mMaxBitrate = (int) Math.max(mMinBitrate, Math.min(Integer.MAX_VALUE, mTargetBps * 2));
+        mCurrentBitrate = initialBitrate;
+        mListener = listener;
+    }
+
+    static int getTargetBitrate(long budgetBytesPerMinute) {
+        return (int) Math.min(Integer.MAX_VALUE, budgetBytesPerMinute * 8 / 60);
+    }
+
+    /**
+     * 编码器被重建后调用
+     */
+    void reset(int bitrate) {
+        mCurrentBitrate = bitrate;
+    }
+
+    void onEncodedFrame(int size, long presentationTimeUs) {
+        if (mStartUs < 0) {
+            mStartUs = presentationTimeUs;
+            mWindowStartUs = presentationTimeUs;
+        }
+        mWindowBytes += size;
+        mTotalBytes += size;
+        long windowUs = presentationTimeUs - mWindowStartUs;
+        if (windowUs >= WINDOW_US) {
+            onWindow(windowUs, presentationTimeUs);
+            mWindowStartUs = presentationTimeUs;
+            mWindowBytes = 0;
+        }
+    }
+
+    private void onWindow(long windowUs, long presentationTimeUs) {
+        float windowBps = mWindowBytes * 8f * 1000000f / windowUs;
+        mMeasuredBps = mMeasuredBps < 0 ? windowBps : SMOOTH_FACTOR * windowBps + (1 - SMOOTH_FACTOR) * mMeasuredBps;
+        float elapsedSeconds = (presentationTimeUs - mStartUs) / 1000000f;
+        // 正数表示已经超出预算的比特数
+        float debtBits = mTotalBytes * 8f - mTargetBps * elapsedSeconds;
+        float desiredBps = Math.max(mMinBitrate, mTargetBps - debtBits / CATCH_UP_SECONDS);
+        float ratio = mMeasuredBps > 0 ? desiredBps / mMeasuredBps : 1f;
+        ratio = Math.max(1 - MAX_STEP, Math.min(1 + MAX_STEP, ratio));
+        int newBitrate = (int) Math.max(mMinBitrate, Math.min(mMaxBitrate, mCurrentBitrate * ratio));
+        boolean isChanged = Math.abs(newBitrate - mCurrentBitrate) > mCurrentBitrate * MIN_CHANGE;
+        Log.i(TAG, "bitrate_metrics elapsed_s=" + elapsedSeconds
+                + " window_bps=" + (int) windowBps
+                + " measured_bps=" + (int) mMeasuredBps
+                + " target_bps=" + mTargetBps
+                + " debt_bits=" + (long) debtBits
+                + " current_bps=" + mCurrentBitrate
+                + " new_bps=" + (isChanged ? newBitrate : mCurrentBitrate));
+        if (isChanged) {
+            mCurrentBitrate = newBitrate;
+            if (mListener != null) {
+                mListener.onBitrateChange(newBitrate);
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.icechn.videorecorder.core.video;
+
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.icechn.videorecorder.core.GLHelper;
+import com.icechn.videorecorder.core.listener.IFrameTapListener;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * 把滤镜输出按限定帧率缩小后读回内存，交给{@link IFrameTapListener}。
+ * GLES 2.0没有PBO，这里用两个FBO交替：本帧只绘制缩小图，下一帧再glReadPixels上一帧的FBO，
+ * 此时GPU早已完成该绘制，读回只是一次很小的拷贝，不会让渲染线程等待整条管线。
+ * 读回的buffer来自固定大小的池，回调太慢导致池空时直接丢弃该帧。
+ */
+class FrameReadbackTap {
+    private static final String TAG = "FrameReadbackTap";
+    private static final int POOL_SIZE = 3;
+    // 上下翻转，使读回数据的第一行为画面顶部
+    private static final float[] FlipTextureVertices = {
+            0.0f, 0.0f,
+            0.0f, 1.0f,
+            1.0f, 1.0f,
+            1.0f, 0.0f
+    };
+
+    private final IFrameTapListener mListener;
+    private final int mWidth;
+    private final int mHeight;
+    private final long mIntervalMs;
+    private final ArrayBlockingQueue<ByteBuffer> mBufferPool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private HandlerThread mDeliverThread;
+    private Handler mDeliverHandler;
+    private int glProgram;
+    private int glTextureLoc;
+    private int glPositionLoc;
+    private int glTextureCoordLoc;
+    private FloatBuffer textureVerticesBuffer;
+    private final int[] frameBuffers = new int[2];
+    private final int[] frameBufferTextures = new int[2];
+    private int writeIndex = 0;
+    private int pendingIndex = -1;
+    private long pendingTimestampMs;
+    private long nextFrameTimeMs = 0;
+    private boolean isInited = false;
+
+    /**
+     * @param fps 最大回调帧率，实际不超过录制帧率
+     */
+    FrameReadbackTap(IFrameTapListener listener, int width, int height, int fps) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener can not be null");
+        }
+        if (width <= 0 || height <= 0 || fps <= 0) {
+            throw new IllegalArgumentException("invalid tap size " + width + "x" + height + " @" + fps);
+        }
+        mListener = listener;
+        mWidth = width;
+        mHeight = height;
+        mIntervalMs = 1000 / fps;
+    }
+
+    boolean isInited() {
+        return isInited;
+    }
+
+    /**
+     * 在离屏上下文中调用
+     */
+    void init() {
+        glProgram = GLHelper.createMediaCodecProgram();
+        GLES20.glUseProgram(glProgram);
+        glTextureLoc = GLES20.glGetUniformLocation(glProgram, "uTexture");
+        glPositionLoc = GLES20.glGetAttribLocation(glProgram, "aPosition");
+        glTextureCoordLoc = GLES20.glGetAttribLocation(glProgram, "aTextureCoord");
+        GLES20.glUseProgram(0);
+        textureVerticesBuffer = ByteBuffer.allocateDirect(GLHelper.FLOAT_SIZE_BYTES * FlipTextureVertices.length)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        textureVerticesBuffer.put(FlipTextureVertices);
+        textureVerticesBuffer.position(0);
+        int[] fb = new int[1];
+        int[] fbTexture = new int[1];
+        for (int i = 0; i < 2; i++) {
+            GLHelper.createCameraFrameBuffer(fb, fbTexture, mWidth, mHeight);
+            frameBuffers[i] = fb[0];
+            frameBufferTextures[i] = fbTexture[0];
+        }
+        for (int i = 0; i < POOL_SIZE; i++) {
+            mBufferPool.offer(ByteBuffer.allocateDirect(mWidth * mHeight * 4).order(ByteOrder.nativeOrder()));
+        }
+        mDeliverThread = new HandlerThread(TAG);
+        mDeliverThread.start();
+        mDeliverHandler = new Handler(mDeliverThread.getLooper());
+        isInited = true;
+    }
+
+    /**
+     * 每帧滤镜绘制完成后在离屏上下文中调用
+     *
+     * @param texture 滤镜输出纹理
+     */
+    void onFrame(int texture, FloatBuffer shapeBuffer, ShortBuffer drawIndexesBuffer, long timestampMs) {
+        if (pendingIndex >= 0) {
+            readPending();
+        }
+        if (timestampMs < nextFrameTimeMs) {
+            return;
+        }
+        // 按固定节奏推进，偶尔的晚帧不会让之后的帧率下降
+        nextFrameTimeMs += mIntervalMs;
+        if (nextFrameTimeMs <= timestampMs) {
+            nextFrameTimeMs = timestampMs + mIntervalMs;
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[writeIndex]);
+        GLES20.glUseProgram(glProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glUniform1i(glTextureLoc, 0);
+        GLHelper.enableVertex(glPositionLoc, glTextureCoordLoc, shapeBuffer, textureVerticesBuffer);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawIndexesBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, drawIndexesBuffer);
+        // 只提交，不等待完成
+        GLES20.glFlush();
+        GLHelper.disableVertex(glPositionLoc, glTextureCoordLoc);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        pendingIndex = writeIndex;
+        pendingTimestampMs = timestampMs;
+        writeIndex ^= 1;
+    }
+
+    private void readPending() {
+        final int index = pendingIndex;
+        pendingIndex = -1;
+        final ByteBuffer buffer = mBufferPool.poll();
+        if (buffer == null) {
+            // 回调还没处理完之前的帧
+            return;
+        }
+        buffer.clear();
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[index]);
+        GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        final long timestampMs = pendingTimestampMs;
+        mDeliverHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    buffer.position(0);
+                    mListener.onFrame(buffer, mWidth, mHeight, timestampMs);
+                } finally {
+                    mBufferPool.offer(buffer);
+                }
+            }
+        });
+    }
+
+    /**
+     * 在离屏上下文中调用，已经读回的帧仍会回调完
+     */
+    void destroy() {
+        if (!isInited) {
+            return;
+        }
+        isInited = false;
+        mDeliverThread.quitSafely();
+        mDeliverThread = null;
+        mDeliverHandler = null;
+        GLES20.glDeleteProgram(glProgram);
+        GLES20.glDeleteFramebuffers(2, frameBuffers, 0);
+        GLES20.glDeleteTextures(2, frameBufferTextures, 0);
+        pendingIndex = -1;
+    }
+}
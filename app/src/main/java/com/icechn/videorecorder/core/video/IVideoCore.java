@@ -2,6 +2,9 @@ package com.icechn.videorecorder.core.video;
 
 import android.graphics.SurfaceTexture;
 
+import com.icechn.videorecorder.core.EncoderStatsCollector;
+import com.icechn.videorecorder.core.listener.IFrameTapListener;
+import com.icechn.videorecorder.core.listener.ISnapshotListener;
 import com.icechn.videorecorder.core.listener.IVideoChange;
 import com.icechn.videorecorder.encoder.MediaMuxerWrapper;
 import com.icechn.videorecorder.model.RecordConfig;
@@ -23,7 +26,10 @@ public interface IVideoCore {
 
     void stopPreview(boolean releaseTexture);
 
-    boolean startRecording(MediaMuxerWrapper muxer);
+    /**
+     * @param proxyMuxer 同时编码的低分辨率代理视频的输出，null表示不编码代理视频
+     */
+    boolean startRecording(MediaMuxerWrapper muxer, MediaMuxerWrapper proxyMuxer);
 
     boolean stopRecording();
 
@@ -32,4 +38,34 @@ public interface IVideoCore {
     void setCurrentCamera(int cameraIndex);
 
     void setVideoChangeListener(IVideoChange listener);
+
+    /**
+     * @param listener null表示关闭
+     */
+    void setFrameTapListener(IFrameTapListener listener, int width, int height, int fps);
+
+    /**
+     * 在startRecording之前调用，对之后的录制生效，null表示关闭
+     */
+    void setEncoderStatsCollector(EncoderStatsCollector collector);
+
+    /**
+     * 异步保存下一帧滤镜输出为JPEG
+     */
+    void takeSnapshot(String path, int quality, ISnapshotListener listener);
+
+    /**
+     * 让编码器尽快输出一个关键帧，录制中才有效
+     */
+    void requestKeyFrame();
+
+    /**
+     * 最近一次从编码器一次取出的输出帧数，不在录制时为0
+     */
+    int getEncoderOutputQueueDepth();
+
+    /**
+     * 最近一帧的编码耗时（送入编码器到取出输出），不在录制时为0
+     */
+    int getEncodeLatencyMs();
 }
@@ -0,0 +1,181 @@
+package com.icechn.videorecorder.core.video;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.EGLExt;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Surface;
+
+import com.icechn.videorecorder.core.GLHelper;
+import com.icechn.videorecorder.encoder.MediaMuxerWrapper;
+import com.icechn.videorecorder.model.MediaCodecGLWapper;
+import com.icechn.videorecorder.model.MediaMakerConfig;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * 低分辨率代理编码：与主编码器共用同一帧滤镜输出，缩小绘制到自己的输入Surface，
+ * 使用独立的VideoSenderThread写入独立的muxer。固定使用AVC，
+ * 与主编码器一样在预览期间{@link #prepare}，开始录制时只需{@link #start}。
+ * 除构造外都在GL线程中调用
+ */
+class ProxyVideoEncoder {
+    private static final String TAG = "ProxyVideoEncoder";
+
+    private final int mWidth;
+    private final int mHeight;
+    private final MediaFormat mFormat;
+    private MediaCodec mEncoder;
+    private Surface mInputSurface;
+    private MediaCodecGLWapper mGLWapper;
+    private VideoSenderThread mSenderThread;
+
+    /**
+     * @param width  宽高需为16的倍数
+     */
+    ProxyVideoEncoder(int width, int height, int bitRate, int frameRate, int iFrameInterval) {
+        if (width <= 0 || height <= 0 || width % 16 != 0 || height % 16 != 0) {
+            throw new IllegalArgumentException("invalid proxy size " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+        mFormat = MediaFormat.createVideoFormat(MediaMakerConfig.VIDEO_CODEC_AVC, width, height);
+        mFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        mFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        mFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        mFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
+    }
+
+    /**
+     * 创建并配置编码器和EGL环境，不start。失败时释放已创建的资源并抛出RuntimeException
+     *
+     * @param sharedContext 滤镜输出纹理所在的离屏上下文
+     */
+    void prepare(EGLContext sharedContext) {
+        try {
+            mEncoder = MediaCodec.createEncoderByType(MediaMakerConfig.VIDEO_CODEC_AVC);
+            mEncoder.configure(mFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mGLWapper = new MediaCodecGLWapper();
+            mInputSurface = mEncoder.createInputSurface();
+            GLHelper.initMediaCodecGL(mGLWapper, sharedContext, mInputSurface);
+            GLHelper.makeCurrent(mGLWapper);
+            mGLWapper.drawProgram = GLHelper.createMediaCodecProgram();
+            GLES20.glUseProgram(mGLWapper.drawProgram);
+            mGLWapper.drawTextureLoc = GLES20.glGetUniformLocation(mGLWapper.drawProgram, "uTexture");
+            mGLWapper.drawPostionLoc = GLES20.glGetAttribLocation(mGLWapper.drawProgram, "aPosition");
+            mGLWapper.drawTextureCoordLoc = GLES20.glGetAttribLocation(mGLWapper.drawProgram, "aTextureCoord");
+            GLES20.glUseProgram(0);
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw new RuntimeException("prepare proxy encoder " + mWidth + "x" + mHeight + " failed", e);
+        }
+    }
+
+    /**
+     * {@link #prepare}之后调用，开始编码并写入muxer。失败时抛出RuntimeException，由调用方{@link #release}
+     */
+    void start(MediaMuxerWrapper muxer) {
+        if (mEncoder == null || mSenderThread != null) {
+            throw new IllegalStateException("proxy encoder not prepared or already started");
+        }
+        mEncoder.start();
+        mSenderThread = new VideoSenderThread("ProxySenderThread", mEncoder, muxer);
+        mSenderThread.start();
+        Log.d(TAG, "proxy encoder started " + mWidth + "x" + mHeight);
+    }
+
+    boolean isStarted() {
+        return mSenderThread != null;
+    }
+
+    /**
+     * 与主编码器同时请求关键帧，分段切换时代理视频也能尽快切换
+     */
+    void requestSyncFrame() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && isStarted()) {
+            Bundle syncBundle = new Bundle();
+            syncBundle.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            mEncoder.setParameters(syncBundle);
+        }
+    }
+
+    /**
+     * 主编码器绘制之后调用，texture为滤镜输出
+     *
+     * @param timeNs 与主编码器相同的时间戳
+     */
+    void onFrame(int texture, FloatBuffer shapeBuffer, FloatBuffer textureBuffer, ShortBuffer drawIndexesBuffer, long timeNs) {
+        GLHelper.makeCurrent(mGLWapper);
+        GLES20.glUseProgram(mGLWapper.drawProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glUniform1i(mGLWapper.drawTextureLoc, 0);
+        GLHelper.enableVertex(mGLWapper.drawPostionLoc, mGLWapper.drawTextureCoordLoc, shapeBuffer, textureBuffer);
+        // 线性过滤完成缩小
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawIndexesBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, drawIndexesBuffer);
+        GLHelper.disableVertex(mGLWapper.drawPostionLoc, mGLWapper.drawTextureCoordLoc);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+        EGLExt.eglPresentationTimeANDROID(mGLWapper.eglDisplay, mGLWapper.eglSurface, timeNs);
+        if (!EGL14.eglSwapBuffers(mGLWapper.eglDisplay, mGLWapper.eglSurface)) {
+            throw new RuntimeException("proxy eglSwapBuffers,failed!");
+        }
+    }
+
+    /**
+     * 停止编码，结束muxer的视频轨并释放所有资源
+     */
+    void stop() {
+        if (mSenderThread != null) {
+            mSenderThread.quit();
+            try {
+                mSenderThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            mSenderThread = null;
+        }
+        if (mEncoder != null) {
+            mEncoder.stop();
+        }
+        release();
+    }
+
+    /**
+     * 释放所有资源，没有start过或start失败时直接调用
+     */
+    void release() {
+        // 初始化可能在任意一步失败，只释放已创建的部分。display与主编码器共用，不terminate
+        if (mGLWapper != null && mGLWapper.eglDisplay != null && mGLWapper.eglDisplay != EGL14.EGL_NO_DISPLAY) {
+            if (mGLWapper.eglSurface != null && mGLWapper.eglSurface != EGL14.EGL_NO_SURFACE) {
+                GLHelper.makeCurrent(mGLWapper);
+                GLES20.glDeleteProgram(mGLWapper.drawProgram);
+                EGL14.eglMakeCurrent(mGLWapper.eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+                EGL14.eglDestroySurface(mGLWapper.eglDisplay, mGLWapper.eglSurface);
+            }
+            if (mGLWapper.eglContext != null && mGLWapper.eglContext != EGL14.EGL_NO_CONTEXT) {
+                EGL14.eglDestroyContext(mGLWapper.eglDisplay, mGLWapper.eglContext);
+            }
+        }
+        mGLWapper = null;
+        if (mInputSurface != null) {
+            mInputSurface.release();
+            mInputSurface = null;
+        }
+        if (mEncoder != null) {
+            mEncoder.release();
+            mEncoder = null;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.icechn.videorecorder.core.video;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.icechn.videorecorder.client.CallbackDelivery;
+import com.icechn.videorecorder.core.GLHelper;
+import com.icechn.videorecorder.core.listener.ISnapshotListener;
+import com.icechn.videorecorder.core.listener.ISnapshotListener.SnapshotRunable;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 拍照：与{@link FrameReadbackTap}相同的延迟读回。拍照的那一帧只把滤镜输出拷贝到自己的FBO并glFlush，
+ * 下一帧再glReadPixels，此时GPU早已完成该拷贝，渲染线程不需要等待整条管线。
+ * 每帧先读回再拷贝，同一时刻最多只有一帧在等待读回，所以一个FBO就够了。
+ * 拷贝时上下翻转，读回数据的第一行即画面顶部；JPEG压缩在工作线程完成，且只压缩一次。
+ * 读回缓冲最多两个，压缩完成后归还重用；都在使用时推迟读回，新的拍照也随之推迟。
+ */
+class SnapshotWriter {
+    private static final String TAG = "SnapshotWriter";
+    private static final int MAX_BUFFER_COUNT = 2;
+    // 上下翻转，使读回数据的第一行为画面顶部
+    private static final float[] FlipTextureVertices = {
+            0.0f, 0.0f,
+            0.0f, 1.0f,
+            1.0f, 1.0f,
+            1.0f, 0.0f
+    };
+
+    private HandlerThread mWorkThread;
+    private Handler mWorkHandler;
+    private int glProgram;
+    private int glTextureLoc;
+    private int glPositionLoc;
+    private int glTextureCoordLoc;
+    private FloatBuffer textureVerticesBuffer;
+    private final int[] frameBuffer = new int[1];
+    private final int[] frameBufferTexture = new int[1];
+    private int frameBufferWidth;
+    private int frameBufferHeight;
+    private final ArrayList<Request> pendingRequests = new ArrayList<>();
+    // 空闲的读回缓冲，渲染线程取出，工作线程归还
+    private final ArrayList<ByteBuffer> freeBuffers = new ArrayList<>(MAX_BUFFER_COUNT);
+    // 已分配的读回缓冲个数，由freeBuffers同步
+    private int bufferCount;
+
+    /**
+     * @return 是否有已经拷贝、等待读回的拍照
+     */
+    boolean hasPending() {
+        return !pendingRequests.isEmpty();
+    }
+
+    /**
+     * 渲染线程每帧在离屏上下文中调用，读回上一帧拷贝的画面。
+     * 没有空闲的读回缓冲时留到之后的帧，此时{@link #hasPending()}仍为true
+     */
+    void onFrame() {
+        readPending(false);
+    }
+
+    /**
+     * @param force 没有空闲缓冲时临时分配，不推迟
+     */
+    private void readPending(boolean force) {
+        if (pendingRequests.isEmpty()) {
+            return;
+        }
+        final int width = frameBufferWidth;
+        final int height = frameBufferHeight;
+        final ByteBuffer pixels = obtainBuffer(width * height * 4, force);
+        if (pixels == null) {
+            // FBO中的画面保留到下一帧再读回
+            return;
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer[0]);
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        final Request[] requests = pendingRequests.toArray(new Request[pendingRequests.size()]);
+        pendingRequests.clear();
+        if (mWorkThread == null) {
+            mWorkThread = new HandlerThread(TAG);
+            mWorkThread.start();
+            mWorkHandler = new Handler(mWorkThread.getLooper());
+        }
+        mWorkHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Request request : requests) {
+                        boolean success = write(pixels, width, height, request);
+                        deliver(request, success);
+                    }
+                } finally {
+                    recycleBuffer(pixels);
+                }
+            }
+        });
+    }
+
+    /**
+     * 渲染线程在离屏上下文中调用，在{@link #onFrame()}之后且没有{@link #hasPending()}时，
+     * 只提交拷贝，下一帧的onFrame才读回
+     *
+     * @param texture 本帧的滤镜输出
+     */
+    void capture(int texture, int width, int height, FloatBuffer shapeBuffer, ShortBuffer drawIndexesBuffer,
+                 List<Request> requests) {
+        if (frameBufferWidth != width || frameBufferHeight != height) {
+            deleteFrameBuffer();
+        }
+        if (glProgram == 0) {
+            glProgram = GLHelper.createMediaCodecProgram();
+            glTextureLoc = GLES20.glGetUniformLocation(glProgram, "uTexture");
+            glPositionLoc = GLES20.glGetAttribLocation(glProgram, "aPosition");
+            glTextureCoordLoc = GLES20.glGetAttribLocation(glProgram, "aTextureCoord");
+            textureVerticesBuffer = ByteBuffer.allocateDirect(GLHelper.FLOAT_SIZE_BYTES * FlipTextureVertices.length)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            textureVerticesBuffer.put(FlipTextureVertices);
+            textureVerticesBuffer.position(0);
+        }
+        if (frameBuffer[0] == 0) {
+            GLHelper.createCameraFrameBuffer(frameBuffer, frameBufferTexture, width, height);
+            frameBufferWidth = width;
+            frameBufferHeight = height;
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer[0]);
+        GLES20.glUseProgram(glProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glUniform1i(glTextureLoc, 0);
+        GLHelper.enableVertex(glPositionLoc, glTextureCoordLoc, shapeBuffer, textureVerticesBuffer);
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawIndexesBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, drawIndexesBuffer);
+        // 只提交，不等待完成
+        GLES20.glFlush();
+        GLHelper.disableVertex(glPositionLoc, glTextureCoordLoc);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        pendingRequests.addAll(requests);
+    }
+
+    /**
+     * @return null表示缓冲都在压缩中
+     */
+    private ByteBuffer obtainBuffer(int size, boolean force) {
+        synchronized (freeBuffers) {
+            while (!freeBuffers.isEmpty()) {
+                ByteBuffer buffer = freeBuffers.remove(freeBuffers.size() - 1);
+                if (buffer.capacity() == size) {
+                    buffer.clear();
+                    return buffer;
+                }
+                // 画面大小变了，丢弃旧的
+                bufferCount--;
+            }
+            if (bufferCount >= MAX_BUFFER_COUNT && !force) {
+                return null;
+            }
+            bufferCount++;
+            return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private void recycleBuffer(ByteBuffer buffer) {
+        synchronized (freeBuffers) {
+            if (bufferCount > MAX_BUFFER_COUNT) {
+                // release时临时分配的
+                bufferCount--;
+            } else {
+                freeBuffers.add(buffer);
+            }
+        }
+    }
+
+    private static boolean write(ByteBuffer pixels, int width, int height, Request request) {
+        pixels.position(0);
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.copyPixelsFromBuffer(pixels);
+        File file = new File(request.path);
+        File folder = file.getParentFile();
+        if (folder != null && !folder.exists() && !folder.mkdirs()) {
+            Log.e(TAG, "can not create folder " + folder);
+            bitmap.recycle();
+            return false;
+        }
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            return bitmap.compress(Bitmap.CompressFormat.JPEG, request.quality, out);
+        } catch (IOException e) {
+            Log.e(TAG, "write snapshot failed", e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            bitmap.recycle();
+        }
+    }
+
+    static void deliver(Request request, boolean success) {
+        if (request.listener != null) {
+            CallbackDelivery.getInstance().post(new SnapshotRunable(request.listener, request.path, success));
+        }
+    }
+
+    /**
+     * 渲染线程在离屏上下文中调用，等待读回的拍照会立即读回，已经提交的拍照仍会完成
+     */
+    void release() {
+        readPending(true);
+        deleteFrameBuffer();
+        if (glProgram != 0) {
+            GLES20.glDeleteProgram(glProgram);
+            glProgram = 0;
+        }
+        if (mWorkThread != null) {
+            mWorkThread.quitSafely();
+            mWorkThread = null;
+            mWorkHandler = null;
+        }
+    }
+
+    private void deleteFrameBuffer() {
+        if (frameBuffer[0] != 0) {
+            GLES20.glDeleteFramebuffers(1, frameBuffer, 0);
+            GLES20.glDeleteTextures(1, frameBufferTexture, 0);
+            frameBuffer[0] = 0;
+            frameBufferTexture[0] = 0;
+        }
+    }
+
+    static class Request {
+        final String path;
+        final int quality;
+        final ISnapshotListener listener;
+
+        Request(String path, int quality, ISnapshotListener listener) {
+            if (path == null || quality < 0 || quality > 100) {
+                throw new IllegalArgumentException("invalid snapshot " + path + " quality " + quality);
+            }
+            this.path = path;
+            this.quality = quality;
+            this.listener = listener;
+        }
+    }
+}
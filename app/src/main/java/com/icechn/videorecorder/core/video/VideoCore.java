@@ -1,5 +1,6 @@
 package com.icechn.videorecorder.core.video;
 
+import android.content.Context;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.media.MediaCodec;
@@ -19,12 +20,17 @@ import android.util.Log;
 import android.view.Surface;
 
 import com.icechn.videorecorder.client.CallbackDelivery;
+import com.icechn.videorecorder.core.EncoderCapabilities;
+import com.icechn.videorecorder.core.EncoderStatsCollector;
 import com.icechn.videorecorder.core.GLHelper;
 import com.icechn.videorecorder.core.MediaCodecHelper;
+import com.icechn.videorecorder.core.listener.IFrameTapListener;
+import com.icechn.videorecorder.core.listener.ISnapshotListener;
 import com.icechn.videorecorder.core.listener.IVideoChange;
 import com.icechn.videorecorder.core.listener.IVideoChange.VideoChangeRunable;
 import com.icechn.videorecorder.encoder.MediaMuxerWrapper;
 import com.icechn.videorecorder.filter.hardvideofilter.BaseHardVideoFilter;
+import com.icechn.videorecorder.filter.image.ImageAtlasCache;
 import com.icechn.videorecorder.model.MediaMakerConfig;
 import com.icechn.videorecorder.model.MediaCodecGLWapper;
 import com.icechn.videorecorder.model.MediaConfig;
@@ -35,6 +41,7 @@ import com.icechn.videorecorder.model.Size;
 
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
+import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -48,6 +55,9 @@ public class VideoCore implements IVideoCore {
 
     private final Object mSyncObj = new Object();
     private final MediaMakerConfig mMediaMakerConfig;
+    private final Context mContext;
+    // RecordConfig中按AVC给出的码率，编码器回退时按实际编码重新换算
+    private int requestedBitRate;
 
     // filter
     private Lock lockVideoFilter;
@@ -56,7 +66,8 @@ public class VideoCore implements IVideoCore {
     private MediaFormat dstVideoFormat;
     private final Object syncPreview = new Object();
     private HandlerThread videoGLHandlerThread;
-    private VideoGLHandler videoGLHandler;
+    // 编码线程会不加锁地读取，见resetBitrate
+    private volatile VideoGLHandler videoGLHandler;
 
     final private Object syncVideoChangeListener = new Object();
     private IVideoChange mVideoChangeListener;
@@ -64,29 +75,52 @@ public class VideoCore implements IVideoCore {
     private boolean isPreviewing = false;
     private boolean isStreaming = false;
     private int loopingInterval;
+    private volatile long recordStartRequestTime;
+    private volatile EncoderStatsCollector encoderStatsCollector;
 
-    public VideoCore(MediaMakerConfig parameters) {
+    public VideoCore(Context context, MediaMakerConfig parameters) {
+        mContext = context;
         mMediaMakerConfig = parameters;
         lockVideoFilter = new ReentrantLock(false);
     }
 
     public void onFrameAvailable() {
-        if (videoGLHandlerThread != null) {
-            videoGLHandler.addFrameNum();
+        VideoGLHandler handler = videoGLHandler;
+        if (handler != null) {
+            handler.addFrameNum();
         }
     }
 
+    /**
+     * @return 该编码下与AVC码率画质相当的码率
+     */
+    private static int getCodecBitRate(String codec, int avcBitRate) {
+        if (MediaMakerConfig.VIDEO_CODEC_HEVC.equals(codec)) {
+            return (int) (avcBitRate * MediaMakerConfig.HEVC_BITRATE_RATIO);
+        }
+        return avcBitRate;
+    }
+
     @Override
     public boolean prepare(RecordConfig resConfig) {
         synchronized (mSyncObj) {
             mMediaMakerConfig.renderingMode = resConfig.getRenderingMode();
-            mMediaMakerConfig.mediaCodecAVCBitRate = resConfig.getBitRate();
+            requestedBitRate = resConfig.getBitRate();
+            mMediaMakerConfig.mediaCodecAVCBitRate = getCodecBitRate(mMediaMakerConfig.videoCodec, requestedBitRate);
+            mMediaMakerConfig.videoStorageBudget = resConfig.getVideoStorageBudget();
+            mMediaMakerConfig.keyFrameAlignInterval = resConfig.getKeyFrameAlignInterval();
+            mMediaMakerConfig.videoBufferInput = resConfig.isVideoBufferInput();
+            mMediaMakerConfig.proxyVideoScale = resConfig.getProxyVideoScale();
+            mMediaMakerConfig.proxyBitRate = resConfig.getProxyBitRate();
+            if (mMediaMakerConfig.videoStorageBudget > 0) {
+                // 从预算对应的码率开始，之后由BitrateController调节
+                mMediaMakerConfig.mediaCodecAVCBitRate = BitrateController.getTargetBitrate(mMediaMakerConfig.videoStorageBudget);
+            }
             mMediaMakerConfig.videoBufferQueueNum = resConfig.getVideoBufferQueueNum();
             mMediaMakerConfig.mediaCodecAVCIFrameInterval = resConfig.getVideoGOP();
             mMediaMakerConfig.mediaCodecAVCFrameRate = mMediaMakerConfig.videoFPS;
             loopingInterval = 1000 / mMediaMakerConfig.videoFPS;
-            // TODO "video/avc" 应该由业务方来设置？
-            dstVideoFormat = MediaFormat.createVideoFormat("video/avc", mMediaMakerConfig.previewVideoHeight, mMediaMakerConfig.previewVideoWidth);
+            dstVideoFormat = MediaFormat.createVideoFormat(mMediaMakerConfig.videoCodec, mMediaMakerConfig.previewVideoHeight, mMediaMakerConfig.previewVideoWidth);
             videoGLHandlerThread = new HandlerThread("GLThread");
             videoGLHandlerThread.start();
             videoGLHandler = new VideoGLHandler(videoGLHandlerThread.getLooper());
@@ -131,9 +165,16 @@ public class VideoCore implements IVideoCore {
     }
 
     @Override
-    public boolean startRecording(MediaMuxerWrapper muxer) {
+    public boolean startRecording(MediaMuxerWrapper muxer, MediaMuxerWrapper proxyMuxer) {
         synchronized (mSyncObj) {
-            videoGLHandler.sendMessage(videoGLHandler.obtainMessage(VideoGLHandler.WHAT_START_RECORDING, muxer));
+            recordStartRequestTime = SystemClock.uptimeMillis();
+            // 在调用线程retain，保证调用方之后立即release时日志不会在编码开始前关闭
+            EncoderStatsCollector statsCollector = encoderStatsCollector;
+            if (statsCollector != null) {
+                statsCollector.retain();
+            }
+            videoGLHandler.sendMessage(videoGLHandler.obtainMessage(VideoGLHandler.WHAT_START_RECORDING,
+                    new RecordingTarget(muxer, proxyMuxer, statsCollector)));
             synchronized (syncIsLooping) {
                 if (!isPreviewing && !isStreaming) {
                     videoGLHandler.removeMessages(VideoGLHandler.WHAT_DRAW);
@@ -167,19 +208,22 @@ public class VideoCore implements IVideoCore {
 
     @Override
     public boolean destroy() {
+        HandlerThread glThread;
         synchronized (mSyncObj) {
             videoGLHandler.sendEmptyMessage(VideoGLHandler.WHAT_UNINIT);
-            if (videoGLHandlerThread != null) {
-                videoGLHandlerThread.quitSafely();
-                try {
-                    videoGLHandlerThread.join();
-                } catch (InterruptedException ignored) {
-                }
-            }
+            glThread = videoGLHandlerThread;
             videoGLHandlerThread = null;
             videoGLHandler = null;
-            return true;
         }
+        // GL线程停止编码时要等待编码线程结束，不能持有mSyncObj等待GL线程
+        if (glThread != null) {
+            glThread.quitSafely();
+            try {
+                glThread.join();
+            } catch (InterruptedException ignored) {
+            }
+        }
+        return true;
     }
 
     @Override
@@ -219,6 +263,84 @@ public class VideoCore implements IVideoCore {
         }
     }
 
+    @Override
+    public void requestKeyFrame() {
+        synchronized (mSyncObj) {
+            if (videoGLHandler != null) {
+                videoGLHandler.sendEmptyMessage(VideoGLHandler.WHAT_REQUEST_SYNC_FRAME);
+            }
+        }
+    }
+
+    @Override
+    public void setEncoderStatsCollector(EncoderStatsCollector collector) {
+        encoderStatsCollector = collector;
+    }
+
+    @Override
+    public int getEncoderOutputQueueDepth() {
+        VideoSenderThread sender = getVideoSenderThread();
+        return sender != null ? sender.getOutputQueueDepth() : 0;
+    }
+
+    @Override
+    public int getEncodeLatencyMs() {
+        VideoSenderThread sender = getVideoSenderThread();
+        return sender != null ? sender.getEncodeLatencyMs() : 0;
+    }
+
+    private VideoSenderThread getVideoSenderThread() {
+        VideoGLHandler handler = videoGLHandler;
+        return handler != null ? handler.videoSenderThread : null;
+    }
+
+    /**
+     * 在VideoSenderThread中调用。GL线程停止编码时会join该线程，这里不能等待mSyncObj
+     */
+    private void resetBitrate(int bitrate) {
+        VideoGLHandler handler = videoGLHandler;
+        if (handler != null) {
+            handler.sendMessage(handler.obtainMessage(VideoGLHandler.WHAT_RESET_BITRATE, bitrate, 0));
+        }
+    }
+
+    @Override
+    public void setFrameTapListener(IFrameTapListener listener, int width, int height, int fps) {
+        synchronized (mSyncObj) {
+            if (videoGLHandler != null) {
+                FrameReadbackTap tap = listener == null ? null : new FrameReadbackTap(listener, width, height, fps);
+                videoGLHandler.sendMessage(videoGLHandler.obtainMessage(VideoGLHandler.WHAT_SET_FRAME_TAP, tap));
+            }
+        }
+    }
+
+    @Override
+    public void takeSnapshot(String path, int quality, ISnapshotListener listener) {
+        SnapshotWriter.Request request = new SnapshotWriter.Request(path, quality, listener);
+        synchronized (mSyncObj) {
+            if (videoGLHandler != null) {
+                videoGLHandler.sendMessage(videoGLHandler.obtainMessage(VideoGLHandler.WHAT_SNAPSHOT, request));
+                return;
+            }
+        }
+        SnapshotWriter.deliver(request, false);
+    }
+
+    /**
+     * WHAT_START_RECORDING的参数
+     */
+    private static class RecordingTarget {
+        final MediaMuxerWrapper muxer;
+        final MediaMuxerWrapper proxyMuxer;
+        final EncoderStatsCollector statsCollector;
+
+        RecordingTarget(MediaMuxerWrapper muxer, MediaMuxerWrapper proxyMuxer, EncoderStatsCollector statsCollector) {
+            this.muxer = muxer;
+            this.proxyMuxer = proxyMuxer;
+            this.statsCollector = statsCollector;
+        }
+    }
+
     private class VideoGLHandler extends Handler {
 
         static final int WHAT_INIT = 0x001;
@@ -233,6 +355,9 @@ public class VideoCore implements IVideoCore {
         static final int WHAT_RESET_BITRATE = 0x300;
         static final int WHAT_START_RECORDING = 0x500;
         static final int WHAT_STOP_RECORDING = 0x600;
+        static final int WHAT_SET_FRAME_TAP = 0x700;
+        static final int WHAT_SNAPSHOT = 0x800;
+        static final int WHAT_REQUEST_SYNC_FRAME = 0x900;
 
         static final int FILTER_LOCK_TOLERATION = 3; // 3ms
 
@@ -266,8 +391,24 @@ public class VideoCore implements IVideoCore {
         private BaseHardVideoFilter innerVideoFilter;
         private int directionFlag;
 
-        // sender
-        private VideoSenderThread videoSenderThread;
+        // cpu readback
+        private FrameReadbackTap frameReadbackTap;
+        // 本次录制的统计，编码输出线程结束后release
+        private EncoderStatsCollector recordingStatsCollector;
+        private final SnapshotWriter snapshotWriter = new SnapshotWriter();
+        private final ArrayList<SnapshotWriter.Request> pendingSnapshots = new ArrayList<>();
+
+        // sender，录制统计会在其它线程读取
+        private volatile VideoSenderThread videoSenderThread;
+        // 预热的编码器：已配置、输入Surface和EGL环境已建立，录制时才start
+        private Surface persistentInputSurface;
+        // buffer输入模式下代替mediaCodecGLWapper
+        private YuvReadbackInput yuvReadbackInput;
+        // 预览期间预先准备，录制期间编码
+        private ProxyVideoEncoder proxyVideoEncoder;
+        private boolean isEncoding = false;
+        // 下一个需要对齐的关键帧时间，-1表示录制的第一帧
+        private long nextAlignedKeyFrameTime = -1;
 
         boolean hasNewFrame = false;
         boolean dropNextFrame = false;
@@ -312,21 +453,25 @@ public class VideoCore implements IVideoCore {
                     synchronized (syncIsLooping) {
                         if (isPreviewing || isStreaming) {
                             if (interval > 0) {
-                                videoGLHandler.sendMessageDelayed(videoGLHandler.obtainMessage(
+                                sendMessageDelayed(obtainMessage(
                                         VideoGLHandler.WHAT_DRAW,
                                         SystemClock.uptimeMillis() + interval),
                                         interval);
                             } else {
-                                videoGLHandler.sendMessage(videoGLHandler.obtainMessage(
+                                sendMessage(obtainMessage(
                                         VideoGLHandler.WHAT_DRAW,
                                         SystemClock.uptimeMillis() + loopingInterval));
                             }
                         }
                     }
                     if (hasNewFrame) {
-                        drawFrameBuffer();
+                        drawFrameBuffer(time);
+                        drawFrameReadbackTap(time);
+                        alignKeyFrame(time);
                         drawMediaCodec(time * 1000000);
+                        drawProxyEncoder(time * 1000000);
                         drawPreviewScreen();
+                        captureSnapshots();
                         hasNewFrame = false;
                     }
                 }
@@ -336,18 +481,41 @@ public class VideoCore implements IVideoCore {
                 }
                 break;
                 case WHAT_UNINIT: {
+                    if (offScreenGLWrapper != null) {
+                        // 滤镜和缓存的纹理都属于离屏上下文
+                        GLHelper.makeCurrent(offScreenGLWrapper);
+                    }
                     lockVideoFilter.lock();
                     if (innerVideoFilter != null) {
                         innerVideoFilter.onDestroy();
                         innerVideoFilter = null;
                     }
                     lockVideoFilter.unlock();
+                    if (frameReadbackTap != null) {
+                        frameReadbackTap.destroy();
+                        frameReadbackTap = null;
+                    }
+                    for (SnapshotWriter.Request request : pendingSnapshots) {
+                        SnapshotWriter.deliver(request, false);
+                    }
+                    pendingSnapshots.clear();
+                    snapshotWriter.release();
+                    if (isEncoding) {
+                        stopEncoding();
+                    }
+                    releaseEncoder();
+                    if (offScreenGLWrapper != null) {
+                        ImageAtlasCache.clearCurrentContext();
+                    }
                     destroyOffScreenGL();
                 }
                 break;
                 case WHAT_START_PREVIEW: {
                     initPreviewScreenGL((SurfaceTexture) msg.obj);
                     updatePreviewSize(msg.arg1, msg.arg2);
+                    // 预览期间准备好编码器，开始录制时只需start
+                    prepareEncoder();
+                    prepareProxyEncoder();
                 }
                 break;
                 case WHAT_STOP_PREVIEW: {
@@ -357,46 +525,82 @@ public class VideoCore implements IVideoCore {
                         previewScreenTexture.release();
                         previewScreenTexture = null;
                     }
+                    if (!isEncoding) {
+                        // 不再预览也不在录制时不占用硬件编码器
+                        releaseEncoder();
+                    }
                 }
                 break;
                 case WHAT_START_RECORDING: {
-                    if (dstVideoEncoder == null) {
-                        dstVideoEncoder = MediaCodecHelper.createHardVideoMediaCodec(mMediaMakerConfig, dstVideoFormat);
-                        if (dstVideoEncoder == null) {
-                            throw new RuntimeException("create Video MediaCodec failed");
+                    RecordingTarget target = (RecordingTarget) msg.obj;
+                    if (isEncoding) {
+                        // 在Looper中抛出会让整个GL线程崩溃，重复的start直接忽略
+                        Log.w(TAG, "start recording while recording, ignored");
+                        if (target.statsCollector != null) {
+                            target.statsCollector.release();
                         }
+                        break;
                     }
-                    dstVideoEncoder.configure(dstVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-                    initMediaCodecGL(dstVideoEncoder.createInputSurface());
+                    boolean isPrewarmed = dstVideoEncoder != null;
+                    prepareEncoder();
                     dstVideoEncoder.start();
-                    MediaMuxerWrapper muxer = (MediaMuxerWrapper) msg.obj;
-                    videoSenderThread = new VideoSenderThread("VideoSenderThread", dstVideoEncoder, muxer);
+                    isEncoding = true;
+                    videoSenderThread = new VideoSenderThread("VideoSenderThread", dstVideoEncoder, target.muxer);
+                    videoSenderThread.setStartRequestTime(recordStartRequestTime, isPrewarmed);
+                    videoSenderThread.setStatsCollector(target.statsCollector);
+                    recordingStatsCollector = target.statsCollector;
+                    nextAlignedKeyFrameTime = -1;
+                    if (mMediaMakerConfig.videoStorageBudget > 0) {
+                        videoSenderThread.setBitrateController(new BitrateController(mMediaMakerConfig.videoStorageBudget,
+                                mMediaMakerConfig.mediaCodecAVCBitRate, new BitrateController.IBitrateChangeListener() {
+                            @Override
+                            public void onBitrateChange(int bitrate) {
+                                resetBitrate(bitrate);
+                            }
+                        }));
+                    }
                     videoSenderThread.start();
+                    if (target.proxyMuxer != null) {
+                        startProxyEncoder(target.proxyMuxer);
+                    }
                 }
                 break;
                 case WHAT_STOP_RECORDING:
                 case WHAT_STOP_STREAMING: {
-                    videoSenderThread.quit();
-                    try {
-                        videoSenderThread.join();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    videoSenderThread = null;
-                    destroyMediaCodecGL();
-                    dstVideoEncoder.stop();
-                    dstVideoEncoder.release();
-                    dstVideoEncoder = null;
+                    stopEncoding();
+                    rearmEncoder();
                 }
                 break;
                 case WHAT_RESET_BITRATE: {
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && mediaCodecGLWapper != null) {
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && isEncoding) {
                         Bundle bitrateBundle = new Bundle();
                         bitrateBundle.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, msg.arg1);
                         dstVideoEncoder.setParameters(bitrateBundle);
+                        // 编码器重建时沿用
+                        mMediaMakerConfig.mediaCodecAVCBitRate = msg.arg1;
                     }
                 }
                 break;
+                case WHAT_REQUEST_SYNC_FRAME: {
+                    requestSyncFrame();
+                }
+                break;
+                case WHAT_SET_FRAME_TAP: {
+                    GLHelper.makeCurrent(offScreenGLWrapper);
+                    if (frameReadbackTap != null) {
+                        frameReadbackTap.destroy();
+                    }
+                    frameReadbackTap = (FrameReadbackTap) msg.obj;
+                    if (frameReadbackTap != null) {
+                        frameReadbackTap.init();
+                    }
+                }
+                break;
+                case WHAT_SNAPSHOT: {
+                    // 等下一帧绘制完成后再读取
+                    pendingSnapshots.add((SnapshotWriter.Request) msg.obj);
+                }
+                break;
                 case WHAT_RESET_VIDEO: {
                     MediaMakerConfig newParameters = (MediaMakerConfig) msg.obj;
                     mMediaMakerConfig.videoWidth = newParameters.videoWidth;
@@ -404,18 +608,28 @@ public class VideoCore implements IVideoCore {
                     mMediaMakerConfig.cropRatio = newParameters.cropRatio;
                     updateCameraIndex(currCamera);
                     resetFrameBuff();
-                    if (mediaCodecGLWapper != null) {
-                        destroyMediaCodecGL();
-                        dstVideoEncoder.stop();
+                    if (dstVideoEncoder != null) {
+                        if (mediaCodecGLWapper != null) {
+                            destroyMediaCodecGL();
+                        }
+                        if (isEncoding) {
+                            dstVideoEncoder.stop();
+                        }
+                        if (yuvReadbackInput != null) {
+                            yuvReadbackInput.reset();
+                        }
                         dstVideoEncoder.release();
-                        dstVideoEncoder = MediaCodecHelper.createHardVideoMediaCodec(mMediaMakerConfig, dstVideoFormat);
-                        if (dstVideoEncoder == null) {
-                            throw new RuntimeException("create Video MediaCodec failed");
+                        dstVideoEncoder = null;
+                        prepareEncoder();
+                        if (isEncoding) {
+                            dstVideoEncoder.start();
+                            videoSenderThread.updateMediaCodec(dstVideoEncoder, mMediaMakerConfig.mediaCodecAVCBitRate);
                         }
-                        dstVideoEncoder.configure(dstVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-                        initMediaCodecGL(dstVideoEncoder.createInputSurface());
-                        dstVideoEncoder.start();
-                        videoSenderThread.updateMediaCodec(dstVideoEncoder);
+                    }
+                    if (proxyVideoEncoder != null && !proxyVideoEncoder.isStarted()) {
+                        // 预先准备的代理编码器按旧的大小创建，录制中的代理保持原大小
+                        releaseProxyEncoder();
+                        prepareProxyEncoder();
                     }
                     synchronized (syncVideoChangeListener) {
                         if (mVideoChangeListener != null) {
@@ -485,7 +699,7 @@ public class VideoCore implements IVideoCore {
             GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
         }
 
-        private void drawFrameBuffer() {
+        private void drawFrameBuffer(long timestampMs) {
             GLHelper.makeCurrent(offScreenGLWrapper);
             boolean isFilterLocked = lockVideoFilter();
             if (isFilterLocked) {
@@ -501,6 +715,7 @@ public class VideoCore implements IVideoCore {
                 if (innerVideoFilter != null) {
                     synchronized (syncCameraBufferObj) {
                         innerVideoFilter.onDirectionUpdate(directionFlag);
+                        innerVideoFilter.onFrameTimeUpdate(timestampMs);
                         innerVideoFilter.onDraw(sample2DFrameBufferTexture, frameBuffer,
                                 shapeVerticesBuffer, cameraTextureVerticesBuffer);
                     }
@@ -515,8 +730,280 @@ public class VideoCore implements IVideoCore {
             GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
         }
 
-        private void drawMediaCodec(long currTime) {
+        /**
+         * 创建并配置编码器和输入，不start。
+         * Surface输入不可用时改用buffer输入，之后不再尝试Surface输入
+         */
+        private void prepareEncoder() {
+            if (dstVideoEncoder != null) {
+                return;
+            }
+            long startTime = SystemClock.uptimeMillis();
+            if (!mMediaMakerConfig.videoBufferInput) {
+                try {
+                    prepareSurfaceInputEncoder();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "surface input encoder failed, fallback to buffer input", e);
+                    if (dstVideoEncoder != null) {
+                        dstVideoEncoder.release();
+                        dstVideoEncoder = null;
+                    }
+                    if (persistentInputSurface != null) {
+                        persistentInputSurface.release();
+                        persistentInputSurface = null;
+                    }
+                    if (mediaCodecGLWapper != null) {
+                        try {
+                            destroyMediaCodecGL();
+                        } catch (RuntimeException destroyError) {
+                            // 可能在initMediaCodecGL中途失败，无法makeCurrent时只释放已创建的EGL对象
+                            Log.e(TAG, "destroy MediaCodec GL failed", destroyError);
+                            if (mediaCodecGLWapper.eglSurface != null && mediaCodecGLWapper.eglSurface != EGL14.EGL_NO_SURFACE) {
+                                EGL14.eglDestroySurface(mediaCodecGLWapper.eglDisplay, mediaCodecGLWapper.eglSurface);
+                            }
+                            if (mediaCodecGLWapper.eglContext != null && mediaCodecGLWapper.eglContext != EGL14.EGL_NO_CONTEXT) {
+                                EGL14.eglDestroyContext(mediaCodecGLWapper.eglDisplay, mediaCodecGLWapper.eglContext);
+                            }
+                        }
+                        mediaCodecGLWapper = null;
+                    }
+                    mMediaMakerConfig.videoBufferInput = true;
+                }
+            }
+            if (mMediaMakerConfig.videoBufferInput) {
+                prepareBufferInputEncoder();
+            }
+            Log.d(TAG, "prepareEncoder cost " + (SystemClock.uptimeMillis() - startTime) + "ms");
+        }
+
+        /**
+         * 6.0以上使用persistent input surface，之后的录制只需要重新configure编码器
+         */
+        private void prepareSurfaceInputEncoder() {
+            dstVideoEncoder = createVideoEncoder();
+            Surface inputSurface;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                if (persistentInputSurface == null) {
+                    persistentInputSurface = MediaCodec.createPersistentInputSurface();
+                }
+                dstVideoEncoder.setInputSurface(persistentInputSurface);
+                inputSurface = persistentInputSurface;
+            } else {
+                inputSurface = dstVideoEncoder.createInputSurface();
+            }
+            if (mediaCodecGLWapper == null) {
+                initMediaCodecGL(inputSurface);
+            }
+        }
+
+        /**
+         * YUV420编码器，按滤镜输出的大小编码，颜色转换由{@link YuvReadbackInput}在GPU上完成
+         */
+        private void prepareBufferInputEncoder() {
+            dstVideoFormat = MediaFormat.createVideoFormat(mMediaMakerConfig.videoCodec, mMediaMakerConfig.videoWidth, mMediaMakerConfig.videoHeight);
+            dstVideoEncoder = MediaCodecHelper.createSoftVideoMediaCodec(mMediaMakerConfig, dstVideoFormat);
+            if (dstVideoEncoder == null) {
+                throw new RuntimeException("create buffer input Video MediaCodec failed");
+            }
+            dstVideoEncoder.configure(dstVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            if (yuvReadbackInput != null && !yuvReadbackInput.isSize(mMediaMakerConfig.videoWidth, mMediaMakerConfig.videoHeight)) {
+                destroyYuvReadbackInput();
+            }
+            if (yuvReadbackInput == null) {
+                GLHelper.makeCurrent(offScreenGLWrapper);
+                yuvReadbackInput = new YuvReadbackInput(mMediaMakerConfig.videoWidth, mMediaMakerConfig.videoHeight,
+                        mMediaMakerConfig.mediaCodecAVCColorFormat);
+                yuvReadbackInput.init();
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                yuvReadbackInput.setInputFormat(dstVideoEncoder.getInputFormat());
+            } else {
+                yuvReadbackInput.setInputFormat(null);
+            }
+        }
+
+        private void destroyYuvReadbackInput() {
+            GLHelper.makeCurrent(offScreenGLWrapper);
+            yuvReadbackInput.destroy();
+            yuvReadbackInput = null;
+        }
+
+        /**
+         * GL线程调用，不持有任何VideoCore的锁：编码线程可能正在回调resetBitrate
+         */
+        private void stopEncoding() {
+            if (proxyVideoEncoder != null && proxyVideoEncoder.isStarted()) {
+                proxyVideoEncoder.stop();
+                proxyVideoEncoder = null;
+            }
+            videoSenderThread.quit();
+            try {
+                videoSenderThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            videoSenderThread = null;
+            if (recordingStatsCollector != null) {
+                // 编码输出线程已经结束，不会再写入统计
+                recordingStatsCollector.release();
+                recordingStatsCollector = null;
+            }
+            dstVideoEncoder.stop();
+            if (yuvReadbackInput != null) {
+                yuvReadbackInput.reset();
+            }
+            isEncoding = false;
+        }
+
+        /**
+         * 录制结束、编码器stop之后调用，为下一次录制重新准备
+         */
+        private void rearmEncoder() {
+            if (previewScreenGLWapper == null) {
+                // 不再预览也不在录制时不占用硬件编码器，与WHAT_STOP_PREVIEW一致
+                releaseEncoder();
+            } else if (persistentInputSurface != null) {
+                // 同一个编码器和EGL surface可以继续使用，只需要重新configure
+                dstVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, mMediaMakerConfig.mediaCodecAVCBitRate);
+                dstVideoEncoder.configure(dstVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                dstVideoEncoder.setInputSurface(persistentInputSurface);
+                prepareProxyEncoder();
+            } else {
+                // 普通输入Surface属于上一次configure，只能重建
+                releaseEncoder();
+                prepareEncoder();
+                prepareProxyEncoder();
+            }
+        }
+
+        private void releaseEncoder() {
+            if (isEncoding) {
+                throw new IllegalStateException("releaseEncoder while recording");
+            }
             if (mediaCodecGLWapper != null) {
+                destroyMediaCodecGL();
+            }
+            if (yuvReadbackInput != null) {
+                destroyYuvReadbackInput();
+            }
+            if (dstVideoEncoder != null) {
+                dstVideoEncoder.release();
+                dstVideoEncoder = null;
+            }
+            if (persistentInputSurface != null) {
+                persistentInputSurface.release();
+                persistentInputSurface = null;
+            }
+            releaseProxyEncoder();
+        }
+
+        /**
+         * 创建并配置编码器，HEVC编码器配置失败时回退到AVC
+         */
+        private MediaCodec createVideoEncoder() {
+            MediaCodec encoder = MediaCodecHelper.createHardVideoMediaCodec(mMediaMakerConfig, dstVideoFormat);
+            if (encoder != null) {
+                try {
+                    encoder.configure(dstVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                    return encoder;
+                } catch (RuntimeException e) {
+                    encoder.release();
+                    if (!MediaMakerConfig.VIDEO_CODEC_HEVC.equals(mMediaMakerConfig.videoCodec)) {
+                        throw e;
+                    }
+                    Log.e(TAG, "configure HEVC encoder failed, fallback to AVC", e);
+                }
+            } else if (!MediaMakerConfig.VIDEO_CODEC_HEVC.equals(mMediaMakerConfig.videoCodec)) {
+                throw new RuntimeException("create Video MediaCodec failed");
+            }
+            EncoderCapabilities capabilities = EncoderCapabilities.get(mContext, MediaMakerConfig.VIDEO_CODEC_AVC);
+            if (capabilities != null) {
+                // 使用探测出的AVC编码器名，而不是由系统按mime任选一个
+                capabilities.applyTo(mMediaMakerConfig, mMediaMakerConfig.previewVideoHeight,
+                        mMediaMakerConfig.previewVideoWidth, mMediaMakerConfig.videoFPS);
+            } else {
+                mMediaMakerConfig.videoCodec = MediaMakerConfig.VIDEO_CODEC_AVC;
+                mMediaMakerConfig.mediaCodecAVCName = null;
+            }
+            if (mMediaMakerConfig.videoStorageBudget <= 0) {
+                // 按预算调节时码率来自实际输出大小，与编码无关
+                mMediaMakerConfig.mediaCodecAVCBitRate = getCodecBitRate(mMediaMakerConfig.videoCodec, requestedBitRate);
+            }
+            dstVideoFormat = MediaFormat.createVideoFormat(mMediaMakerConfig.videoCodec, mMediaMakerConfig.previewVideoHeight, mMediaMakerConfig.previewVideoWidth);
+            encoder = MediaCodecHelper.createHardVideoMediaCodec(mMediaMakerConfig, dstVideoFormat);
+            if (encoder == null) {
+                throw new RuntimeException("create Video MediaCodec failed");
+            }
+            encoder.configure(dstVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            return encoder;
+        }
+
+        /**
+         * 让下一帧输出为IDR，需要在该帧送入编码器之前调用
+         */
+        private void requestSyncFrame() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && isEncoding) {
+                Bundle syncBundle = new Bundle();
+                syncBundle.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                dstVideoEncoder.setParameters(syncBundle);
+            }
+            if (proxyVideoEncoder != null) {
+                proxyVideoEncoder.requestSyncFrame();
+            }
+        }
+
+        /**
+         * 录制开始后每隔keyFrameAlignInterval，第一个到达的帧强制为关键帧，
+         * 编码器的第一帧本身就是关键帧，从它开始计时
+         */
+        private void alignKeyFrame(long timeMs) {
+            int interval = mMediaMakerConfig.keyFrameAlignInterval;
+            if (interval <= 0 || !isEncoding) {
+                return;
+            }
+            if (nextAlignedKeyFrameTime < 0) {
+                nextAlignedKeyFrameTime = timeMs + interval;
+            } else if (timeMs >= nextAlignedKeyFrameTime) {
+                requestSyncFrame();
+                // 卡顿跳过的边界不再补
+                while (nextAlignedKeyFrameTime <= timeMs) {
+                    nextAlignedKeyFrameTime += interval;
+                }
+            }
+        }
+
+        private void drawFrameReadbackTap(long timestampMs) {
+            if (frameReadbackTap != null) {
+                // drawFrameBuffer之后仍是离屏上下文
+                frameReadbackTap.onFrame(frameBufferTexture, shapeVerticesBuffer, drawIndexesBuffer, timestampMs);
+            }
+        }
+
+        /**
+         * 编码和预览都提交之后再处理：先读回上一帧拷贝的拍照，再拷贝本帧，不影响本帧的录制
+         */
+        private void captureSnapshots() {
+            if (pendingSnapshots.isEmpty() && !snapshotWriter.hasPending()) {
+                return;
+            }
+            GLHelper.makeCurrent(offScreenGLWrapper);
+            snapshotWriter.onFrame();
+            if (pendingSnapshots.isEmpty() || snapshotWriter.hasPending()) {
+                // 上一次拍照的读回被推迟时，新的拍照留到之后的帧
+                return;
+            }
+            snapshotWriter.capture(frameBufferTexture, mMediaMakerConfig.videoWidth, mMediaMakerConfig.videoHeight,
+                    shapeVerticesBuffer, drawIndexesBuffer, pendingSnapshots);
+            pendingSnapshots.clear();
+        }
+
+        private void drawMediaCodec(long currTime) {
+            if (yuvReadbackInput != null && isEncoding) {
+                GLHelper.makeCurrent(offScreenGLWrapper);
+                yuvReadbackInput.onFrame(dstVideoEncoder, frameBufferTexture, shapeVerticesBuffer, drawIndexesBuffer, currTime / 1000);
+                return;
+            }
+            if (mediaCodecGLWapper != null && isEncoding) {
                 GLHelper.makeCurrent(mediaCodecGLWapper);
                 GLES20.glUseProgram(mediaCodecGLWapper.drawProgram);
                 GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
@@ -536,6 +1023,62 @@ public class VideoCore implements IVideoCore {
             }
         }
 
+        /**
+         * 设置了代理视频时与主编码器一起准备，代理视频的大小按滤镜输出等比缩放并向下对齐到16。
+         * 失败时只放弃代理视频
+         */
+        private void prepareProxyEncoder() {
+            if (proxyVideoEncoder != null || mMediaMakerConfig.proxyVideoScale <= 0 || mMediaMakerConfig.proxyVideoPath == null) {
+                return;
+            }
+            int width = (int) (mMediaMakerConfig.videoWidth * mMediaMakerConfig.proxyVideoScale) / 16 * 16;
+            int height = (int) (mMediaMakerConfig.videoHeight * mMediaMakerConfig.proxyVideoScale) / 16 * 16;
+            try {
+                ProxyVideoEncoder encoder = new ProxyVideoEncoder(width, height, mMediaMakerConfig.proxyBitRate,
+                        mMediaMakerConfig.mediaCodecAVCFrameRate, mMediaMakerConfig.mediaCodecAVCIFrameInterval);
+                encoder.prepare(offScreenGLWrapper.eglContext);
+                proxyVideoEncoder = encoder;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "prepare proxy encoder failed", e);
+            }
+        }
+
+        /**
+         * 没有预先准备时在这里准备，失败时放弃整个代理输出，主录制不受影响
+         */
+        private void startProxyEncoder(MediaMuxerWrapper proxyMuxer) {
+            prepareProxyEncoder();
+            if (proxyVideoEncoder != null) {
+                try {
+                    proxyVideoEncoder.start(proxyMuxer);
+                    return;
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "start proxy encoder failed", e);
+                    releaseProxyEncoder();
+                }
+            }
+            Log.w(TAG, "recording without proxy");
+            // 之后的音频数据和分段切换都被忽略，删除未写入的文件
+            proxyMuxer.release();
+        }
+
+        /**
+         * 释放没有start的代理编码器，录制中的由stopEncoding停止
+         */
+        private void releaseProxyEncoder() {
+            if (proxyVideoEncoder != null && !proxyVideoEncoder.isStarted()) {
+                proxyVideoEncoder.release();
+                proxyVideoEncoder = null;
+            }
+        }
+
+        private void drawProxyEncoder(long currTime) {
+            if (proxyVideoEncoder != null && proxyVideoEncoder.isStarted()) {
+                proxyVideoEncoder.onFrame(frameBufferTexture, shapeVerticesBuffer, mediaCodecTextureVerticesBuffer,
+                        drawIndexesBuffer, currTime);
+            }
+        }
+
         private void drawPreviewScreen() {
             if (previewScreenGLWapper != null) {
                 GLHelper.makeCurrent(previewScreenGLWapper);
@@ -621,7 +1164,7 @@ public class VideoCore implements IVideoCore {
                 GLES20.glDeleteTextures(1, new int[]{sample2DFrameBufferTexture}, 0);
                 EGL14.eglDestroySurface(offScreenGLWrapper.eglDisplay, offScreenGLWrapper.eglSurface);
                 EGL14.eglDestroyContext(offScreenGLWrapper.eglDisplay, offScreenGLWrapper.eglContext);
-                EGL14.eglTerminate(offScreenGLWrapper.eglDisplay);
+                GLHelper.terminateDisplay(offScreenGLWrapper.eglDisplay);
                 EGL14.eglMakeCurrent(offScreenGLWrapper.eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
             } else {
                 throw new IllegalStateException("destroyOffScreenGL without initOffScreenGL");
@@ -650,7 +1193,7 @@ public class VideoCore implements IVideoCore {
                 GLES20.glDeleteProgram(previewScreenGLWapper.drawProgram);
                 EGL14.eglDestroySurface(previewScreenGLWapper.eglDisplay, previewScreenGLWapper.eglSurface);
                 EGL14.eglDestroyContext(previewScreenGLWapper.eglDisplay, previewScreenGLWapper.eglContext);
-                EGL14.eglTerminate(previewScreenGLWapper.eglDisplay);
+                GLHelper.terminateDisplay(previewScreenGLWapper.eglDisplay);
                 EGL14.eglMakeCurrent(previewScreenGLWapper.eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
                 previewScreenGLWapper = null;
             } else {
@@ -680,7 +1223,7 @@ public class VideoCore implements IVideoCore {
                 GLES20.glDeleteProgram(mediaCodecGLWapper.drawProgram);
                 EGL14.eglDestroySurface(mediaCodecGLWapper.eglDisplay, mediaCodecGLWapper.eglSurface);
                 EGL14.eglDestroyContext(mediaCodecGLWapper.eglDisplay, mediaCodecGLWapper.eglContext);
-                EGL14.eglTerminate(mediaCodecGLWapper.eglDisplay);
+                GLHelper.terminateDisplay(mediaCodecGLWapper.eglDisplay);
                 EGL14.eglMakeCurrent(mediaCodecGLWapper.eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
                 mediaCodecGLWapper = null;
             } else {
@@ -2,9 +2,13 @@ package com.icechn.videorecorder.core.video;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.icechn.videorecorder.core.EncoderStatsCollector;
+import com.icechn.videorecorder.core.NalUnitScanner;
 import com.icechn.videorecorder.encoder.MediaMuxerWrapper;
+import com.icechn.videorecorder.model.MediaMakerConfig;
 
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
@@ -13,11 +17,28 @@ import java.nio.ByteBuffer;
  * Created by lakeinchina on 26/05/16.
  */
 public class VideoSenderThread extends Thread {
-    private static final long WAIT_TIME = 5000;
+    private static final String TAG = "VideoSenderThread";
+    // 等待编码器输出的超时，也是quit的最长响应时间
+    private static final long WAIT_TIME = 10000;
+    private static final long METRICS_INTERVAL = 1000;
     private MediaCodec.BufferInfo eInfo;
     private long startTime = 0;
-    private MediaCodec dstVideoEncoder;
+    private volatile MediaCodec dstVideoEncoder;
+    private final NalUnitScanner nalScanner = new NalUnitScanner();
+    private boolean isHevc;
     private final Object syncDstVideoEncoder = new Object();
+    private BitrateController bitrateController;
+    private EncoderStatsCollector statsCollector;
+    // 调用startRecording的时间，用于统计到第一帧写入的延迟
+    private long startRequestTime = -1;
+    private boolean isEncoderPrewarmed;
+    private volatile int outputQueueDepth;
+    private volatile int encodeLatencyMs;
+    private long metricsStartTime;
+    private int metricsFrames;
+    private long metricsLatencySumUs;
+    private long metricsMaxLatencyUs;
+    private int metricsMaxDepth;
 
     VideoSenderThread(String name, MediaCodec encoder, MediaMuxerWrapper muxer) {
         super(name);
@@ -27,13 +48,41 @@ public class VideoSenderThread extends Thread {
         mWeakMuxer = new WeakReference<MediaMuxerWrapper>(muxer);
     }
 
-    public void updateMediaCodec(MediaCodec encoder) {
+    /**
+     * 需要在start之前调用
+     */
+    void setStartRequestTime(long uptimeMs, boolean isPrewarmed) {
+        startRequestTime = uptimeMs;
+        isEncoderPrewarmed = isPrewarmed;
+    }
+
+    /**
+     * 需要在start之前调用
+     */
+    void setBitrateController(BitrateController controller) {
+        bitrateController = controller;
+    }
+
+    /**
+     * 需要在start之前调用
+     */
+    void setStatsCollector(EncoderStatsCollector collector) {
+        statsCollector = collector;
+    }
+
+    /**
+     * @param bitrate 新编码器的初始码率
+     */
+    public void updateMediaCodec(MediaCodec encoder, int bitrate) {
         synchronized (syncDstVideoEncoder) {
             dstVideoEncoder = encoder;
+            if (bitrateController != null) {
+                bitrateController.reset(bitrate);
+            }
         }
     }
 
-    private boolean shouldQuit = false;
+    private volatile boolean shouldQuit = false;
 
     void quit() {
         shouldQuit = true;
@@ -44,7 +93,7 @@ public class VideoSenderThread extends Thread {
                 try {
                     muxer.stop();
                 } catch (final Exception e) {
-                    Log.e("VideoSenderThread", "failed stopping muxer", e);
+                    Log.e(TAG, "failed stopping muxer", e);
                 }
             }
         }
@@ -54,61 +103,157 @@ public class VideoSenderThread extends Thread {
     public void run() {
         final MediaMuxerWrapper muxer = mWeakMuxer != null ? mWeakMuxer.get() : null;
         boolean isMuxerEnable = muxer != null;
-        Log.w("VideoSenderThread", "muxer enable:"+isMuxerEnable);
+        Log.w(TAG, "muxer enable:"+isMuxerEnable);
         while (!shouldQuit) {
-            synchronized (syncDstVideoEncoder) {
-                int eobIndex = MediaCodec.INFO_TRY_AGAIN_LATER;
-                try {
-                    eobIndex = dstVideoEncoder.dequeueOutputBuffer(eInfo, WAIT_TIME);
-                } catch (Exception ignored) {
-                }
-                switch (eobIndex) {
-                    case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                        Log.d("","VideoSenderThread,MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED");
-                        break;
-                    case MediaCodec.INFO_TRY_AGAIN_LATER:
-//                        Log.d("","VideoSenderThread,MediaCodec.INFO_TRY_AGAIN_LATER");
-                        break;
-                    case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                        Log.d("","VideoSenderThread,MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:" +
-                                dstVideoEncoder.getOutputFormat().toString());
-                        if (isMuxerEnable) {
-                            //addTrack
-                            final MediaFormat format = dstVideoEncoder.getOutputFormat(); // API >= 16
-                            mTrackIndex = muxer.addTrack(format);
-                            muxer.start();
-                            mMuxerStarted = true;
-                        }
-                        break;
-                    default:
-                        Log.d("","VideoSenderThread,MediaCode,eobIndex=" + eobIndex);
-                        if (startTime == 0) {
-                            startTime = eInfo.presentationTimeUs / 1000;
-                        }
-                        /**
-                         * we send sps pps already in INFO_OUTPUT_FORMAT_CHANGED
-                         * so we ignore MediaCodec.BUFFER_FLAG_CODEC_CONFIG
-                         */
-                        if (eInfo.flags != MediaCodec.BUFFER_FLAG_CODEC_CONFIG && eInfo.size != 0) {
-                            ByteBuffer realData = dstVideoEncoder.getOutputBuffers()[eobIndex];
-                            realData.position(eInfo.offset + 4);
-                            realData.limit(eInfo.offset + eInfo.size);
-                            if (isMuxerEnable && mMuxerStarted) {
-                                eInfo.presentationTimeUs = getPTSUs();
-                                muxer.writeSampleData(mTrackIndex, realData, eInfo);
-                                prevOutputPTSUs = eInfo.presentationTimeUs;
-                            }
-                        }
-                        dstVideoEncoder.releaseOutputBuffer(eobIndex, false);
+            MediaCodec encoder = dstVideoEncoder;
+            // 阻塞在编码器上直到有输出，不再sleep
+            int eobIndex = dequeue(encoder, WAIT_TIME);
+            int drained = 0;
+            // 取空所有已经就绪的输出再等待
+            while (eobIndex != MediaCodec.INFO_TRY_AGAIN_LATER && !shouldQuit) {
+                synchronized (syncDstVideoEncoder) {
+                    if (encoder != dstVideoEncoder) {
+                        // 编码器已被替换，旧编码器剩下的输出丢弃
                         break;
+                    }
+                    handleOutput(encoder, eobIndex, muxer);
+                }
+                if (eobIndex >= 0) {
+                    drained++;
                 }
+                eobIndex = dequeue(encoder, 0);
             }
+            if (drained > 0) {
+                outputQueueDepth = drained;
+                onDrained(drained);
+            }
+        }
+        eInfo = null;
+    }
+
+    private int dequeue(MediaCodec encoder, long timeoutUs) {
+        try {
+            return encoder.dequeueOutputBuffer(eInfo, timeoutUs);
+        } catch (IllegalStateException e) {
+            // 编码器正在重建，等新的编码器设置进来
             try {
-                sleep(5);
+                sleep(1);
             } catch (InterruptedException ignored) {
             }
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
         }
-        eInfo = null;
+    }
+
+    private void handleOutput(MediaCodec encoder, int eobIndex, MediaMuxerWrapper muxer) {
+        boolean isMuxerEnable = muxer != null;
+        switch (eobIndex) {
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                Log.d("","VideoSenderThread,MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED");
+                break;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                Log.d("","VideoSenderThread,MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:" +
+                        encoder.getOutputFormat().toString());
+                final MediaFormat format = encoder.getOutputFormat(); // API >= 16
+                isHevc = MediaMakerConfig.VIDEO_CODEC_HEVC.equals(format.getString(MediaFormat.KEY_MIME));
+                if (isMuxerEnable) {
+                    //addTrack
+                    mTrackIndex = muxer.addTrack(format);
+                    muxer.start();
+                    mMuxerStarted = true;
+                }
+                break;
+            default:
+                if (eobIndex < 0) {
+                    break;
+                }
+                if (startTime == 0) {
+                    startTime = eInfo.presentationTimeUs / 1000;
+                }
+                /**
+                 * we send sps pps already in INFO_OUTPUT_FORMAT_CHANGED
+                 * so we ignore MediaCodec.BUFFER_FLAG_CODEC_CONFIG
+                 */
+                if (eInfo.flags != MediaCodec.BUFFER_FLAG_CODEC_CONFIG && eInfo.size != 0) {
+                    // 输入时间戳是绘制时的uptime
+                    long inputPtsUs = eInfo.presentationTimeUs;
+                    long latencyUs = SystemClock.uptimeMillis() * 1000 - inputPtsUs;
+                    encodeLatencyMs = (int) (latencyUs / 1000);
+                    onEncodeLatency(latencyUs);
+                    ByteBuffer realData = encoder.getOutputBuffers()[eobIndex];
+                    realData.limit(eInfo.offset + eInfo.size);
+                    realData.position(eInfo.offset);
+                    // 起始码可能是3或4字节，前面还可能有重复的参数集，muxer按BufferInfo的offset和size读取
+                    int pictureOffset = nalScanner.findFirstPictureNal(realData, isHevc);
+                    if (pictureOffset >= 0) {
+                        eInfo.size = eInfo.offset + eInfo.size - pictureOffset;
+                        eInfo.offset = pictureOffset;
+                        realData.position(pictureOffset);
+                        if (statsCollector != null) {
+                            statsCollector.onVideoFrame(realData, pictureOffset, pictureOffset + eInfo.size, isHevc,
+                                    (eInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0,
+                                    eInfo.size, inputPtsUs, latencyUs);
+                        }
+                    }
+                    if (pictureOffset >= 0 && isMuxerEnable && mMuxerStarted) {
+                        eInfo.presentationTimeUs = getPTSUs();
+                        muxer.writeSampleData(mTrackIndex, realData, eInfo);
+                        prevOutputPTSUs = eInfo.presentationTimeUs;
+                        if (startRequestTime >= 0) {
+                            Log.i(TAG, "start_latency_ms=" + (SystemClock.uptimeMillis() - startRequestTime)
+                                    + " prewarmed=" + isEncoderPrewarmed);
+                            startRequestTime = -1;
+                        }
+                        if (bitrateController != null) {
+                            bitrateController.onEncodedFrame(eInfo.size, eInfo.presentationTimeUs);
+                        }
+                    }
+                }
+                encoder.releaseOutputBuffer(eobIndex, false);
+                break;
+        }
+    }
+
+    private void onDrained(int drained) {
+        if (drained > metricsMaxDepth) {
+            metricsMaxDepth = drained;
+        }
+    }
+
+    private void onEncodeLatency(long latencyUs) {
+        long now = SystemClock.uptimeMillis();
+        if (metricsStartTime == 0) {
+            metricsStartTime = now;
+        }
+        metricsFrames++;
+        metricsLatencySumUs += latencyUs;
+        if (latencyUs > metricsMaxLatencyUs) {
+            metricsMaxLatencyUs = latencyUs;
+        }
+        if (now - metricsStartTime >= METRICS_INTERVAL) {
+            Log.i(TAG, "sender_metrics frames=" + metricsFrames
+                    + " avg_latency_ms=" + metricsLatencySumUs / metricsFrames / 1000f
+                    + " max_latency_ms=" + metricsMaxLatencyUs / 1000f
+                    + " max_queue_depth=" + metricsMaxDepth);
+            metricsStartTime = now;
+            metricsFrames = 0;
+            metricsLatencySumUs = 0;
+            metricsMaxLatencyUs = 0;
+            metricsMaxDepth = 0;
+        }
+    }
+
+    /**
+     * 最近一次从编码器一次取出的输出帧数，大于1说明输出在编码器中积压
+     */
+    int getOutputQueueDepth() {
+        return outputQueueDepth;
+    }
+
+    /**
+     * 最近一帧从送入编码器到取出输出的时间
+     */
+    int getEncodeLatencyMs() {
+        return encodeLatencyMs;
     }
 
     protected WeakReference<MediaMuxerWrapper> mWeakMuxer;
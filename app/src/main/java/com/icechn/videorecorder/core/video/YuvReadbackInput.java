@@ -0,0 +1,316 @@
+package com.icechn.videorecorder.core.video;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.util.Log;
+
+import com.icechn.videorecorder.core.GLHelper;
+import com.icechn.videorecorder.tools.GLESTools;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Surface输入不可用时的编码输入：在GPU上把滤镜输出转换为NV12/I420（BT.601 limited range），
+ * 按字节打包到宽W/4、高H*3/2的RGBA目标中，glReadPixels读回的数据即是编码器需要的YUV，CPU不做颜色转换。
+ * 与{@link FrameReadbackTap}一样两个FBO交替，下一帧才读取上一帧。
+ * 编码器输入没有行/平面对齐时读回直接写入输入buffer；否则先读到紧凑的中间buffer，再按stride和slice-height逐行拷贝。
+ */
+class YuvReadbackInput {
+    private static final String TAG = "YuvReadbackInput";
+
+    private static final String VERTEX_SHADER = "" +
+            "attribute vec4 aPosition;\n" +
+            "void main(){\n" +
+            "    gl_Position= aPosition;\n" +
+            "}";
+
+    // 按gl_FragCoord计算目标像素对应的4个字节，源纹理第0行是画面底部，输出从画面顶部开始
+    private static final String FRAGMENT_SHADER_YUV = "" +
+            "precision highp float;\n" +
+            "uniform sampler2D uTexture;\n" +
+            "uniform vec2 uSize;\n" +
+            "uniform float uSemiPlanar;\n" +
+            "const vec3 Y_COEF = vec3(0.257, 0.504, 0.098);\n" +
+            "const vec3 U_COEF = vec3(-0.148, -0.291, 0.439);\n" +
+            "const vec3 V_COEF = vec3(0.439, -0.368, -0.071);\n" +
+            "vec3 rgbAt(vec2 pos){\n" +
+            "    return texture2D(uTexture, vec2(pos.x / uSize.x, 1.0 - pos.y / uSize.y)).rgb;\n" +
+            "}\n" +
+            "float lumaAt(float x, float y){\n" +
+            "    return dot(rgbAt(vec2(x + 0.5, y + 0.5)), Y_COEF) + 0.0627;\n" +
+            "}\n" +
+            // 取2x2块的中心，线性过滤即为4个像素的平均
+            "vec3 chromaRgbAt(float cx, float cy){\n" +
+            "    return rgbAt(vec2(cx * 2.0 + 1.0, cy * 2.0 + 1.0));\n" +
+            "}\n" +
+            "void main(){\n" +
+            "    vec2 p = floor(gl_FragCoord.xy);\n" +
+            "    float x = p.x * 4.0;\n" +
+            "    if (p.y < uSize.y) {\n" +
+            "        gl_FragColor = vec4(lumaAt(x, p.y), lumaAt(x + 1.0, p.y), lumaAt(x + 2.0, p.y), lumaAt(x + 3.0, p.y));\n" +
+            "    } else if (uSemiPlanar > 0.5) {\n" +
+            "        float cy = p.y - uSize.y;\n" +
+            "        vec3 c0 = chromaRgbAt(p.x * 2.0, cy);\n" +
+            "        vec3 c1 = chromaRgbAt(p.x * 2.0 + 1.0, cy);\n" +
+            "        gl_FragColor = vec4(dot(c0, U_COEF), dot(c0, V_COEF), dot(c1, U_COEF), dot(c1, V_COEF)) + 0.502;\n" +
+            "    } else {\n" +
+            // I420的U、V平面每行W/2字节，目标的一行放两行
+            "        float row = p.y - uSize.y;\n" +
+            "        float quarter = uSize.y / 4.0;\n" +
+            "        float isV = step(quarter, row);\n" +
+            "        row -= quarter * isV;\n" +
+            "        float halfWidth = uSize.x / 2.0;\n" +
+            "        float cy = row * 2.0 + floor(x / halfWidth);\n" +
+            "        float cx = mod(x, halfWidth);\n" +
+            "        vec3 coef = mix(U_COEF, V_COEF, isV);\n" +
+            "        gl_FragColor = vec4(dot(chromaRgbAt(cx, cy), coef), dot(chromaRgbAt(cx + 1.0, cy), coef),\n" +
+            "                dot(chromaRgbAt(cx + 2.0, cy), coef), dot(chromaRgbAt(cx + 3.0, cy), coef)) + 0.502;\n" +
+            "    }\n" +
+            "}";
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mTargetWidth;
+    private final int mTargetHeight;
+    private final int mFrameSize;
+    private final boolean mIsSemiPlanar;
+
+    private int glProgram;
+    private int glTextureLoc;
+    private int glPositionLoc;
+    private int glSizeLoc;
+    private int glSemiPlanarLoc;
+    private final int[] frameBuffers = new int[2];
+    private final int[] frameBufferTextures = new int[2];
+    private int writeIndex = 0;
+    private int pendingIndex = -1;
+    private long pendingTimeUs;
+    private int droppedFrames = 0;
+    private boolean isInited = false;
+    // 编码器输入的行跨度和Y平面行数，见setInputFormat
+    private int mStride;
+    private int mSliceHeight;
+    private int mInputFrameSize;
+    private ByteBuffer mPackedBuffer;
+    private boolean isInputTooSmall = false;
+
+    /**
+     * @param colorFormat COLOR_FormatYUV420SemiPlanar或COLOR_FormatYUV420Planar
+     */
+    YuvReadbackInput(int width, int height, int colorFormat) {
+        if (width <= 0 || height <= 0 || width % 8 != 0 || height % 4 != 0) {
+            throw new IllegalArgumentException("yuv readback needs width%8==0 and height%4==0, got " + width + "x" + height);
+        }
+        if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+            mIsSemiPlanar = true;
+        } else if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar) {
+            mIsSemiPlanar = false;
+        } else {
+            throw new IllegalArgumentException("unsupported color format " + colorFormat);
+        }
+        mWidth = width;
+        mHeight = height;
+        mTargetWidth = width / 4;
+        mTargetHeight = height * 3 / 2;
+        mFrameSize = width * height * 3 / 2;
+        setInputFormat(null);
+    }
+
+    /**
+     * 编码器configure之后调用，读取输入的KEY_STRIDE和KEY_SLICE_HEIGHT
+     *
+     * @param inputFormat 编码器的输入格式，null或没有这两项时按紧凑排列
+     */
+    void setInputFormat(MediaFormat inputFormat) {
+        int stride = mWidth;
+        int sliceHeight = mHeight;
+        if (inputFormat != null) {
+            if (inputFormat.containsKey(MediaFormat.KEY_STRIDE)) {
+                stride = Math.max(mWidth, inputFormat.getInteger(MediaFormat.KEY_STRIDE));
+            }
+            if (inputFormat.containsKey(MediaFormat.KEY_SLICE_HEIGHT)) {
+                sliceHeight = Math.max(mHeight, inputFormat.getInteger(MediaFormat.KEY_SLICE_HEIGHT));
+            }
+        }
+        mStride = stride;
+        mSliceHeight = sliceHeight;
+        if (mIsSemiPlanar) {
+            // UV交错平面，最后一个平面不需要slice-height的填充
+            mInputFrameSize = stride * sliceHeight + stride * (mHeight / 2);
+        } else {
+            mInputFrameSize = stride * sliceHeight + (stride / 2) * (sliceHeight / 2) + (stride / 2) * (mHeight / 2);
+        }
+        if (isPacked()) {
+            mPackedBuffer = null;
+        } else if (mPackedBuffer == null) {
+            mPackedBuffer = ByteBuffer.allocateDirect(mFrameSize).order(ByteOrder.nativeOrder());
+        }
+        isInputTooSmall = false;
+        if (!isPacked()) {
+            Log.d(TAG, "encoder input stride=" + stride + " sliceHeight=" + sliceHeight + " for " + mWidth + "x" + mHeight);
+        }
+    }
+
+    private boolean isPacked() {
+        return mStride == mWidth && mSliceHeight == mHeight;
+    }
+
+    boolean isSize(int width, int height) {
+        return mWidth == width && mHeight == height;
+    }
+
+    /**
+     * 在离屏上下文中调用
+     */
+    void init() {
+        glProgram = GLESTools.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_YUV);
+        GLES20.glUseProgram(glProgram);
+        glTextureLoc = GLES20.glGetUniformLocation(glProgram, "uTexture");
+        glSizeLoc = GLES20.glGetUniformLocation(glProgram, "uSize");
+        glSemiPlanarLoc = GLES20.glGetUniformLocation(glProgram, "uSemiPlanar");
+        glPositionLoc = GLES20.glGetAttribLocation(glProgram, "aPosition");
+        GLES20.glUseProgram(0);
+        int[] fb = new int[1];
+        int[] fbTexture = new int[1];
+        for (int i = 0; i < 2; i++) {
+            GLHelper.createCameraFrameBuffer(fb, fbTexture, mTargetWidth, mTargetHeight);
+            frameBuffers[i] = fb[0];
+            frameBufferTextures[i] = fbTexture[0];
+        }
+        isInited = true;
+    }
+
+    /**
+     * 每帧滤镜绘制完成后在离屏上下文中调用：先把上一帧读入编码器，再转换本帧
+     *
+     * @param texture 滤镜输出纹理，大小为width x height
+     */
+    void onFrame(MediaCodec encoder, int texture, FloatBuffer shapeBuffer, ShortBuffer drawIndexesBuffer, long timeUs) {
+        if (pendingIndex >= 0) {
+            queuePending(encoder);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[writeIndex]);
+        GLES20.glUseProgram(glProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glUniform1i(glTextureLoc, 0);
+        GLES20.glUniform2f(glSizeLoc, mWidth, mHeight);
+        GLES20.glUniform1f(glSemiPlanarLoc, mIsSemiPlanar ? 1f : 0f);
+        GLES20.glEnableVertexAttribArray(glPositionLoc);
+        GLES20.glVertexAttribPointer(glPositionLoc, GLHelper.COORDS_PER_VERTEX,
+                GLES20.GL_FLOAT, false,
+                GLHelper.COORDS_PER_VERTEX * 4, shapeBuffer);
+        GLES20.glViewport(0, 0, mTargetWidth, mTargetHeight);
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawIndexesBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, drawIndexesBuffer);
+        // 只提交，不等待完成
+        GLES20.glFlush();
+        GLES20.glDisableVertexAttribArray(glPositionLoc);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        pendingIndex = writeIndex;
+        pendingTimeUs = timeUs;
+        writeIndex ^= 1;
+    }
+
+    private void queuePending(MediaCodec encoder) {
+        final int index = pendingIndex;
+        pendingIndex = -1;
+        if (isInputTooSmall) {
+            droppedFrames++;
+            return;
+        }
+        int inputIndex = encoder.dequeueInputBuffer(0);
+        if (inputIndex < 0) {
+            // 编码器来不及，丢弃这一帧而不阻塞渲染
+            droppedFrames++;
+            if (droppedFrames % 30 == 1) {
+                Log.w(TAG, "no free encoder input buffer, dropped " + droppedFrames + " frames");
+            }
+            return;
+        }
+        ByteBuffer input;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            input = encoder.getInputBuffer(inputIndex);
+        } else {
+            input = encoder.getInputBuffers()[inputIndex];
+        }
+        if (input == null || input.capacity() < mInputFrameSize) {
+            // 送入空帧会在输出中产生一个没有画面的时间戳，不如不送；
+            // 输入buffer大小都相同，之后的帧同样放不下，不再dequeue
+            isInputTooSmall = true;
+            droppedFrames++;
+            Log.e(TAG, "encoder input buffer " + (input == null ? 0 : input.capacity()) + " too small for "
+                    + mWidth + "x" + mHeight + " stride=" + mStride + " sliceHeight=" + mSliceHeight
+                    + ", need " + mInputFrameSize + ", dropping frames");
+            return;
+        }
+        input.clear();
+        ByteBuffer target = isPacked() ? input : mPackedBuffer;
+        target.clear();
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[index]);
+        GLES20.glReadPixels(0, 0, mTargetWidth, mTargetHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, target);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (!isPacked()) {
+            copyToInput(input);
+        }
+        encoder.queueInputBuffer(inputIndex, 0, mInputFrameSize, pendingTimeUs, 0);
+    }
+
+    /**
+     * 把紧凑排列的YUV按编码器的stride和slice-height逐行拷贝到输入buffer
+     */
+    private void copyToInput(ByteBuffer input) {
+        int lumaSize = mWidth * mHeight;
+        int chromaOffset = mStride * mSliceHeight;
+        copyRows(input, 0, mWidth, 0, mStride, mWidth, mHeight);
+        if (mIsSemiPlanar) {
+            copyRows(input, lumaSize, mWidth, chromaOffset, mStride, mWidth, mHeight / 2);
+        } else {
+            int halfWidth = mWidth / 2;
+            int halfStride = mStride / 2;
+            copyRows(input, lumaSize, halfWidth, chromaOffset, halfStride, halfWidth, mHeight / 2);
+            copyRows(input, lumaSize + lumaSize / 4, halfWidth,
+                    chromaOffset + halfStride * (mSliceHeight / 2), halfStride, halfWidth, mHeight / 2);
+        }
+    }
+
+    private void copyRows(ByteBuffer input, int srcOffset, int srcStride, int dstOffset, int dstStride,
+                          int rowBytes, int rows) {
+        for (int row = 0; row < rows; row++) {
+            int src = srcOffset + row * srcStride;
+            mPackedBuffer.limit(src + rowBytes);
+            mPackedBuffer.position(src);
+            input.position(dstOffset + row * dstStride);
+            input.put(mPackedBuffer);
+        }
+    }
+
+    /**
+     * 编码器stop之后调用，未读取的帧属于上一次录制
+     */
+    void reset() {
+        pendingIndex = -1;
+        isInputTooSmall = false;
+    }
+
+    /**
+     * 在离屏上下文中调用
+     */
+    void destroy() {
+        if (!isInited) {
+            return;
+        }
+        isInited = false;
+        GLES20.glDeleteProgram(glProgram);
+        GLES20.glDeleteFramebuffers(2, frameBuffers, 0);
+        GLES20.glDeleteTextures(2, frameBufferTextures, 0);
+        pendingIndex = -1;
+    }
+}
@@ -3,24 +3,48 @@ package com.icechn.videorecorder.encoder;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 import com.icechn.videorecorder.BuildConfig;
+import com.icechn.videorecorder.client.CallbackDelivery;
+import com.icechn.videorecorder.core.listener.ISegmentListener;
+import com.icechn.videorecorder.core.listener.ISegmentListener.SegmentRunable;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 
+/**
+ * 支持分段：编码器不停，{@link #switchSegment}后在下一个视频关键帧处切换到新文件，
+ * {@link #pauseSegment}后丢弃数据直到下一段开始。旧文件的stop在工作线程完成。
+ */
 public class MediaMuxerWrapper {
 	private static final boolean DEBUG = BuildConfig.DEBUG;
 	private static final String TAG = "MediaMuxerWrapper";
 
-	private final MediaMuxer mMediaMuxer;
+	// 当前段，暂停时为null
+	private MediaMuxer mMediaMuxer;
+	private String mOutputPath;
 	private int mEncoderCount = 0;
 	private int mStartedCount = 0;
 	private boolean mIsStarted = false;
+	// release之后忽略所有调用
+	private boolean mIsReleased = false;
+	private final ArrayList<MediaFormat> mTrackFormats = new ArrayList<>();
+	private int mVideoTrackIndex = -1;
+	// 等待关键帧的下一段
+	private MediaMuxer mNextMuxer;
+	private String mNextPath;
+	private ISegmentListener mSegmentListener;
+	private HandlerThread mFinishThread;
+	private Handler mFinishHandler;
 
 	public MediaMuxerWrapper(String outputPath) throws IOException {
 		mMediaMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+		mOutputPath = outputPath;
 		mEncoderCount = 0;
 		mStartedCount = 0;
 		mIsStarted = false;
@@ -29,6 +53,10 @@ public class MediaMuxerWrapper {
 		mEncoderCount = count;
 	}
 
+	public synchronized void setSegmentListener(ISegmentListener listener) {
+		mSegmentListener = listener;
+	}
+
 //**********************************************************************
 //**********************************************************************
 
@@ -40,10 +68,18 @@ public class MediaMuxerWrapper {
 		if (DEBUG) {
 			Log.v(TAG,  "start:");
 		}
+		if (mIsReleased) {
+			return false;
+		}
 		mStartedCount++;
 		if ((mEncoderCount > 0) && (mStartedCount == mEncoderCount)) {
-			mMediaMuxer.start();
+			if (mMediaMuxer != null) {
+				mMediaMuxer.start();
+			}
 			mIsStarted = true;
+			if (mNextPath != null && mNextMuxer == null) {
+				mNextMuxer = createMuxer(mNextPath);
+			}
 			notifyAll();
 			if (DEBUG) {
 				Log.v(TAG,  "MediaMuxer started:");
@@ -65,9 +101,23 @@ public class MediaMuxerWrapper {
 		}
 		mStartedCount--;
 		if ((mEncoderCount > 0) && (mStartedCount <= 0)) {
-			mMediaMuxer.stop();
-			mMediaMuxer.release();
+			discardNext();
+			if (mMediaMuxer != null) {
+				deliver(mOutputPath, stopMuxer(mMediaMuxer));
+				mMediaMuxer = null;
+			}
 			mIsStarted = false;
+			if (mFinishThread != null) {
+				// 保证stop返回时所有分段都已写完
+				mFinishThread.quitSafely();
+				try {
+					mFinishThread.join();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+				mFinishThread = null;
+				mFinishHandler = null;
+			}
 			if (DEBUG) {
 				Log.v(TAG,  "MediaMuxer stopped:");
 			}
@@ -82,7 +132,13 @@ public class MediaMuxerWrapper {
 	public synchronized int addTrack(final MediaFormat format) {
 		if (mIsStarted)
 			throw new IllegalStateException("muxer already started");
-		final int trackIx = mMediaMuxer.addTrack(format);
+		// MediaMuxer按添加顺序从0分配track，新段按相同顺序添加即可沿用
+		final int trackIx = mMediaMuxer != null ? mMediaMuxer.addTrack(format) : mTrackFormats.size();
+		mTrackFormats.add(format);
+		String mime = format.getString(MediaFormat.KEY_MIME);
+		if (mime != null && mime.startsWith("video/")) {
+			mVideoTrackIndex = trackIx;
+		}
 		if (DEBUG) {
 			Log.i(TAG, "addTrack:trackNum=" + mEncoderCount + ",trackIx=" + trackIx + ",format=" + format);
 		}
@@ -99,9 +155,159 @@ public class MediaMuxerWrapper {
 		if (!mIsStarted) {
 			return ;
 		}
-		if (mStartedCount > 0) {
+		if (mNextPath != null && trackIndex == mVideoTrackIndex
+				&& (bufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+			switchToNext();
+		}
+		if (mStartedCount > 0 && mMediaMuxer != null) {
 			mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
 		}
 	}
 
+	/**
+	 * 结束当前段（如果有），从下一个视频关键帧开始写入path，调用方应同时请求关键帧
+	 */
+	public synchronized void switchSegment(String path) {
+		if (path == null) {
+			throw new IllegalArgumentException("segment path is null");
+		}
+		if (mIsReleased) {
+			return;
+		}
+		discardNext();
+		mNextPath = path;
+		if (mIsStarted) {
+			// 提前创建，切换时只需要start
+			mNextMuxer = createMuxer(path);
+		}
+	}
+
+	/**
+	 * 立即结束当前段，之后的数据丢弃直到{@link #switchSegment}的下一段开始
+	 */
+	public synchronized void pauseSegment() {
+		discardNext();
+		if (mMediaMuxer == null) {
+			return;
+		}
+		if (mIsStarted) {
+			finishCurrent();
+		} else {
+			discard(mMediaMuxer, mOutputPath);
+			mMediaMuxer = null;
+		}
+	}
+
+	/**
+	 * 在start之前放弃整个输出：释放当前段和下一段并删除文件，之后的写入和分段调用都被忽略。
+	 * 用于缺少某个轨道、muxer永远不会start的情况
+	 */
+	public synchronized void release() {
+		if (mIsReleased) {
+			return;
+		}
+		if (mIsStarted) {
+			throw new IllegalStateException("release a started muxer, call stop instead");
+		}
+		mIsReleased = true;
+		discardNext();
+		if (mMediaMuxer != null) {
+			discard(mMediaMuxer, mOutputPath);
+			mMediaMuxer = null;
+		}
+	}
+
+	private void switchToNext() {
+		MediaMuxer next = mNextMuxer != null ? mNextMuxer : createMuxer(mNextPath);
+		String nextPath = mNextPath;
+		mNextMuxer = null;
+		mNextPath = null;
+		if (next == null) {
+			// 继续写当前段，不丢帧
+			deliver(nextPath, false);
+			return;
+		}
+		long startTime = System.nanoTime();
+		next.start();
+		finishCurrent();
+		mMediaMuxer = next;
+		mOutputPath = nextPath;
+		Log.i(TAG, "switch segment to " + nextPath + " cost_us=" + (System.nanoTime() - startTime) / 1000);
+	}
+
+	private void finishCurrent() {
+		if (mMediaMuxer == null) {
+			return;
+		}
+		final MediaMuxer muxer = mMediaMuxer;
+		final String path = mOutputPath;
+		mMediaMuxer = null;
+		if (mFinishThread == null) {
+			mFinishThread = new HandlerThread("SegmentFinishThread");
+			mFinishThread.start();
+			mFinishHandler = new Handler(mFinishThread.getLooper());
+		}
+		mFinishHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				deliver(path, stopMuxer(muxer));
+			}
+		});
+	}
+
+	private void discardNext() {
+		if (mNextPath == null) {
+			return;
+		}
+		if (mNextMuxer != null) {
+			discard(mNextMuxer, mNextPath);
+		} else {
+			deliver(mNextPath, false);
+		}
+		mNextMuxer = null;
+		mNextPath = null;
+	}
+
+	/**
+	 * 释放没有start过的muxer并删除空文件
+	 */
+	private void discard(MediaMuxer muxer, String path) {
+		muxer.release();
+		if (!new File(path).delete()) {
+			Log.w(TAG, "can not delete " + path);
+		}
+		deliver(path, false);
+	}
+
+	private MediaMuxer createMuxer(String path) {
+		try {
+			MediaMuxer muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+			for (MediaFormat format : mTrackFormats) {
+				muxer.addTrack(format);
+			}
+			return muxer;
+		} catch (IOException | IllegalStateException e) {
+			Log.e(TAG, "create segment " + path + " failed", e);
+			return null;
+		}
+	}
+
+	private static boolean stopMuxer(MediaMuxer muxer) {
+		try {
+			muxer.stop();
+			return true;
+		} catch (IllegalStateException e) {
+			Log.e(TAG, "stop muxer failed", e);
+			return false;
+		} finally {
+			muxer.release();
+		}
+	}
+
+	private void deliver(String path, boolean success) {
+		if (mSegmentListener != null) {
+			CallbackDelivery.getInstance().post(new SegmentRunable(mSegmentListener, path, success));
+		}
+	}
+
 }
@@ -1,10 +1,12 @@
 package com.icechn.videorecorder.filter.gpuimage;
 
+import com.icechn.videorecorder.filter.hardvideofilter.IPointFilter;
+
 /**
  * Created by ICE on 2018/2/2.
  */
 
-public class GPUImageColorInvertFilter extends GPUImageFilter {
+public class GPUImageColorInvertFilter extends GPUImageFilter implements IPointFilter {
     public static final String COLOR_INVERT_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" +
             "\n" +
@@ -16,8 +18,31 @@ public class GPUImageColorInvertFilter extends GPUImageFilter {
             "    \n" +
             "    gl_FragColor = vec4((1.0 - textureColor.rgb), textureColor.w);\n" +
             "}";
+    public static final String COLOR_INVERT_SNIPPET = "" +
+            "vec4 " + TRANSFORM_FUNCTION + "(vec4 textureColor)\n" +
+            "{\n" +
+            "    return vec4((1.0 - textureColor.rgb), textureColor.w);\n" +
+            "}";
 
     public GPUImageColorInvertFilter() {
         super(NO_FILTER_VERTEX_SHADER, COLOR_INVERT_FRAGMENT_SHADER);
     }
+
+    @Override
+    public String getColorTransformSnippet() {
+        return COLOR_INVERT_SNIPPET;
+    }
+
+    @Override
+    public void onFusedInit(int glProgram, String prefix) {
+    }
+
+    @Override
+    public int onFusedPreDraw(int textureUnit) {
+        return 0;
+    }
+
+    @Override
+    public void onFusedDestroy() {
+    }
 }
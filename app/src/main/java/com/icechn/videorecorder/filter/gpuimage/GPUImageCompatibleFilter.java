@@ -4,18 +4,22 @@ import android.opengl.GLES20;
 
 
 import com.icechn.videorecorder.filter.hardvideofilter.BaseHardVideoFilter;
+import com.icechn.videorecorder.filter.hardvideofilter.IPointFilter;
 import com.icechn.videorecorder.model.MediaConfig;
 import com.icechn.videorecorder.tools.GLESTools;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 /**
  * Created by ICE on 2018/2/2.
  */
 
-public class GPUImageCompatibleFilter<T extends GPUImageFilter> extends BaseHardVideoFilter {
+public class GPUImageCompatibleFilter<T extends GPUImageFilter> extends BaseHardVideoFilter implements IPointFilter {
+    private static final int INPUT_DIRECTION_FLAG = -1;
+
     private T innerGPUImageFilter;
 
     private FloatBuffer innerShapeBuffer;
@@ -34,6 +38,9 @@ public class GPUImageCompatibleFilter<T extends GPUImageFilter> extends BaseHard
         super.onInit(VWidth, VHeight);
         innerGPUImageFilter.init();
         innerGPUImageFilter.onOutputSizeChanged(VWidth, VHeight);
+        // 输入已经由VideoCore按方向转正，保持原有效果：-1对应的坐标即单位映射，不随方向变化
+        innerShapeBuffer = getGPUImageCompatShapeVerticesBuffer();
+        innerTextureBuffer = getGPUImageCompatTextureVerticesBuffer(INPUT_DIRECTION_FLAG);
     }
 
     @Override
@@ -49,14 +56,33 @@ public class GPUImageCompatibleFilter<T extends GPUImageFilter> extends BaseHard
         innerGPUImageFilter.destroy();
     }
 
+    /**
+     * @return snippet of the inner filter if it is a {@link IPointFilter}, otherwise null
+     */
     @Override
-    public void onDirectionUpdate(int _directionFlag) {
-        if (directionFlag != _directionFlag) {
-            innerShapeBuffer = getGPUImageCompatShapeVerticesBuffer();
-            innerTextureBuffer = getGPUImageCompatTextureVerticesBuffer(directionFlag);
+    public String getColorTransformSnippet() {
+        if (innerGPUImageFilter instanceof IPointFilter) {
+            return ((IPointFilter) innerGPUImageFilter).getColorTransformSnippet();
         }
+        return null;
+    }
+
+    @Override
+    public void onFusedInit(int glProgram, String prefix) {
+        ((IPointFilter) innerGPUImageFilter).onFusedInit(glProgram, prefix);
     }
 
+    @Override
+    public int onFusedPreDraw(int textureUnit) {
+        return ((IPointFilter) innerGPUImageFilter).onFusedPreDraw(textureUnit);
+    }
+
+    @Override
+    public void onFusedDestroy() {
+        ((IPointFilter) innerGPUImageFilter).onFusedDestroy();
+    }
+
+
     public static final float TEXTURE_NO_ROTATION[] = {
             1.0f, 1.0f,
             0.0f, 1.0f,
@@ -89,16 +115,59 @@ public class GPUImageCompatibleFilter<T extends GPUImageFilter> extends BaseHard
             1.0f, 1.0f,
     };
 
-    public static FloatBuffer getGPUImageCompatShapeVerticesBuffer() {
-        FloatBuffer result = ByteBuffer.allocateDirect(GLESTools.FLOAT_SIZE_BYTES * CUBE.length).
-                order(ByteOrder.nativeOrder()).
-                asFloatBuffer();
-        result.put(CUBE);
-        result.position(0);
-        return result;
+    private static FloatBuffer sShapeBuffer;
+    // 4种旋转 x 水平翻转 x 垂直翻转，内容相同的组合共用同一个buffer，实际只有8个
+    private static final FloatBuffer[] sTextureBuffers = new FloatBuffer[16];
+    private static final float[][] sTextureArrays = new float[16][];
+
+    /**
+     * @return 进程内共享数据的duplicate视图，position/limit各自独立，不要修改内容
+     */
+    public static synchronized FloatBuffer getGPUImageCompatShapeVerticesBuffer() {
+        if (sShapeBuffer == null) {
+            sShapeBuffer = createFloatBuffer(CUBE);
+        }
+        return sShapeBuffer.duplicate();
     }
 
-    public static FloatBuffer getGPUImageCompatTextureVerticesBuffer(final int directionFlag) {
+    /**
+     * @return 进程内共享数据的duplicate视图，position/limit各自独立，不要修改内容
+     */
+    public static synchronized FloatBuffer getGPUImageCompatTextureVerticesBuffer(final int directionFlag) {
+        int rotationIndex;
+        switch (directionFlag & 0xF0) {
+            case MediaConfig.DirectionMode.FLAG_DIRECTION_ROATATION_90:
+                rotationIndex = 1;
+                break;
+            case MediaConfig.DirectionMode.FLAG_DIRECTION_ROATATION_180:
+                rotationIndex = 2;
+                break;
+            case MediaConfig.DirectionMode.FLAG_DIRECTION_ROATATION_270:
+                rotationIndex = 3;
+                break;
+            default:
+                rotationIndex = 0;
+        }
+        int index = rotationIndex * 4
+                + ((directionFlag & MediaConfig.DirectionMode.FLAG_DIRECTION_FLIP_HORIZONTAL) != 0 ? 2 : 0)
+                + ((directionFlag & MediaConfig.DirectionMode.FLAG_DIRECTION_FLIP_VERTICAL) != 0 ? 1 : 0);
+        if (sTextureBuffers[index] == null) {
+            float[] coords = createTextureCoords(directionFlag);
+            for (int i = 0; i < sTextureArrays.length; i++) {
+                if (sTextureArrays[i] != null && Arrays.equals(sTextureArrays[i], coords)) {
+                    sTextureBuffers[index] = sTextureBuffers[i];
+                    break;
+                }
+            }
+            if (sTextureBuffers[index] == null) {
+                sTextureBuffers[index] = createFloatBuffer(coords);
+            }
+            sTextureArrays[index] = coords;
+        }
+        return sTextureBuffers[index].duplicate();
+    }
+
+    private static float[] createTextureCoords(final int directionFlag) {
         float[] buffer;
         switch (directionFlag & 0xF0) {
             case MediaConfig.DirectionMode.FLAG_DIRECTION_ROATATION_90:
@@ -125,10 +194,14 @@ public class GPUImageCompatibleFilter<T extends GPUImageFilter> extends BaseHard
             buffer[5] = flip(buffer[5]);
             buffer[7] = flip(buffer[7]);
         }
-        FloatBuffer result = ByteBuffer.allocateDirect(GLESTools.FLOAT_SIZE_BYTES * buffer.length).
+        return buffer;
+    }
+
+    private static FloatBuffer createFloatBuffer(float[] data) {
+        FloatBuffer result = ByteBuffer.allocateDirect(GLESTools.FLOAT_SIZE_BYTES * data.length).
                 order(ByteOrder.nativeOrder()).
                 asFloatBuffer();
-        result.put(buffer);
+        result.put(data);
         result.position(0);
         return result;
     }
@@ -39,6 +39,7 @@ public class GPUImageFilter {
             "}";
 
     private final LinkedList<Runnable> mRunOnDraw;
+    private final UniformStore mUniformStore = new UniformStore();
     private final String mVertexShader;
     private final String mFragmentShader;
     protected int mGLProgId;
@@ -60,6 +61,8 @@ public class GPUImageFilter {
     }
 
     public final void init() {
+        // 重新init后program和location都会变化，之前暂存的值不能再提交
+        mUniformStore.clear();
         onInit();
         mIsInitialized = true;
         onInitialized();
@@ -80,6 +83,7 @@ public class GPUImageFilter {
     public final void destroy() {
         mIsInitialized = false;
         GLES20.glDeleteProgram(mGLProgId);
+        mUniformStore.clear();
         onDestroy();
     }
 
@@ -121,9 +125,12 @@ public class GPUImageFilter {
     protected void onDrawArraysPre() {}
 
     protected void runPendingOnDrawTasks() {
-        while (!mRunOnDraw.isEmpty()) {
-            mRunOnDraw.removeFirst().run();
+        synchronized (mRunOnDraw) {
+            while (!mRunOnDraw.isEmpty()) {
+                mRunOnDraw.removeFirst().run();
+            }
         }
+        mUniformStore.apply();
     }
 
     public boolean isInitialized() {
@@ -154,91 +161,43 @@ public class GPUImageFilter {
         return mGLUniformTexture;
     }
 
+    /*
+     * 以下setter只把数值写入mUniformStore，绘制前统一提交，同一个location多次设置只提交最新的值
+     */
     protected void setInteger(final int location, final int intValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1i(location, intValue);
-            }
-        });
+        mUniformStore.setInt(location, intValue);
     }
 
     protected void setFloat(final int location, final float floatValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1f(location, floatValue);
-            }
-        });
+        mUniformStore.setFloat(location, floatValue);
     }
 
     protected void setFloatVec2(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform2fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniformStore.setFloats(location, UniformStore.TYPE_VEC2, arrayValue, 2);
     }
 
     protected void setFloatVec3(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform3fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniformStore.setFloats(location, UniformStore.TYPE_VEC3, arrayValue, 3);
     }
 
     protected void setFloatVec4(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform4fv(location, 1, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniformStore.setFloats(location, UniformStore.TYPE_VEC4, arrayValue, 4);
     }
 
     protected void setFloatArray(final int location, final float[] arrayValue) {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glUniform1fv(location, arrayValue.length, FloatBuffer.wrap(arrayValue));
-            }
-        });
+        mUniformStore.setFloats(location, UniformStore.TYPE_FLOAT_ARRAY, arrayValue, arrayValue.length);
     }
 
     protected void setPoint(final int location, final PointF point) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                float[] vec2 = new float[2];
-                vec2[0] = point.x;
-                vec2[1] = point.y;
-                GLES20.glUniform2fv(location, 1, vec2, 0);
-            }
-        });
+        mUniformStore.setFloat2(location, point.x, point.y);
     }
 
     protected void setUniformMatrix3f(final int location, final float[] matrix) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                GLES20.glUniformMatrix3fv(location, 1, false, matrix, 0);
-            }
-        });
+        mUniformStore.setFloats(location, UniformStore.TYPE_MAT3, matrix, 9);
     }
 
     protected void setUniformMatrix4f(final int location, final float[] matrix) {
-        runOnDraw(new Runnable() {
-
-            @Override
-            public void run() {
-                GLES20.glUniformMatrix4fv(location, 1, false, matrix, 0);
-            }
-        });
+        mUniformStore.setFloats(location, UniformStore.TYPE_MAT4, matrix, 16);
     }
 
     protected void runOnDraw(final Runnable runnable) {
@@ -0,0 +1,155 @@
+package com.icechn.videorecorder.filter.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.util.Arrays;
+
+/**
+ * GPUImageFilter的uniform暂存区。
+ * 任意线程写入只是把数值拷贝到按location预分配的槽位并标记dirty，重复写入同一个location会合并，
+ * GL线程每帧绘制前调用{@link #apply()}只提交每个location最新的值。
+ * 每个location只在第一次写入时分配槽位，之后的写入不产生垃圾。
+ */
+class UniformStore {
+    static final int TYPE_INT = 0;
+    static final int TYPE_FLOAT = 1;
+    static final int TYPE_VEC2 = 2;
+    static final int TYPE_VEC3 = 3;
+    static final int TYPE_VEC4 = 4;
+    static final int TYPE_FLOAT_ARRAY = 5;
+    static final int TYPE_MAT3 = 6;
+    static final int TYPE_MAT4 = 7;
+
+    private static final int INITIAL_CAPACITY = 8;
+    private static final int DEFAULT_VALUE_SIZE = 16;
+
+    private int[] locations = new int[INITIAL_CAPACITY];
+    private int[] types = new int[INITIAL_CAPACITY];
+    private int[] intValues = new int[INITIAL_CAPACITY];
+    private float[][] floatValues = new float[INITIAL_CAPACITY][];
+    private int[] floatCounts = new int[INITIAL_CAPACITY];
+    private boolean[] dirty = new boolean[INITIAL_CAPACITY];
+    private int size = 0;
+    private boolean anyDirty = false;
+
+    synchronized void setInt(int location, int value) {
+        int slot = obtainSlot(location, TYPE_INT, 0);
+        intValues[slot] = value;
+        markDirty(slot);
+    }
+
+    synchronized void setFloat(int location, float value) {
+        int slot = obtainSlot(location, TYPE_FLOAT, 1);
+        floatValues[slot][0] = value;
+        markDirty(slot);
+    }
+
+    synchronized void setFloat2(int location, float x, float y) {
+        int slot = obtainSlot(location, TYPE_VEC2, 2);
+        floatValues[slot][0] = x;
+        floatValues[slot][1] = y;
+        markDirty(slot);
+    }
+
+    /**
+     * @param type TYPE_VEC2/3/4, TYPE_FLOAT_ARRAY, TYPE_MAT3/4
+     */
+    synchronized void setFloats(int location, int type, float[] values, int count) {
+        int slot = obtainSlot(location, type, count);
+        System.arraycopy(values, 0, floatValues[slot], 0, count);
+        markDirty(slot);
+    }
+
+    /**
+     * GL线程调用，program需要已经glUseProgram
+     */
+    synchronized void apply() {
+        if (!anyDirty) {
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            if (!dirty[i]) {
+                continue;
+            }
+            dirty[i] = false;
+            int location = locations[i];
+            float[] values = floatValues[i];
+            switch (types[i]) {
+                case TYPE_INT:
+                    GLES20.glUniform1i(location, intValues[i]);
+                    break;
+                case TYPE_FLOAT:
+                    GLES20.glUniform1f(location, values[0]);
+                    break;
+                case TYPE_VEC2:
+                    GLES20.glUniform2fv(location, 1, values, 0);
+                    break;
+                case TYPE_VEC3:
+                    GLES20.glUniform3fv(location, 1, values, 0);
+                    break;
+                case TYPE_VEC4:
+                    GLES20.glUniform4fv(location, 1, values, 0);
+                    break;
+                case TYPE_FLOAT_ARRAY:
+                    GLES20.glUniform1fv(location, floatCounts[i], values, 0);
+                    break;
+                case TYPE_MAT3:
+                    GLES20.glUniformMatrix3fv(location, 1, false, values, 0);
+                    break;
+                case TYPE_MAT4:
+                    GLES20.glUniformMatrix4fv(location, 1, false, values, 0);
+                    break;
+                default:
+                    break;
+            }
+        }
+        anyDirty = false;
+    }
+
+    /**
+     * program重新创建后location可能变化，清空所有槽位
+     */
+    synchronized void clear() {
+        size = 0;
+        anyDirty = false;
+    }
+
+    private void markDirty(int slot) {
+        dirty[slot] = true;
+        anyDirty = true;
+    }
+
+    private int obtainSlot(int location, int type, int floatCount) {
+        int slot = -1;
+        for (int i = 0; i < size; i++) {
+            if (locations[i] == location) {
+                slot = i;
+                break;
+            }
+        }
+        if (slot < 0) {
+            if (size == locations.length) {
+                grow();
+            }
+            slot = size++;
+            locations[slot] = location;
+            dirty[slot] = false;
+        }
+        types[slot] = type;
+        floatCounts[slot] = floatCount;
+        if (floatCount > 0 && (floatValues[slot] == null || floatValues[slot].length < floatCount)) {
+            floatValues[slot] = new float[Math.max(DEFAULT_VALUE_SIZE, floatCount)];
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int capacity = locations.length * 2;
+        locations = Arrays.copyOf(locations, capacity);
+        types = Arrays.copyOf(types, capacity);
+        intValues = Arrays.copyOf(intValues, capacity);
+        floatValues = Arrays.copyOf(floatValues, capacity);
+        floatCounts = Arrays.copyOf(floatCounts, capacity);
+        dirty = Arrays.copyOf(dirty, capacity);
+    }
+}
@@ -32,6 +32,19 @@ public class BaseHardVideoFilter {
         this.directionFlag = _directionFlag;
     }
 
+    /**
+     * 每帧onDraw之前在GL线程调用，timestampMs与送入编码器的时间戳是同一时钟，可用于驱动动画
+     */
+    public void onFrameTimeUpdate(long timestampMs) {
+    }
+
+    /**
+     * 估算该滤镜自己申请的纹理、FrameBuffer所占用的显存，单位byte，onInit之后有效
+     */
+    public long getGpuMemoryUsage() {
+        return 0;
+    }
+
     protected int previewWidth;//横屏
     protected int previewHeight;//横屏
     protected Size previewSize;
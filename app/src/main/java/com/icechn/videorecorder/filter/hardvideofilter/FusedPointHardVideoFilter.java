@@ -0,0 +1,97 @@
+package com.icechn.videorecorder.filter.hardvideofilter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 将多个相邻的 {@link IPointFilter} 合并为一个 Program，一次全屏绘制完成整条颜色变换链，
+ * 省去中间 FrameBuffer 的读写带宽。
+ */
+public class FusedPointHardVideoFilter extends OriginalHardVideoFilter {
+    private final List<IPointFilter> pointFilters;
+    private final List<String> prefixes;
+
+    public FusedPointHardVideoFilter(List<IPointFilter> filters) {
+        super(null, null);
+        if (filters == null || filters.isEmpty()) {
+            throw new IllegalArgumentException("can not create empty FusedPointHardVideoFilter");
+        }
+        pointFilters = new ArrayList<>(filters);
+        prefixes = new ArrayList<>(filters.size());
+        StringBuilder declarations = new StringBuilder();
+        StringBuilder calls = new StringBuilder();
+        for (int i = 0; i < pointFilters.size(); i++) {
+            String snippet = pointFilters.get(i).getColorTransformSnippet();
+            if (snippet == null) {
+                throw new IllegalArgumentException("filter " + i + " can not be fused");
+            }
+            String prefix = "f" + i + "_";
+            prefixes.add(prefix);
+            declarations.append(snippet.replace(IPointFilter.PREFIX, prefix)).append("\n");
+            calls.append("    color = ")
+                    .append(IPointFilter.TRANSFORM_FUNCTION.replace(IPointFilter.PREFIX, prefix))
+                    .append("(color);\n");
+        }
+        fragmentshader_filter = "" +
+                "precision highp float;\n" +
+                "varying highp vec2 vCamTextureCoord;\n" +
+                "uniform sampler2D uCamTexture;\n" +
+                declarations +
+                "void main(){\n" +
+                "    vec4 color = texture2D(uCamTexture, vCamTextureCoord);\n" +
+                calls +
+                "    gl_FragColor = color;\n" +
+                "}";
+    }
+
+    public int getFusedCount() {
+        return pointFilters.size();
+    }
+
+    @Override
+    public void onInit(int VWidth, int VHeight) {
+        super.onInit(VWidth, VHeight);
+        for (int i = 0; i < pointFilters.size(); i++) {
+            pointFilters.get(i).onFusedInit(glProgram, prefixes.get(i));
+        }
+    }
+
+    @Override
+    protected void onPreDraw() {
+        super.onPreDraw();
+        // texture unit 0 is uCamTexture
+        int textureUnit = 1;
+        for (IPointFilter filter : pointFilters) {
+            textureUnit += filter.onFusedPreDraw(textureUnit);
+        }
+    }
+
+    @Override
+    public void onFrameTimeUpdate(long timestampMs) {
+        super.onFrameTimeUpdate(timestampMs);
+        for (IPointFilter filter : pointFilters) {
+            if (filter instanceof BaseHardVideoFilter) {
+                ((BaseHardVideoFilter) filter).onFrameTimeUpdate(timestampMs);
+            }
+        }
+    }
+
+    @Override
+    public long getGpuMemoryUsage() {
+        long usage = 0;
+        for (IPointFilter filter : pointFilters) {
+            if (filter instanceof BaseHardVideoFilter) {
+                usage += ((BaseHardVideoFilter) filter).getGpuMemoryUsage();
+            }
+        }
+        return usage;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        for (IPointFilter filter : pointFilters) {
+            filter.onFusedDestroy();
+        }
+    }
+}
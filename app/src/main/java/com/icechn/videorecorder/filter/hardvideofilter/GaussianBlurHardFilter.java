@@ -3,54 +3,239 @@ package com.icechn.videorecorder.filter.hardvideofilter;
 import android.content.Context;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.util.Log;
 
 import com.icechn.videorecorder.tools.GLESTools;
 
 import java.nio.FloatBuffer;
+import java.util.Locale;
 
 /**
  * Created by lake on 20/02/17.
  * libREStreaming project.
+ * <p>
+ * 可分离高斯模糊：先水平再垂直两次绘制，相邻两个采样点利用纹理线性插值合并为一次采样，
+ * 因此对线性的颜色值模糊。偏移和权重作为常量写进shader。
+ * downScale为2或4时先缩小到模糊分辨率，两次模糊都在缩小的FrameBuffer中进行，最后再放大绘制到目标。
  */
 
 public class GaussianBlurHardFilter extends BaseHardVideoFilter {
+    private static final String TAG = "GaussianBlurHardFilter";
+    private static final int PROFILE_FRAME_COUNT = 100;
+    // 模糊分辨率下的最大半径，每次绘制最多 MAX_KERNEL_RADIUS + 1 次采样
+    private static final int MAX_KERNEL_RADIUS = 32;
+
+    protected static final String UPSAMPLE_FRAGMENTSHADER = "" +
+            "precision highp float;\n" +
+            "varying highp vec2 vCamTextureCoord;\n" +
+            "uniform sampler2D uCamTexture;\n" +
+            "uniform sampler2D uOriginTexture;\n" +
+            "uniform vec4 ignoreRect;\n" +
+            "void main(){\n" +
+            "    vec2 point = vCamTextureCoord;\n" +
+            "    if(ignoreRect.r < ignoreRect.b && ignoreRect.g < ignoreRect.a\n" +
+            "        && point.x>ignoreRect.r && point.x<ignoreRect.b\n" +
+            "        && point.y>ignoreRect.g && point.y<ignoreRect.a) {\n" +
+            "        gl_FragColor = texture2D(uOriginTexture, point);\n" +
+            "    } else {\n" +
+            "        gl_FragColor = texture2D(uCamTexture, point);\n" +
+            "    }\n" +
+            "}";
+
     private int blurRadius;
+    private int downScale;
     protected int glProgram;
     protected int glTextureLoc;
+    protected int glOriginTextureLoc;
     protected int glCamPostionLoc;
     protected int glCamTextureCoordLoc;
     protected int glStepLoc;
     protected int glIgnoreRect;
+    protected int glUpsampleProgram;
+    protected int glUpsampleTextureLoc;
+    protected int glUpsampleOriginTextureLoc;
+    protected int glUpsampleCamPostionLoc;
+    protected int glUpsampleCamTextureCoordLoc;
+    protected int glUpsampleIgnoreRect;
     protected String vertexShader_filter = "";
     protected String fragmentshader_filter = "";
 
+    private float[] offsets;
+    private float[] weights;
+    private float[] ignoreRect = new float[4];
+    private int blurWidth;
+    private int blurHeight;
+    private int[] frameBuffers;
+    private int[] frameBufferTextures;
+
+    private boolean profileEnabled = false;
+    private long profileTotalNs;
+    private int profileFrames;
+    private volatile float averageDrawTimeMs;
+
     public GaussianBlurHardFilter(Context context, int blurRadius) {
+        this(context, blurRadius, 1);
+    }
+
+    /**
+     * @param blurRadius 以输出分辨率的像素为单位
+     * @param downScale  1, 2 or 4, 在 1/downScale 分辨率下模糊
+     */
+    public GaussianBlurHardFilter(Context context, int blurRadius, int downScale) {
+        if (blurRadius <= 0) {
+            throw new IllegalArgumentException("blurRadius must be positive : " + blurRadius);
+        }
+        if (downScale != 1 && downScale != 2 && downScale != 4) {
+            throw new IllegalArgumentException("downScale must be 1, 2 or 4 : " + downScale);
+        }
         this.blurRadius = blurRadius;
+        this.downScale = downScale;
         this.vertexShader_filter = GLESTools.uRes(context.getResources(), "gaussian_vertex.sh");
         this.fragmentshader_filter = GLESTools.uRes(context.getResources(), "gaussian_fragment.sh");
+        computeKernel();
+    }
+
+    /**
+     * weight(x) = exp(x*x / (-4*radius)), x为输出分辨率下的像素距离。
+     * 第2k-1和第2k个采样点合并到它们的加权中心，用一次线性采样代替两次采样。
+     * 模糊分辨率下的半径超过{@link #MAX_KERNEL_RADIUS}时截断
+     */
+    private void computeKernel() {
+        int r = (blurRadius + downScale - 1) / downScale;
+        if (r > MAX_KERNEL_RADIUS) {
+            Log.w(TAG, "blurRadius " + blurRadius + " clamped to " + MAX_KERNEL_RADIUS * downScale);
+            r = MAX_KERNEL_RADIUS;
+        }
+        float[] kernel = new float[r + 1];
+        float total = 0;
+        for (int t = 0; t <= r; t++) {
+            float x = t * downScale;
+            kernel[t] = (float) Math.exp(x * x / (-4.0 * blurRadius));
+            total += t == 0 ? kernel[t] : 2 * kernel[t];
+        }
+        int taps = 1 + (r + 1) / 2;
+        offsets = new float[taps];
+        weights = new float[taps];
+        offsets[0] = 0;
+        weights[0] = kernel[0] / total;
+        for (int k = 1; k < taps; k++) {
+            int t1 = 2 * k - 1;
+            int t2 = 2 * k;
+            float w1 = kernel[t1];
+            float w2 = t2 <= r ? kernel[t2] : 0;
+            weights[k] = (w1 + w2) / total;
+            offsets[k] = (t1 * w1 + t2 * w2) / (w1 + w2);
+        }
+    }
+
+    public int getTapCount() {
+        return offsets.length;
+    }
+
+    /**
+     * @return 每个输出像素的纹理采样次数，缩小模式下按模糊分辨率折算
+     */
+    public float getSamplesPerPixel() {
+        // 每次模糊绘制：中心1次，其余左右各1次
+        int blurSamples = 2 * (2 * offsets.length - 1);
+        if (downScale == 1) {
+            return blurSamples;
+        }
+        // 缩小和模糊在 1/downScale^2 的像素上，放大在全分辨率上采样2次(模糊结果和原图)
+        return (1f + blurSamples) / (downScale * downScale) + 2;
+    }
+
+    private String buildKernelShader() {
+        StringBuilder sb = new StringBuilder("#define GAUSSIAN_SUM");
+        sb.append(String.format(Locale.US, " sum += texture2D(uCamTexture, vCamTextureCoord).rgb * %.8f;", weights[0]));
+        for (int k = 1; k < offsets.length; k++) {
+            sb.append(String.format(Locale.US,
+                    " sum += (texture2D(uCamTexture, vCamTextureCoord + step * %.6f).rgb"
+                            + " + texture2D(uCamTexture, vCamTextureCoord - step * %.6f).rgb) * %.8f;",
+                    offsets[k], offsets[k], weights[k]));
+        }
+        return sb.append('\n').toString();
+    }
+
+    /**
+     * 该区域内不做模糊，纹理坐标[0,1]，left>=right时不生效
+     */
+    public void setIgnoreRect(float left, float top, float right, float bottom) {
+        ignoreRect[0] = left;
+        ignoreRect[1] = top;
+        ignoreRect[2] = right;
+        ignoreRect[3] = bottom;
+    }
+
+    /**
+     * 开启后每次绘制都会glFinish并统计耗时，仅用于调试
+     */
+    public void setProfileEnabled(boolean enabled) {
+        profileEnabled = enabled;
+        profileTotalNs = 0;
+        profileFrames = 0;
+    }
+
+    /**
+     * @return 最近{@value #PROFILE_FRAME_COUNT}帧的平均绘制耗时，需要先{@link #setProfileEnabled}
+     */
+    public float getAverageDrawTimeMs() {
+        return averageDrawTimeMs;
     }
 
     @Override
     public void onInit(int videoWidth, int videoHeight) {
         super.onInit(videoWidth, videoHeight);
-        String fragShader = "#define GAUSSIAN_BLUR_RADIUS "+blurRadius+".\n"+fragmentshader_filter;
+        // GLSL ES没有续行，整个展开的求和写在一行宏里
+        String fragShader = buildKernelShader() + fragmentshader_filter;
         glProgram = GLESTools.createProgram(vertexShader_filter, fragShader);
         GLES20.glUseProgram(glProgram);
         glTextureLoc = GLES20.glGetUniformLocation(glProgram, "uCamTexture");
+        glOriginTextureLoc = GLES20.glGetUniformLocation(glProgram, "uOriginTexture");
         glCamPostionLoc = GLES20.glGetAttribLocation(glProgram, "aCamPosition");
         glCamTextureCoordLoc = GLES20.glGetAttribLocation(glProgram, "aCamTextureCoord");
-        glStepLoc = GLES20.glGetUniformLocation(glProgram,"step");
-        glIgnoreRect = GLES20.glGetUniformLocation(glProgram,"ignoreRect");
+        glStepLoc = GLES20.glGetUniformLocation(glProgram, "step");
+        glIgnoreRect = GLES20.glGetUniformLocation(glProgram, "ignoreRect");
+
+        blurWidth = Math.max(1, outVideoWidth / downScale);
+        blurHeight = Math.max(1, outVideoHeight / downScale);
+        // 水平结果一个，缩小模式下缩小结果和垂直结果共用另一个
+        int targetCount = downScale == 1 ? 1 : 2;
+        frameBuffers = new int[targetCount];
+        frameBufferTextures = new int[targetCount];
+        for (int i = 0; i < targetCount; i++) {
+            int[] frameBuffer = new int[1];
+            int[] frameBufferTexture = new int[1];
+            GLESTools.createFrameBuff(frameBuffer, frameBufferTexture, blurWidth, blurHeight);
+            frameBuffers[i] = frameBuffer[0];
+            frameBufferTextures[i] = frameBufferTexture[0];
+        }
+        if (downScale != 1) {
+            glUpsampleProgram = GLESTools.createProgram(vertexShader_filter, UPSAMPLE_FRAGMENTSHADER);
+            GLES20.glUseProgram(glUpsampleProgram);
+            glUpsampleTextureLoc = GLES20.glGetUniformLocation(glUpsampleProgram, "uCamTexture");
+            glUpsampleOriginTextureLoc = GLES20.glGetUniformLocation(glUpsampleProgram, "uOriginTexture");
+            glUpsampleCamPostionLoc = GLES20.glGetAttribLocation(glUpsampleProgram, "aCamPosition");
+            glUpsampleCamTextureCoordLoc = GLES20.glGetAttribLocation(glUpsampleProgram, "aCamTextureCoord");
+            glUpsampleIgnoreRect = GLES20.glGetUniformLocation(glUpsampleProgram, "ignoreRect");
+        }
+        GLES20.glUseProgram(0);
     }
 
     @Override
     public void onDraw(int cameraTexture, int targetFrameBuffer, FloatBuffer shapeBuffer, FloatBuffer textureBuffer) {
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, targetFrameBuffer);
-        GLES20.glUseProgram(glProgram);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        long startTime = profileEnabled ? System.nanoTime() : 0;
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, cameraTexture);
-        GLES20.glUniform1i(glTextureLoc, 0);
-        GLES20.glUniform2f(glStepLoc,1f/ outVideoWidth,0f);
+        int blurSource = cameraTexture;
+        if (downScale != 1) {
+            // 先缩小，模糊的采样偏移都以模糊分辨率的像素为单位
+            useUpsampleProgram(shapeBuffer, textureBuffer, null);
+            drawPass(cameraTexture, frameBuffers[0], blurWidth, blurHeight);
+            disableUpsampleProgram();
+            blurSource = frameBufferTextures[0];
+        }
+        GLES20.glUseProgram(glProgram);
         GLES20.glEnableVertexAttribArray(glCamPostionLoc);
         GLES20.glEnableVertexAttribArray(glCamTextureCoordLoc);
         shapeBuffer.position(0);
@@ -61,24 +246,105 @@ public class GaussianBlurHardFilter extends BaseHardVideoFilter {
         GLES20.glVertexAttribPointer(glCamTextureCoordLoc, 2,
                 GLES20.GL_FLOAT, false,
                 2 * 4, textureBuffer);
-        GLES20.glViewport(0, 0, outVideoWidth, outVideoHeight);
         GLES20.glUniform1i(glTextureLoc, 0);
-        GLES20.glUniform2f(glStepLoc,0f,1f/ outVideoHeight);
-        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-        GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawIndexesBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, drawIndexesBuffer);
-        GLES20.glFinish();
-
+        GLES20.glUniform1i(glOriginTextureLoc, 1);
+        // horizontal
+        GLES20.glUniform4f(glIgnoreRect, 0f, 0f, 0f, 0f);
+        GLES20.glUniform2f(glStepLoc, 1f / blurWidth, 0f);
+        int horizontalTarget = downScale == 1 ? 0 : 1;
+        drawPass(blurSource, frameBuffers[horizontalTarget], blurWidth, blurHeight);
+        // vertical
+        GLES20.glUniform2f(glStepLoc, 0f, 1f / blurHeight);
+        if (downScale == 1) {
+            GLES20.glUniform4fv(glIgnoreRect, 1, ignoreRect, 0);
+            drawPass(frameBufferTextures[0], targetFrameBuffer, outVideoWidth, outVideoHeight);
+        } else {
+            drawPass(frameBufferTextures[1], frameBuffers[0], blurWidth, blurHeight);
+        }
         GLES20.glDisableVertexAttribArray(glCamPostionLoc);
         GLES20.glDisableVertexAttribArray(glCamTextureCoordLoc);
+        if (downScale != 1) {
+            // upsample
+            useUpsampleProgram(shapeBuffer, textureBuffer, ignoreRect);
+            drawPass(frameBufferTextures[0], targetFrameBuffer, outVideoWidth, outVideoHeight);
+            disableUpsampleProgram();
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
         GLES20.glUseProgram(0);
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (profileEnabled) {
+            GLES20.glFinish();
+            profileTotalNs += System.nanoTime() - startTime;
+            if (++profileFrames == PROFILE_FRAME_COUNT) {
+                averageDrawTimeMs = profileTotalNs / 1000000f / profileFrames;
+                Log.d(TAG, "radius=" + blurRadius + ", downScale=" + downScale + ", taps=" + offsets.length
+                        + ", samples/pixel=" + getSamplesPerPixel() + ", avg draw time=" + averageDrawTimeMs + "ms");
+                profileTotalNs = 0;
+                profileFrames = 0;
+            }
+        }
+    }
+
+    /**
+     * 缩小和放大都是带忽略区域的拷贝，缩小时不忽略
+     */
+    private void useUpsampleProgram(FloatBuffer shapeBuffer, FloatBuffer textureBuffer, float[] rect) {
+        GLES20.glUseProgram(glUpsampleProgram);
+        GLES20.glEnableVertexAttribArray(glUpsampleCamPostionLoc);
+        GLES20.glEnableVertexAttribArray(glUpsampleCamTextureCoordLoc);
+        shapeBuffer.position(0);
+        GLES20.glVertexAttribPointer(glUpsampleCamPostionLoc, 2,
+                GLES20.GL_FLOAT, false,
+                2 * 4, shapeBuffer);
+        textureBuffer.position(0);
+        GLES20.glVertexAttribPointer(glUpsampleCamTextureCoordLoc, 2,
+                GLES20.GL_FLOAT, false,
+                2 * 4, textureBuffer);
+        GLES20.glUniform1i(glUpsampleTextureLoc, 0);
+        GLES20.glUniform1i(glUpsampleOriginTextureLoc, 1);
+        if (rect != null) {
+            GLES20.glUniform4fv(glUpsampleIgnoreRect, 1, rect, 0);
+        } else {
+            GLES20.glUniform4f(glUpsampleIgnoreRect, 0f, 0f, 0f, 0f);
+        }
+    }
+
+    private void disableUpsampleProgram() {
+        GLES20.glDisableVertexAttribArray(glUpsampleCamPostionLoc);
+        GLES20.glDisableVertexAttribArray(glUpsampleCamTextureCoordLoc);
+    }
+
+    private void drawPass(int texture, int frameBuffer, int width, int height) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawIndexesBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, drawIndexesBuffer);
+    }
+
+    @Override
+    public long getGpuMemoryUsage() {
+        return frameBuffers == null ? 0 : (long) frameBuffers.length * blurWidth * blurHeight * 4;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         GLES20.glDeleteProgram(glProgram);
+        if (glUpsampleProgram != 0) {
+            GLES20.glDeleteProgram(glUpsampleProgram);
+            glUpsampleProgram = 0;
+        }
+        if (frameBuffers != null) {
+            GLES20.glDeleteFramebuffers(frameBuffers.length, frameBuffers, 0);
+            GLES20.glDeleteTextures(frameBufferTextures.length, frameBufferTextures, 0);
+            frameBuffers = null;
+            frameBufferTextures = null;
+        }
     }
 }
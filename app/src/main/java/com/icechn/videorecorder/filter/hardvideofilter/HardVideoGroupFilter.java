@@ -5,6 +5,7 @@ import android.opengl.GLES20;
 import com.icechn.videorecorder.tools.GLESTools;
 
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -13,53 +14,80 @@ import java.util.List;
  */
 public class HardVideoGroupFilter extends BaseHardVideoFilter {
     private LinkedList<FilterWrapper> filterWrappers;
+    private int[] frameBuffers;
+    private int[] frameBufferTextures;
 
     public HardVideoGroupFilter(List<BaseHardVideoFilter> filters) {
         if (filters == null || filters.isEmpty()) {
             throw new IllegalArgumentException("can not create empty GroupFilter");
         }
         filterWrappers = new LinkedList<FilterWrapper>();
+        List<IPointFilter> pointFilters = new ArrayList<IPointFilter>();
         for (BaseHardVideoFilter filter : filters) {
+            if (isFusible(filter)) {
+                pointFilters.add((IPointFilter) filter);
+                continue;
+            }
+            flushPointFilters(pointFilters);
             filterWrappers.add(new FilterWrapper(filter));
         }
+        flushPointFilters(pointFilters);
+    }
+
+    private static boolean isFusible(BaseHardVideoFilter filter) {
+        return filter instanceof IPointFilter
+                && ((IPointFilter) filter).getColorTransformSnippet() != null;
+    }
+
+    /**
+     * consecutive point filters are drawn by one fused program in a single pass
+     */
+    private void flushPointFilters(List<IPointFilter> pointFilters) {
+        if (pointFilters.isEmpty()) {
+            return;
+        }
+        if (pointFilters.size() == 1) {
+            filterWrappers.add(new FilterWrapper((BaseHardVideoFilter) pointFilters.get(0)));
+        } else {
+            filterWrappers.add(new FilterWrapper(new FusedPointHardVideoFilter(pointFilters)));
+        }
+        pointFilters.clear();
     }
 
     @Override
     public void onInit(int VWidth, int VHeight) {
         super.onInit(VWidth, VHeight);
-        int i = 0;
         for (FilterWrapper wrapper : filterWrappers) {
             wrapper.filter.onInit(VWidth, VHeight);
+        }
+        // 每一级只会读取上一级的输出，两个FrameBuffer交替使用即可，最后一级直接画到targetFrameBuffer
+        int targetCount = Math.min(filterWrappers.size() - 1, 2);
+        frameBuffers = new int[targetCount];
+        frameBufferTextures = new int[targetCount];
+        for (int i = 0; i < targetCount; i++) {
             int[] frameBuffer = new int[1];
             int[] frameBufferTexture = new int[1];
             GLESTools.createFrameBuff(frameBuffer,
                     frameBufferTexture,
                     outVideoWidth,
                     outVideoHeight);
-            wrapper.frameBuffer = frameBuffer[0];
-            wrapper.frameBufferTexture = frameBufferTexture[0];
-            i++;
+            frameBuffers[i] = frameBuffer[0];
+            frameBufferTextures[i] = frameBufferTexture[0];
         }
     }
 
 
     @Override
     public void onDraw(int cameraTexture, int targetFrameBuffer, FloatBuffer shapeBuffer, FloatBuffer textureBuffer) {
-        FilterWrapper preFilterWrapper = null;
         int i = 0;
-        int texture;
+        int texture = cameraTexture;
         for (FilterWrapper wrapper : filterWrappers) {
-            if (preFilterWrapper == null) {
-                texture = cameraTexture;
-            } else {
-                texture = preFilterWrapper.frameBufferTexture;
-            }
             if (i == (filterWrappers.size() - 1)) {
                 wrapper.filter.onDraw(texture, targetFrameBuffer, shapeBuffer, textureBuffer);
             } else {
-                wrapper.filter.onDraw(texture, wrapper.frameBuffer, shapeBuffer, textureBuffer);
+                wrapper.filter.onDraw(texture, frameBuffers[i % 2], shapeBuffer, textureBuffer);
+                texture = frameBufferTextures[i % 2];
             }
-            preFilterWrapper = wrapper;
             i++;
         }
     }
@@ -69,9 +97,25 @@ public class HardVideoGroupFilter extends BaseHardVideoFilter {
         super.onDestroy();
         for (FilterWrapper wrapper : filterWrappers) {
             wrapper.filter.onDestroy();
-            GLES20.glDeleteFramebuffers(1, new int[]{wrapper.frameBuffer}, 0);
-            GLES20.glDeleteTextures(1, new int[]{wrapper.frameBufferTexture}, 0);
         }
+        if (frameBuffers != null) {
+            GLES20.glDeleteFramebuffers(frameBuffers.length, frameBuffers, 0);
+            GLES20.glDeleteTextures(frameBufferTextures.length, frameBufferTextures, 0);
+            frameBuffers = null;
+            frameBufferTextures = null;
+        }
+    }
+
+    /**
+     * @return ping-pong FrameBuffer加上所有子滤镜占用的显存
+     */
+    @Override
+    public long getGpuMemoryUsage() {
+        long usage = frameBuffers == null ? 0 : (long) frameBuffers.length * outVideoWidth * outVideoHeight * 4;
+        for (FilterWrapper wrapper : filterWrappers) {
+            usage += wrapper.filter.getGpuMemoryUsage();
+        }
+        return usage;
     }
 
     @Override
@@ -82,10 +126,16 @@ public class HardVideoGroupFilter extends BaseHardVideoFilter {
         }
     }
 
+    @Override
+    public void onFrameTimeUpdate(long timestampMs) {
+        super.onFrameTimeUpdate(timestampMs);
+        for (FilterWrapper wrapper : filterWrappers) {
+            wrapper.filter.onFrameTimeUpdate(timestampMs);
+        }
+    }
+
     private class FilterWrapper {
         BaseHardVideoFilter filter;
-        int frameBuffer;
-        int frameBufferTexture;
 
         FilterWrapper(BaseHardVideoFilter filter) {
             this.filter = filter;
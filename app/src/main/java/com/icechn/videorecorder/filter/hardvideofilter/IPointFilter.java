@@ -0,0 +1,37 @@
+package com.icechn.videorecorder.filter.hardvideofilter;
+
+/**
+ * 逐像素（point operation）滤镜，输出颜色只取决于同一坐标的输入颜色。
+ * 实现此接口的滤镜可以被 {@link HardVideoGroupFilter} 将相邻的多个合并为一个 Program，一次绘制完成。
+ * <p>
+ * snippet 中所有的 uniform 以及函数名都需要以 {@link #PREFIX} 开头，合并时会被替换为唯一前缀，
+ * 且必须声明函数 <code>vec4 PREFIX_transform(vec4 color)</code>。
+ */
+public interface IPointFilter {
+
+    String PREFIX = "PREFIX_";
+    String TRANSFORM_FUNCTION = PREFIX + "transform";
+
+    /**
+     * @return glsl snippet, null if this filter can not be fused
+     */
+    String getColorTransformSnippet();
+
+    /**
+     * called on GL thread after the fused program linked
+     *
+     * @param glProgram fused program
+     * @param prefix    the real prefix of uniforms in this filter's snippet
+     */
+    void onFusedInit(int glProgram, String prefix);
+
+    /**
+     * called on GL thread before the fused draw, the fused program is in use
+     *
+     * @param textureUnit first free texture unit
+     * @return number of texture units used by this filter
+     */
+    int onFusedPreDraw(int textureUnit);
+
+    void onFusedDestroy();
+}
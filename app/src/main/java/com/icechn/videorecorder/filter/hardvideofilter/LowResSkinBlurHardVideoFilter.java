@@ -0,0 +1,95 @@
+package com.icechn.videorecorder.filter.hardvideofilter;
+
+import android.content.Context;
+import android.opengl.GLES20;
+
+import com.icechn.videorecorder.tools.GLESTools;
+
+import java.nio.FloatBuffer;
+
+/**
+ * 低分辨率磨皮。
+ * 先在1/2分辨率的FrameBuffer中执行{@link SkinBlurHardVideoFilter}的选择性模糊（采样范围与全分辨率一致），
+ * 再在全分辨率下逐像素判断肤色，并把放大后的模糊结果按通道限制偏差后合成，只有合成一次是全分辨率。
+ * 肤色像素的采样从全分辨率的26次降为 26/4 + 2 次，非肤色像素反而从1次增加到 1/4 + 1 次，
+ * 还多一次FrameBuffer切换，肤色占比低的画面不一定更快。
+ * 是否更快以设备上的实测为准，见androidTest中的SkinBlurBenchmark。
+ */
+public class LowResSkinBlurHardVideoFilter extends OriginalHardVideoFilter {
+    private static final int DOWN_SCALE = 2;
+
+    private SkinBlurHardVideoFilter smoothFilter;
+    private int glSmoothTextureLoc;
+    private int smoothWidth;
+    private int smoothHeight;
+    private int smoothFrameBuffer;
+    private int smoothFrameBufferTexture;
+
+    /**
+     * @param stepScale suggest:480P = 2,720P = 3
+     */
+    public LowResSkinBlurHardVideoFilter(Context context, int stepScale) {
+        super(null, GLESTools.uRes(context.getResources(), "skinblur_composite_fragment.sh"));
+        // 在小图中的采样间隔缩小相同倍数，保证模糊半径和全分辨率时相同
+        smoothFilter = new SkinBlurHardVideoFilter(context, (float) stepScale / DOWN_SCALE);
+        // 小图只在本上下文中被合成使用，只在合成后glFinish一次
+        smoothFilter.setFinishAfterDraw(false);
+    }
+
+    @Override
+    public void onInit(int VWidth, int VHeight) {
+        super.onInit(VWidth, VHeight);
+        glSmoothTextureLoc = GLES20.glGetUniformLocation(glProgram, "uSmoothTexture");
+        smoothWidth = Math.max(1, VWidth / DOWN_SCALE);
+        smoothHeight = Math.max(1, VHeight / DOWN_SCALE);
+        smoothFilter.onInit(smoothWidth, smoothHeight);
+        int[] frameBuffer = new int[1];
+        int[] frameBufferTexture = new int[1];
+        GLESTools.createFrameBuff(frameBuffer, frameBufferTexture, smoothWidth, smoothHeight);
+        smoothFrameBuffer = frameBuffer[0];
+        smoothFrameBufferTexture = frameBufferTexture[0];
+    }
+
+    @Override
+    public void onDraw(int cameraTexture, int targetFrameBuffer, FloatBuffer shapeBuffer, FloatBuffer textureBuffer) {
+        long startTime = beginProfile();
+        smoothFilter.onDraw(cameraTexture, smoothFrameBuffer, shapeBuffer, textureBuffer);
+        draw(cameraTexture, targetFrameBuffer, shapeBuffer, textureBuffer);
+        endProfile(startTime);
+    }
+
+    @Override
+    protected void onPreDraw() {
+        super.onPreDraw();
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, smoothFrameBufferTexture);
+        GLES20.glUniform1i(glSmoothTextureLoc, 1);
+    }
+
+    @Override
+    protected void onAfterDraw() {
+        super.onAfterDraw();
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    }
+
+    @Override
+    public void onDirectionUpdate(int _directionFlag) {
+        super.onDirectionUpdate(_directionFlag);
+        smoothFilter.onDirectionUpdate(_directionFlag);
+    }
+
+    @Override
+    public long getGpuMemoryUsage() {
+        return (long) smoothWidth * smoothHeight * 4;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        smoothFilter.onDestroy();
+        GLES20.glDeleteFramebuffers(1, new int[]{smoothFrameBuffer}, 0);
+        GLES20.glDeleteTextures(1, new int[]{smoothFrameBufferTexture}, 0);
+    }
+}
@@ -0,0 +1,193 @@
+package com.icechn.videorecorder.filter.hardvideofilter;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.icechn.videorecorder.filter.lut.CubeLut;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Collections;
+
+/**
+ * 3D LUT调色，LUT通过{@link com.icechn.videorecorder.filter.lut.CubeLutLoader}加载。
+ * 每个像素查一次表，蓝色分量在相邻两块之间插值，红绿由纹理线性过滤插值。
+ * 可以被{@link HardVideoGroupFilter}和其它逐像素滤镜合并绘制。
+ * LUT纹理超过GL_MAX_TEXTURE_SIZE时不调色，直接输出原图。
+ */
+public class LutHardVideoFilter extends BaseHardVideoFilter implements IPointFilter {
+    private static final String TAG = "LutHardVideoFilter";
+    protected static final String COLOR_TRANSFORM_SNIPPET = "" +
+            "uniform sampler2D " + PREFIX + "LutTexture;\n" +
+            "uniform float " + PREFIX + "LutSize;\n" +
+            "uniform float " + PREFIX + "LutColumns;\n" +
+            "uniform vec2 " + PREFIX + "LutTextureSize;\n" +
+            "uniform float " + PREFIX + "Intensity;\n" +
+            // 第b块位于网格的(b % columns, b / columns)，+0.5避免整除时的精度误差
+            "vec2 " + PREFIX + "lutCoord(float b, vec2 rg){\n" +
+            "   float row = floor((b + 0.5) / " + PREFIX + "LutColumns);\n" +
+            "   float col = b - row * " + PREFIX + "LutColumns;\n" +
+            "   return (vec2(col, row) * " + PREFIX + "LutSize + rg + 0.5) / " + PREFIX + "LutTextureSize;\n" +
+            "}\n" +
+            "vec4 " + TRANSFORM_FUNCTION + "(vec4 color){\n" +
+            "   float n = " + PREFIX + "LutSize;\n" +
+            "   vec3 c = clamp(color.rgb, 0.0, 1.0) * (n - 1.0);\n" +
+            "   float b0 = floor(c.b);\n" +
+            "   float b1 = min(b0 + 1.0, n - 1.0);\n" +
+            "   vec3 c0 = texture2D(" + PREFIX + "LutTexture, " + PREFIX + "lutCoord(b0, c.rg)).rgb;\n" +
+            "   vec3 c1 = texture2D(" + PREFIX + "LutTexture, " + PREFIX + "lutCoord(b1, c.rg)).rgb;\n" +
+            "   vec3 graded = mix(c0, c1, c.b - b0);\n" +
+            "   return vec4(mix(color.rgb, graded, " + PREFIX + "Intensity), color.a);\n" +
+            "}";
+
+    private volatile CubeLut pendingLut;
+    private volatile float intensity = 1.0f;
+    private CubeLut currentLut;
+    // 超过GL_MAX_TEXTURE_SIZE的LUT，只打一次日志
+    private CubeLut rejectedLut;
+    private int maxTextureSize;
+    private FusedPointHardVideoFilter drawFilter;
+    private int lutTexture;
+    private int glLutTextureLoc;
+    private int glLutSizeLoc;
+    private int glLutColumnsLoc;
+    private int glLutTextureSizeLoc;
+    private int glIntensityLoc;
+
+    public LutHardVideoFilter(CubeLut lut) {
+        if (lut == null) {
+            throw new IllegalArgumentException("lut can not be null");
+        }
+        pendingLut = lut;
+    }
+
+    /**
+     * 切换LUT，可以在任意线程调用，下一帧生效。
+     * 纹理超过GL_MAX_TEXTURE_SIZE时不调色，直到设置可以上传的LUT
+     */
+    public void setLut(CubeLut lut) {
+        if (lut == null) {
+            throw new IllegalArgumentException("lut can not be null");
+        }
+        pendingLut = lut;
+    }
+
+    /**
+     * @param intensity 0为原图，1为完全使用LUT
+     */
+    public void setIntensity(float intensity) {
+        this.intensity = Math.max(0f, Math.min(1f, intensity));
+    }
+
+    @Override
+    public void onInit(int videoWidth, int videoHeight) {
+        super.onInit(videoWidth, videoHeight);
+        drawFilter = new FusedPointHardVideoFilter(Collections.<IPointFilter>singletonList(this));
+        drawFilter.onInit(videoWidth, videoHeight);
+    }
+
+    @Override
+    public void onDraw(int cameraTexture, int targetFrameBuffer, FloatBuffer shapeBuffer, FloatBuffer textureBuffer) {
+        drawFilter.onDraw(cameraTexture, targetFrameBuffer, shapeBuffer, textureBuffer);
+    }
+
+    @Override
+    public void onDirectionUpdate(int _directionFlag) {
+        super.onDirectionUpdate(_directionFlag);
+        if (drawFilter != null) {
+            drawFilter.onDirectionUpdate(_directionFlag);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (drawFilter != null) {
+            drawFilter.onDestroy();
+            drawFilter = null;
+        }
+    }
+
+    @Override
+    public long getGpuMemoryUsage() {
+        return currentLut == null ? 0 : currentLut.getByteCount();
+    }
+
+    @Override
+    public String getColorTransformSnippet() {
+        return COLOR_TRANSFORM_SNIPPET;
+    }
+
+    @Override
+    public void onFusedInit(int glProgram, String prefix) {
+        int[] texture = new int[1];
+        GLES20.glGenTextures(1, texture, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        lutTexture = texture[0];
+        currentLut = null;
+        rejectedLut = null;
+        int[] maxSize = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxSize, 0);
+        maxTextureSize = maxSize[0];
+        glLutTextureLoc = GLES20.glGetUniformLocation(glProgram, prefix + "LutTexture");
+        glLutSizeLoc = GLES20.glGetUniformLocation(glProgram, prefix + "LutSize");
+        glLutColumnsLoc = GLES20.glGetUniformLocation(glProgram, prefix + "LutColumns");
+        glLutTextureSizeLoc = GLES20.glGetUniformLocation(glProgram, prefix + "LutTextureSize");
+        glIntensityLoc = GLES20.glGetUniformLocation(glProgram, prefix + "Intensity");
+    }
+
+    @Override
+    public int onFusedPreDraw(int textureUnit) {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + textureUnit);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, lutTexture);
+        CubeLut lut = pendingLut;
+        if (lut != currentLut && lut != rejectedLut) {
+            if (lut.getTextureWidth() > maxTextureSize || lut.getTextureHeight() > maxTextureSize) {
+                Log.e(TAG, "LUT_3D_SIZE " + lut.getSize() + " needs " + lut.getTextureWidth() + "x" + lut.getTextureHeight()
+                        + ", exceeds GL_MAX_TEXTURE_SIZE " + maxTextureSize + ", passthrough");
+                rejectedLut = lut;
+            } else {
+                uploadLut(lut);
+                rejectedLut = null;
+            }
+        }
+        GLES20.glUniform1i(glLutTextureLoc, textureUnit);
+        if (lut == currentLut) {
+            GLES20.glUniform1f(glLutSizeLoc, currentLut.getSize());
+            GLES20.glUniform1f(glLutColumnsLoc, currentLut.getColumns());
+            GLES20.glUniform2f(glLutTextureSizeLoc, currentLut.getTextureWidth(), currentLut.getTextureHeight());
+            GLES20.glUniform1f(glIntensityLoc, intensity);
+        } else {
+            // 没有可用的LUT，输出原图
+            GLES20.glUniform1f(glLutSizeLoc, 2);
+            GLES20.glUniform1f(glLutColumnsLoc, 2);
+            GLES20.glUniform2f(glLutTextureSizeLoc, 4, 2);
+            GLES20.glUniform1f(glIntensityLoc, 0);
+        }
+        return 1;
+    }
+
+    private void uploadLut(CubeLut lut) {
+        ByteBuffer data = ByteBuffer.wrap(lut.getRgba());
+        if (currentLut != null && currentLut.getSize() == lut.getSize()) {
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, lut.getTextureWidth(), lut.getTextureHeight(),
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, data);
+        } else {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, lut.getTextureWidth(), lut.getTextureHeight(), 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, data);
+        }
+        currentLut = lut;
+    }
+
+    @Override
+    public void onFusedDestroy() {
+        GLES20.glDeleteTextures(1, new int[]{lutTexture}, 0);
+        lutTexture = 0;
+        currentLut = null;
+    }
+}
@@ -2,6 +2,7 @@ package com.icechn.videorecorder.filter.hardvideofilter;
 
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.util.Log;
 
 
 import com.icechn.videorecorder.tools.GLESTools;
@@ -12,10 +13,18 @@ import java.nio.FloatBuffer;
  * Created by lake on 16-5-31.
  */
 public class OriginalHardVideoFilter extends BaseHardVideoFilter {
+    private static final String TAG = "OriginalHardVideoFilter";
+    private static final int PROFILE_FRAME_COUNT = 100;
     protected int glProgram;
     protected int glTextureLoc;
     protected int glCamPostionLoc;
     protected int glCamTextureCoordLoc;
+    // 同一上下文中的后续绘制不需要等待，只有作为中间结果时可以关闭
+    private boolean finishAfterDraw = true;
+    private boolean profileEnabled = false;
+    private long profileTotalNs;
+    private int profileFrames;
+    private volatile float averageDrawTimeMs;
     protected String vertexShader_filter = "" +
             "attribute vec4 aCamPosition;\n" +
             "attribute vec2 aCamTextureCoord;\n" +
@@ -53,8 +62,59 @@ public class OriginalHardVideoFilter extends BaseHardVideoFilter {
     }
 
 
+    /**
+     * 开启后每次绘制都会glFinish并统计耗时，仅用于调试
+     */
+    public void setProfileEnabled(boolean enabled) {
+        profileEnabled = enabled;
+        profileTotalNs = 0;
+        profileFrames = 0;
+    }
+
+    /**
+     * @return 最近{@value #PROFILE_FRAME_COUNT}帧的平均绘制耗时，需要先{@link #setProfileEnabled}
+     */
+    public float getAverageDrawTimeMs() {
+        return averageDrawTimeMs;
+    }
+
+    /**
+     * 结果只被同一上下文中的后续绘制使用时不需要glFinish
+     */
+    void setFinishAfterDraw(boolean finish) {
+        finishAfterDraw = finish;
+    }
+
     @Override
     public void onDraw(int cameraTexture, int targetFrameBuffer, FloatBuffer shapeBuffer, FloatBuffer textureBuffer) {
+        long startTime = beginProfile();
+        draw(cameraTexture, targetFrameBuffer, shapeBuffer, textureBuffer);
+        endProfile(startTime);
+    }
+
+    protected long beginProfile() {
+        return profileEnabled ? System.nanoTime() : 0;
+    }
+
+    protected void endProfile(long startTime) {
+        if (!profileEnabled) {
+            return;
+        }
+        GLES20.glFinish();
+        profileTotalNs += System.nanoTime() - startTime;
+        if (++profileFrames == PROFILE_FRAME_COUNT) {
+            averageDrawTimeMs = profileTotalNs / 1000000f / profileFrames;
+            Log.d(TAG, getClass().getSimpleName() + " " + outVideoWidth + "x" + outVideoHeight
+                    + ", avg draw time=" + averageDrawTimeMs + "ms");
+            profileTotalNs = 0;
+            profileFrames = 0;
+        }
+    }
+
+    /**
+     * 不含耗时统计的绘制
+     */
+    protected void draw(int cameraTexture, int targetFrameBuffer, FloatBuffer shapeBuffer, FloatBuffer textureBuffer) {
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, targetFrameBuffer);
         GLES20.glUseProgram(glProgram);
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
@@ -75,7 +135,9 @@ public class OriginalHardVideoFilter extends BaseHardVideoFilter {
         GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
         GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawIndexesBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, drawIndexesBuffer);
-        GLES20.glFinish();
+        if (finishAfterDraw) {
+            GLES20.glFinish();
+        }
         onAfterDraw();
         GLES20.glDisableVertexAttribArray(glCamPostionLoc);
         GLES20.glDisableVertexAttribArray(glCamTextureCoordLoc);
@@ -19,8 +19,15 @@ public class SkinBlurHardVideoFilter extends OriginalHardVideoFilter {
      * @param stepScale suggest:480P = 2,720P = 3
      */
     public SkinBlurHardVideoFilter(Context context, int stepScale) {
+        this(context, (float) stepScale);
+    }
+
+    /**
+     * @param stepScale 采样间隔，以输出分辨率的像素为单位
+     */
+    public SkinBlurHardVideoFilter(Context context, float stepScale) {
         super(null, GLESTools.uRes(context.getResources(), "skinblur_fragment.sh"));
-        this.stepScale = (float) stepScale;
+        this.stepScale = stepScale;
     }
 
     @Override
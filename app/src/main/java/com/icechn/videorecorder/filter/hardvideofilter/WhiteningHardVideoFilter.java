@@ -12,7 +12,7 @@ import java.nio.FloatBuffer;
 
 /**
  */
-public class WhiteningHardVideoFilter extends BaseHardVideoFilter {
+public class WhiteningHardVideoFilter extends BaseHardVideoFilter implements IPointFilter {
     byte[] colorMap;
 
     public WhiteningHardVideoFilter() {
@@ -51,12 +51,31 @@ public class WhiteningHardVideoFilter extends BaseHardVideoFilter {
             "   float b = texture2D(uColorMapTexture, vec2(c1.b,0.0)).b;\n" +
             "   gl_FragColor = vec4(r,g,b,1.0);\n" +
             "}";
+    protected static String COLOR_TRANSFORM_SNIPPET = "" +
+            "uniform sampler2D " + PREFIX + "ColorMapTexture;\n" +
+            "vec4 " + TRANSFORM_FUNCTION + "(vec4 c1){\n" +
+            "   float r = texture2D(" + PREFIX + "ColorMapTexture, vec2(c1.r,0.0)).r;\n" +
+            "   float g = texture2D(" + PREFIX + "ColorMapTexture, vec2(c1.g,0.0)).g;\n" +
+            "   float b = texture2D(" + PREFIX + "ColorMapTexture, vec2(c1.b,0.0)).b;\n" +
+            "   return vec4(r,g,b,1.0);\n" +
+            "}";
     protected int imageTexture;
 
 
     @Override
     public void onInit(int VWidth, int VHeight) {
         super.onInit(VWidth, VHeight);
+        imageTexture = createColorMapTexture();
+        glProgram = GLESTools.createProgram(VERTEXSHADER, FRAGMENTSHADER);
+        GLES20.glUseProgram(glProgram);
+        glCamTextureLoc = GLES20.glGetUniformLocation(glProgram, "uCamTexture");
+        glColorMapTextureLoc = GLES20.glGetUniformLocation(glProgram, "uColorMapTexture");
+        glCamPostionLoc = GLES20.glGetAttribLocation(glProgram, "aCamPosition");
+        glCamTextureCoordLoc = GLES20.glGetAttribLocation(glProgram, "aCamTextureCoord");
+
+    }
+
+    private int createColorMapTexture() {
         int texture[] = new int[1];
         GLES20.glGenTextures(1, texture, 0);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
@@ -75,14 +94,7 @@ public class WhiteningHardVideoFilter extends BaseHardVideoFilter {
         result.position(0);
         GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, 256, 1, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, result);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-        imageTexture = texture[0];
-        glProgram = GLESTools.createProgram(VERTEXSHADER, FRAGMENTSHADER);
-        GLES20.glUseProgram(glProgram);
-        glCamTextureLoc = GLES20.glGetUniformLocation(glProgram, "uCamTexture");
-        glColorMapTextureLoc = GLES20.glGetUniformLocation(glProgram, "uColorMapTexture");
-        glCamPostionLoc = GLES20.glGetAttribLocation(glProgram, "aCamPosition");
-        glCamTextureCoordLoc = GLES20.glGetAttribLocation(glProgram, "aCamTextureCoord");
-
+        return texture[0];
     }
 
     @Override
@@ -123,4 +135,34 @@ public class WhiteningHardVideoFilter extends BaseHardVideoFilter {
         GLES20.glDeleteProgram(glProgram);
         GLES20.glDeleteTextures(1, new int[]{imageTexture}, 0);
     }
+
+    @Override
+    public long getGpuMemoryUsage() {
+        // 256x1 RGBA color map
+        return 256 * 4;
+    }
+
+    @Override
+    public String getColorTransformSnippet() {
+        return COLOR_TRANSFORM_SNIPPET;
+    }
+
+    @Override
+    public void onFusedInit(int glProgram, String prefix) {
+        imageTexture = createColorMapTexture();
+        glColorMapTextureLoc = GLES20.glGetUniformLocation(glProgram, prefix + "ColorMapTexture");
+    }
+
+    @Override
+    public int onFusedPreDraw(int textureUnit) {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + textureUnit);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, imageTexture);
+        GLES20.glUniform1i(glColorMapTextureLoc, textureUnit);
+        return 1;
+    }
+
+    @Override
+    public void onFusedDestroy() {
+        GLES20.glDeleteTextures(1, new int[]{imageTexture}, 0);
+    }
 }
@@ -0,0 +1,25 @@
+package com.icechn.videorecorder.filter.image;
+
+/**
+ * 序列帧贴纸，resId为按行排列的sprite sheet，
+ * 第i帧位于第 i / columns 行、第 i % columns 列。
+ */
+public class AnimatedImageDrawData extends DrawMultiImageFilter.ImageDrawData {
+    public int frameCount = 1;
+    public int columns = 1;
+    public int rows = 1;
+    public float fps = 15;
+    public boolean loop = true;
+
+    /**
+     * @param elapsedMs 从第一次绘制开始经过的时间
+     * @return 当前应显示的帧
+     */
+    public int getFrameIndex(long elapsedMs) {
+        int frame = (int) (Math.max(0, elapsedMs) * fps / 1000);
+        if (loop) {
+            return frame % frameCount;
+        }
+        return Math.min(frame, frameCount - 1);
+    }
+}
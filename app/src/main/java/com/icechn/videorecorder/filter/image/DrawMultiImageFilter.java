@@ -2,34 +2,66 @@ package com.icechn.videorecorder.filter.image;
 
 import android.content.Context;
 import android.graphics.Rect;
-import android.graphics.RectF;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 
+import com.icechn.videorecorder.core.GLHelper;
 import com.icechn.videorecorder.filter.hardvideofilter.BaseHardVideoFilter;
 import com.icechn.videorecorder.tools.GLESTools;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 
 /**
  * Created by ICE on 2017/10/12.
+ * <p>
+ * 先把相机画面拷贝到目标一次，再把所有贴纸作为混合的小矩形从同一张{@link ImageAtlas}中一次绘制出来。
+ * {@link AnimatedImageDrawData}的sprite sheet只上传一次，按帧时间戳只修改对应矩形的纹理坐标。
  */
 
 public class DrawMultiImageFilter extends BaseHardVideoFilter {
+    protected static final String VERTEXSHADER = "" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec2 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main(){\n" +
+            "    gl_Position= aPosition;\n" +
+            "    vTextureCoord = aTextureCoord;\n" +
+            "}";
+    protected static final String FRAGMENTSHADER = "" +
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform sampler2D uTexture;\n" +
+            "void main(){\n" +
+            "    gl_FragColor = texture2D(uTexture, vTextureCoord);\n" +
+            "}";
+    // x, y, u, v
+    private static final int VERTEX_STRIDE = 4;
 
     protected int glProgram;
-    protected int glCamTextureLoc;
-    protected int glCamPositionLoc;
-    protected int glCamTextureCoordLoc;
-    protected int glImageTextureLoc;
-    protected int glImageRectLoc;
-    protected int glImageAngelLoc;
+    protected int glTextureLoc;
+    protected int glPositionLoc;
+    protected int glTextureCoordLoc;
 
     protected Context mContext;
     private ArrayList<ImageDrawData> mImageInfos = new ArrayList<>();
-    private ArrayList<ImageTexture> imageTextures = new ArrayList<>();
     private int mSize;
+    private ImageAtlas imageAtlas;
+    private ImageAtlasLoader imageAtlasLoader;
+    private String imageAtlasKey;
+    private FloatBuffer quadVerticesBuffer;
+    private ShortBuffer quadIndexesBuffer;
+    private int quadCount;
+    // 每个矩形对应的ImageDrawData下标
+    private int[] quadImageIndexes;
+    // 每个矩形当前显示的帧，-1表示静态图片
+    private int[] quadFrames;
+    private long firstFrameTimeMs = -1;
+    private final float[] frameUV = new float[4];
+    private OnImageLoadFailedListener onImageLoadFailedListener;
 
     public DrawMultiImageFilter(Context context, ArrayList<ImageDrawData> imageInfos) {
         super();
@@ -37,6 +69,15 @@ public class DrawMultiImageFilter extends BaseHardVideoFilter {
         if (imageInfos == null || imageInfos.size() == 0) {
             throw new RuntimeException("imageInfos must be not empty");
         }
+        for (ImageDrawData info : imageInfos) {
+            if (info instanceof AnimatedImageDrawData) {
+                AnimatedImageDrawData animated = (AnimatedImageDrawData) info;
+                if (animated.columns <= 0 || animated.rows <= 0 || animated.fps <= 0
+                        || animated.frameCount <= 0 || animated.frameCount > animated.columns * animated.rows) {
+                    throw new RuntimeException("invalid sprite sheet of resId " + info.resId);
+                }
+            }
+        }
         this.mImageInfos.addAll(imageInfos);
         mSize = mImageInfos.size();
     }
@@ -44,83 +85,188 @@ public class DrawMultiImageFilter extends BaseHardVideoFilter {
     @Override
     public void onInit(int videoWidth, int videoHeight) {
         super.onInit(videoWidth, videoHeight);
-        glProgram = GLESTools.createProgram(GLESTools.uRes(mContext.getResources(), "drawimage_vertex.sh"),
-                GLESTools.uRes(mContext.getResources(), "drawimage_fragment.sh"));
+        glProgram = GLESTools.createProgram(VERTEXSHADER, FRAGMENTSHADER);
         GLES20.glUseProgram(glProgram);
-        glCamTextureLoc = GLES20.glGetUniformLocation(glProgram, "uCamTexture");
-        glImageTextureLoc = GLES20.glGetUniformLocation(glProgram, "uImageTexture");
-        glCamPositionLoc = GLES20.glGetAttribLocation(glProgram, "aCamPosition");
-        glCamTextureCoordLoc = GLES20.glGetAttribLocation(glProgram, "aCamTextureCoord");
-        glImageRectLoc = GLES20.glGetUniformLocation(glProgram, "imageRect");
-        glImageAngelLoc = GLES20.glGetUniformLocation(glProgram, "imageAngel");
+        glTextureLoc = GLES20.glGetUniformLocation(glProgram, "uTexture");
+        glPositionLoc = GLES20.glGetAttribLocation(glProgram, "aPosition");
+        glTextureCoordLoc = GLES20.glGetAttribLocation(glProgram, "aTextureCoord");
+        GLES20.glUseProgram(0);
 
+        quadVerticesBuffer = ByteBuffer.allocateDirect(mSize * 4 * VERTEX_STRIDE * GLHelper.FLOAT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        quadIndexesBuffer = ByteBuffer.allocateDirect(mSize * 6 * GLHelper.SHORT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder())
+                .asShortBuffer();
         initImageTexture();
     }
 
+    /**
+     * 贴纸在工作线程中加载失败时在GL线程回调，之后只绘制相机画面
+     */
+    public void setOnImageLoadFailedListener(OnImageLoadFailedListener listener) {
+        onImageLoadFailedListener = listener;
+    }
+
+    /**
+     * 优先使用{@link ImageAtlasCache}中相同贴纸的纹理，
+     * 否则在工作线程中解码、上传，加载完成前只绘制相机画面
+     */
     protected void initImageTexture() {
-        imageTextures = new ArrayList<>();
-        ImageTexture imageTexture;
-        for (int i = 0; i < mSize; i++) {
-            imageTexture = new ImageTexture(outVideoWidth, outVideoHeight);
-            imageTexture.load(mContext, mImageInfos.get(i).resId);
-            imageTextures.add(imageTexture);
+        imageAtlasKey = ImageAtlasLoader.getCacheKey(mImageInfos);
+        imageAtlas = ImageAtlasCache.acquire(imageAtlasKey);
+        if (imageAtlas != null) {
+            buildQuads();
+            return;
         }
+        imageAtlasLoader = new ImageAtlasLoader(mContext, mImageInfos);
+        imageAtlasLoader.start();
     }
 
-    @Override
-    public void onDraw(int cameraTexture, int targetFrameBuffer, FloatBuffer shapeBuffer, FloatBuffer textureBuffer) {
-        GLES20.glViewport(0, 0, outVideoWidth, outVideoHeight);
-        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-        int textureId;
-        int frameBuffer;
-        Rect rect;
-        ImageTexture preImageTexture = null;
-        for (int i = 0; i < mSize; i++) {
-            if (preImageTexture == null) {
-                textureId = cameraTexture;
-            } else {
-                textureId = preImageTexture.getTextureId();
-            }
-            if (i == mSize - 1) {
-                frameBuffer = targetFrameBuffer;
+    private boolean checkImageAtlas() {
+        if (imageAtlas == null && imageAtlasLoader != null) {
+            ImageAtlas loaded = imageAtlasLoader.poll();
+            if (loaded != null) {
+                imageAtlasLoader = null;
+                imageAtlas = ImageAtlasCache.put(imageAtlasKey, loaded);
+                buildQuads();
             } else {
-                frameBuffer = imageTextures.get(i).getFrameBuffer();
+                Throwable error = imageAtlasLoader.pollError();
+                if (error != null) {
+                    imageAtlasLoader = null;
+                    if (onImageLoadFailedListener != null) {
+                        onImageLoadFailedListener.onImageLoadFailed(error);
+                    }
+                }
             }
-            rect = mImageInfos.get(i).rect;
+        }
+        return imageAtlas != null;
+    }
+
+    /**
+     * 每个贴纸4个顶点，顺序与{@link GLHelper#getShapeVerticesBuffer()}相同：左上、左下、右下、右上
+     */
+    private void buildQuads() {
+        float[] uv = new float[4];
+        quadVerticesBuffer.clear();
+        quadIndexesBuffer.clear();
+        quadCount = 0;
+        quadImageIndexes = new int[mSize];
+        quadFrames = new int[mSize];
+        for (int i = 0; i < mSize; i++) {
+            Rect rect = mImageInfos.get(i).rect;
             if (rect.left == rect.right || rect.top == rect.bottom) {
                 continue;
             }
-            drawImage(convertToRectF(rect), imageTextures.get(i).getImageTextureId(), textureId, frameBuffer, shapeBuffer, textureBuffer);
-            preImageTexture = imageTextures.get(i);
+            imageAtlas.getRegionUV(i, uv);
+            float left = 2f * rect.left / outVideoWidth - 1f;
+            float right = 2f * rect.right / outVideoWidth - 1f;
+            float top = 1f - 2f * rect.top / outVideoHeight;
+            float bottom = 1f - 2f * rect.bottom / outVideoHeight;
+            quadVerticesBuffer.put(left).put(top).put(uv[0]).put(uv[1]);
+            quadVerticesBuffer.put(left).put(bottom).put(uv[0]).put(uv[3]);
+            quadVerticesBuffer.put(right).put(bottom).put(uv[2]).put(uv[3]);
+            quadVerticesBuffer.put(right).put(top).put(uv[2]).put(uv[1]);
+            short base = (short) (quadCount * 4);
+            quadIndexesBuffer.put(base).put((short) (base + 1)).put((short) (base + 2))
+                    .put(base).put((short) (base + 2)).put((short) (base + 3));
+            quadImageIndexes[quadCount] = i;
+            quadFrames[quadCount] = -1;
+            if (mImageInfos.get(i) instanceof AnimatedImageDrawData) {
+                updateQuadFrame(quadCount, 0);
+            }
+            quadCount++;
         }
-        GLES20.glFinish();
+        quadVerticesBuffer.flip();
+        quadIndexesBuffer.flip();
     }
 
-    protected void drawImage(RectF rectF, int imageTextureId, int cameraTexture, int targetFrameBuffer, FloatBuffer shapeBuffer, FloatBuffer textureBuffer) {
-        GLES20.glEnableVertexAttribArray(glCamPositionLoc);
-        GLES20.glEnableVertexAttribArray(glCamTextureCoordLoc);
+    /**
+     * 只修改第quad个矩形4个顶点的uv，不分配内存
+     */
+    private void updateQuadFrame(int quad, int frame) {
+        AnimatedImageDrawData info = (AnimatedImageDrawData) mImageInfos.get(quadImageIndexes[quad]);
+        Rect region = imageAtlas.getRegion(quadImageIndexes[quad]);
+        float frameWidth = (float) region.width() / info.columns;
+        float frameHeight = (float) region.height() / info.rows;
+        float left = region.left + (frame % info.columns) * frameWidth;
+        float top = region.top + (frame / info.columns) * frameHeight;
+        // 内缩半个像素，避免线性过滤采到相邻帧
+        frameUV[0] = (left + 0.5f) / imageAtlas.getWidth();
+        frameUV[1] = (top + 0.5f) / imageAtlas.getHeight();
+        frameUV[2] = (left + frameWidth - 0.5f) / imageAtlas.getWidth();
+        frameUV[3] = (top + frameHeight - 0.5f) / imageAtlas.getHeight();
+        int offset = quad * 4 * VERTEX_STRIDE + 2;
+        quadVerticesBuffer.put(offset, frameUV[0]).put(offset + 1, frameUV[1]);
+        offset += VERTEX_STRIDE;
+        quadVerticesBuffer.put(offset, frameUV[0]).put(offset + 1, frameUV[3]);
+        offset += VERTEX_STRIDE;
+        quadVerticesBuffer.put(offset, frameUV[2]).put(offset + 1, frameUV[3]);
+        offset += VERTEX_STRIDE;
+        quadVerticesBuffer.put(offset, frameUV[2]).put(offset + 1, frameUV[1]);
+        quadFrames[quad] = frame;
+    }
+
+    @Override
+    public void onFrameTimeUpdate(long timestampMs) {
+        super.onFrameTimeUpdate(timestampMs);
+        if (firstFrameTimeMs < 0) {
+            firstFrameTimeMs = timestampMs;
+        }
+        if (!checkImageAtlas()) {
+            return;
+        }
+        long elapsedMs = timestampMs - firstFrameTimeMs;
+        for (int quad = 0; quad < quadCount; quad++) {
+            if (quadFrames[quad] < 0) {
+                continue;
+            }
+            int frame = ((AnimatedImageDrawData) mImageInfos.get(quadImageIndexes[quad])).getFrameIndex(elapsedMs);
+            if (frame != quadFrames[quad]) {
+                updateQuadFrame(quad, frame);
+            }
+        }
+    }
+
+    @Override
+    public void onDraw(int cameraTexture, int targetFrameBuffer, FloatBuffer shapeBuffer, FloatBuffer textureBuffer) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, targetFrameBuffer);
+        GLES20.glViewport(0, 0, outVideoWidth, outVideoHeight);
+        GLES20.glUseProgram(glProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glUniform1i(glTextureLoc, 0);
+        GLES20.glEnableVertexAttribArray(glPositionLoc);
+        GLES20.glEnableVertexAttribArray(glTextureCoordLoc);
+        // camera
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, cameraTexture);
         shapeBuffer.position(0);
-        GLES20.glVertexAttribPointer(glCamPositionLoc, 2,
+        GLES20.glVertexAttribPointer(glPositionLoc, 2,
                 GLES20.GL_FLOAT, false,
                 2 * 4, shapeBuffer);
         textureBuffer.position(0);
-        GLES20.glVertexAttribPointer(glCamTextureCoordLoc, 2,
+        GLES20.glVertexAttribPointer(glTextureCoordLoc, 2,
                 GLES20.GL_FLOAT, false,
                 2 * 4, textureBuffer);
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, targetFrameBuffer);
-        GLES20.glUseProgram(glProgram);
-        GLES20.glUniform4f(glImageRectLoc, rectF.left, rectF.top, rectF.right, rectF.bottom);
-//        GLES20.glUniform1f(glImageAngelLoc, (float)(30.0f*Math.PI/180));//用来更新旋转角度的
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, cameraTexture);
-        GLES20.glUniform1i(glCamTextureLoc, 0);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, imageTextureId);
-        GLES20.glUniform1i(glImageTextureLoc, 1);
         GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawIndexesBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, drawIndexesBuffer);
-        GLES20.glDisableVertexAttribArray(glCamPositionLoc);
-        GLES20.glDisableVertexAttribArray(glCamTextureCoordLoc);
+        // images, bitmap纹理是预乘alpha的
+        if (checkImageAtlas() && quadCount > 0) {
+            GLES20.glEnable(GLES20.GL_BLEND);
+            GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, imageAtlas.getTextureId());
+            quadVerticesBuffer.position(0);
+            GLES20.glVertexAttribPointer(glPositionLoc, 2,
+                    GLES20.GL_FLOAT, false,
+                    VERTEX_STRIDE * 4, quadVerticesBuffer);
+            quadVerticesBuffer.position(2);
+            GLES20.glVertexAttribPointer(glTextureCoordLoc, 2,
+                    GLES20.GL_FLOAT, false,
+                    VERTEX_STRIDE * 4, quadVerticesBuffer);
+            quadIndexesBuffer.position(0);
+            GLES20.glDrawElements(GLES20.GL_TRIANGLES, quadCount * 6, GLES20.GL_UNSIGNED_SHORT, quadIndexesBuffer);
+            GLES20.glDisable(GLES20.GL_BLEND);
+        }
+        GLES20.glDisableVertexAttribArray(glPositionLoc);
+        GLES20.glDisableVertexAttribArray(glTextureCoordLoc);
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
         GLES20.glUseProgram(0);
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
@@ -133,19 +279,28 @@ public class DrawMultiImageFilter extends BaseHardVideoFilter {
         destroyImageTexture();
     }
 
+    @Override
+    public long getGpuMemoryUsage() {
+        return imageAtlas == null ? 0 : imageAtlas.getGpuMemoryUsage();
+    }
+
     protected void destroyImageTexture() {
-        for (ImageTexture imageTexture : imageTextures) {
-            imageTexture.destroy();
+        if (imageAtlasLoader != null) {
+            // 还没有放入缓存
+            ImageAtlas loaded = imageAtlasLoader.cancel();
+            if (loaded != null) {
+                loaded.destroy();
+            }
+            imageAtlasLoader = null;
+        }
+        if (imageAtlas != null) {
+            ImageAtlasCache.release(imageAtlasKey, imageAtlas);
+            imageAtlas = null;
         }
     }
 
-    private RectF convertToRectF(Rect iconRect) {
-        RectF iconRectF = new RectF();
-        iconRectF.top = iconRect.top / (float) outVideoHeight;
-        iconRectF.bottom = iconRect.bottom / (float) outVideoHeight;
-        iconRectF.left = iconRect.left / (float) outVideoWidth;
-        iconRectF.right = iconRect.right / (float) outVideoWidth;
-        return iconRectF;
+    public interface OnImageLoadFailedListener {
+        void onImageLoadFailed(Throwable error);
     }
 
     public static class ImageDrawData {
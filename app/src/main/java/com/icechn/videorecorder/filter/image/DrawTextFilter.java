@@ -0,0 +1,263 @@
+package com.icechn.videorecorder.filter.image;
+
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+import com.icechn.videorecorder.core.GLHelper;
+import com.icechn.videorecorder.filter.hardvideofilter.BaseHardVideoFilter;
+import com.icechn.videorecorder.tools.GLESTools;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+
+/**
+ * 文字水印，例如录制时间和操作员ID。
+ * 字形在{@link GlyphAtlas}中只光栅化一次，每帧由{@link ITextSource}写入字符，
+ * 文字变化时只重写对应的顶点，所有字符作为混合的小矩形一次绘制，没有Bitmap/Canvas操作。
+ */
+public class DrawTextFilter extends BaseHardVideoFilter {
+    // x, y, u, v
+    private static final int VERTEX_STRIDE = 4;
+
+    protected int glProgram;
+    protected int glTextureLoc;
+    protected int glPositionLoc;
+    protected int glTextureCoordLoc;
+
+    private final ArrayList<TextDrawData> mTextInfos = new ArrayList<>();
+    private final String mCharset;
+    private final float mTextSize;
+    private final int mTextColor;
+    private final Typeface mTypeface;
+    private GlyphAtlas glyphAtlas;
+    private FloatBuffer quadVerticesBuffer;
+    private ShortBuffer quadIndexesBuffer;
+    private final float[] glyphUV = new float[4];
+    // 每条文字在顶点buffer中的起始矩形下标
+    private int[] quadOffsets;
+    private int[] quadCounts;
+    private int maxQuadCount;
+    private int drawQuadCount;
+
+    public DrawTextFilter(ArrayList<TextDrawData> textInfos, float textSize) {
+        this(textInfos, GlyphAtlas.DEFAULT_CHARSET, textSize, Color.WHITE, null);
+    }
+
+    /**
+     * @param charset  所有可能出现的字符，不在其中的字符显示为空白
+     * @param textSize 输出视频中的像素
+     */
+    public DrawTextFilter(ArrayList<TextDrawData> textInfos, String charset, float textSize, int textColor, Typeface typeface) {
+        if (textInfos == null || textInfos.size() == 0) {
+            throw new RuntimeException("textInfos must be not empty");
+        }
+        for (TextDrawData info : textInfos) {
+            if (info.source == null || info.maxLength <= 0) {
+                throw new RuntimeException("invalid TextDrawData");
+            }
+        }
+        mTextInfos.addAll(textInfos);
+        mCharset = charset;
+        mTextSize = textSize;
+        mTextColor = textColor;
+        mTypeface = typeface;
+    }
+
+    @Override
+    public void onInit(int videoWidth, int videoHeight) {
+        super.onInit(videoWidth, videoHeight);
+        glProgram = GLESTools.createProgram(DrawMultiImageFilter.VERTEXSHADER, DrawMultiImageFilter.FRAGMENTSHADER);
+        GLES20.glUseProgram(glProgram);
+        glTextureLoc = GLES20.glGetUniformLocation(glProgram, "uTexture");
+        glPositionLoc = GLES20.glGetAttribLocation(glProgram, "aPosition");
+        glTextureCoordLoc = GLES20.glGetAttribLocation(glProgram, "aTextureCoord");
+        GLES20.glUseProgram(0);
+
+        glyphAtlas = new GlyphAtlas(mCharset, mTextSize, mTextColor, mTypeface);
+        glyphAtlas.upload();
+
+        int size = mTextInfos.size();
+        quadOffsets = new int[size];
+        quadCounts = new int[size];
+        maxQuadCount = 0;
+        for (int i = 0; i < size; i++) {
+            TextDrawData info = mTextInfos.get(i);
+            info.chars = new char[info.maxLength];
+            info.lastChars = new char[info.maxLength];
+            info.length = -1;
+            quadOffsets[i] = maxQuadCount;
+            maxQuadCount += info.maxLength;
+        }
+        if (maxQuadCount * 4 > Short.MAX_VALUE) {
+            throw new RuntimeException("too many characters : " + maxQuadCount);
+        }
+        quadVerticesBuffer = ByteBuffer.allocateDirect(maxQuadCount * 4 * VERTEX_STRIDE * GLHelper.FLOAT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        quadIndexesBuffer = ByteBuffer.allocateDirect(maxQuadCount * 6 * GLHelper.SHORT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder())
+                .asShortBuffer();
+        drawQuadCount = 0;
+    }
+
+    @Override
+    public void onFrameTimeUpdate(long timestampMs) {
+        super.onFrameTimeUpdate(timestampMs);
+        boolean changed = false;
+        for (int i = 0; i < mTextInfos.size(); i++) {
+            TextDrawData info = mTextInfos.get(i);
+            int length = Math.min(info.source.getText(timestampMs, info.chars), info.maxLength);
+            if (length != info.length || !sameChars(info.chars, info.lastChars, length)) {
+                System.arraycopy(info.chars, 0, info.lastChars, 0, length);
+                info.length = length;
+                quadCounts[i] = buildTextQuads(info, quadOffsets[i]);
+                changed = true;
+            }
+        }
+        if (changed) {
+            buildIndexes();
+        }
+    }
+
+    private static boolean sameChars(char[] a, char[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 写入从第quadOffset个矩形开始的顶点，返回实际写入的字符矩形数
+     */
+    private int buildTextQuads(TextDrawData info, int quadOffset) {
+        float x = info.x;
+        float y = info.y;
+        int glyphHeight = glyphAtlas.getGlyphHeight();
+        int count = 0;
+        for (int i = 0; i < info.length; i++) {
+            int index = glyphAtlas.indexOf(info.chars[i]);
+            if (index < 0) {
+                index = glyphAtlas.indexOf(' ');
+                if (index < 0) {
+                    continue;
+                }
+            }
+            int glyphWidth = glyphAtlas.getGlyphWidth(index);
+            glyphAtlas.getGlyphUV(index, glyphUV, 0);
+            float left = 2f * x / outVideoWidth - 1f;
+            float right = 2f * (x + glyphWidth) / outVideoWidth - 1f;
+            float top = 1f - 2f * y / outVideoHeight;
+            float bottom = 1f - 2f * (y + glyphHeight) / outVideoHeight;
+            int offset = (quadOffset + count) * 4 * VERTEX_STRIDE;
+            offset = putVertex(offset, left, top, glyphUV[0], glyphUV[1]);
+            offset = putVertex(offset, left, bottom, glyphUV[0], glyphUV[3]);
+            offset = putVertex(offset, right, bottom, glyphUV[2], glyphUV[3]);
+            putVertex(offset, right, top, glyphUV[2], glyphUV[1]);
+            x += glyphWidth;
+            count++;
+        }
+        return count;
+    }
+
+    private int putVertex(int offset, float x, float y, float u, float v) {
+        quadVerticesBuffer.put(offset, x).put(offset + 1, y).put(offset + 2, u).put(offset + 3, v);
+        return offset + VERTEX_STRIDE;
+    }
+
+    /**
+     * 每条文字的矩形在顶点buffer中位置固定，index只引用实际有字符的部分
+     */
+    private void buildIndexes() {
+        quadIndexesBuffer.clear();
+        drawQuadCount = 0;
+        for (int i = 0; i < mTextInfos.size(); i++) {
+            for (int j = 0; j < quadCounts[i]; j++) {
+                short base = (short) ((quadOffsets[i] + j) * 4);
+                quadIndexesBuffer.put(base).put((short) (base + 1)).put((short) (base + 2))
+                        .put(base).put((short) (base + 2)).put((short) (base + 3));
+                drawQuadCount++;
+            }
+        }
+        quadIndexesBuffer.flip();
+    }
+
+    @Override
+    public void onDraw(int cameraTexture, int targetFrameBuffer, FloatBuffer shapeBuffer, FloatBuffer textureBuffer) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, targetFrameBuffer);
+        GLES20.glViewport(0, 0, outVideoWidth, outVideoHeight);
+        GLES20.glUseProgram(glProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glUniform1i(glTextureLoc, 0);
+        GLES20.glEnableVertexAttribArray(glPositionLoc);
+        GLES20.glEnableVertexAttribArray(glTextureCoordLoc);
+        // camera
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, cameraTexture);
+        shapeBuffer.position(0);
+        GLES20.glVertexAttribPointer(glPositionLoc, 2,
+                GLES20.GL_FLOAT, false,
+                2 * 4, shapeBuffer);
+        textureBuffer.position(0);
+        GLES20.glVertexAttribPointer(glTextureCoordLoc, 2,
+                GLES20.GL_FLOAT, false,
+                2 * 4, textureBuffer);
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawIndexesBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, drawIndexesBuffer);
+        // text, bitmap纹理是预乘alpha的
+        if (drawQuadCount > 0) {
+            GLES20.glEnable(GLES20.GL_BLEND);
+            GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, glyphAtlas.getTextureId());
+            quadVerticesBuffer.position(0);
+            GLES20.glVertexAttribPointer(glPositionLoc, 2,
+                    GLES20.GL_FLOAT, false,
+                    VERTEX_STRIDE * 4, quadVerticesBuffer);
+            quadVerticesBuffer.position(2);
+            GLES20.glVertexAttribPointer(glTextureCoordLoc, 2,
+                    GLES20.GL_FLOAT, false,
+                    VERTEX_STRIDE * 4, quadVerticesBuffer);
+            quadIndexesBuffer.position(0);
+            GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawQuadCount * 6, GLES20.GL_UNSIGNED_SHORT, quadIndexesBuffer);
+            GLES20.glDisable(GLES20.GL_BLEND);
+        }
+        GLES20.glDisableVertexAttribArray(glPositionLoc);
+        GLES20.glDisableVertexAttribArray(glTextureCoordLoc);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        GLES20.glUseProgram(0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    @Override
+    public long getGpuMemoryUsage() {
+        return glyphAtlas == null ? 0 : glyphAtlas.getGpuMemoryUsage();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        GLES20.glDeleteProgram(glProgram);
+        if (glyphAtlas != null) {
+            glyphAtlas.destroy();
+            glyphAtlas = null;
+        }
+    }
+
+    public static class TextDrawData {
+        public ITextSource source;
+        /**
+         * 左上角，输出视频中的像素
+         */
+        public int x;
+        public int y;
+        public int maxLength = 32;
+
+        char[] chars;
+        char[] lastChars;
+        int length;
+    }
+}
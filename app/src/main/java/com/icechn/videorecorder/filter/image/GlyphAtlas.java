@@ -0,0 +1,148 @@
+package com.icechn.videorecorder.filter.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.opengl.GLES20;
+
+import com.icechn.videorecorder.tools.GLESTools;
+
+/**
+ * 字形纹理，构造时把字符集中的每个字符光栅化一次，之后绘制任意字符串只需查表得到纹理坐标。
+ * 每个字形占一个等高的格子，格子宽度为该字符的advance。
+ */
+public class GlyphAtlas {
+    public static final String DEFAULT_CHARSET = " 0123456789-:./_ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#()[]+";
+    private static final int MAX_WIDTH = 1024;
+    private static final int PADDING = 2;
+
+    private final char[] chars;
+    // ASCII字符直接查表，其它字符线性查找
+    private final int[] asciiIndexes = new int[128];
+    private final int[] glyphLeft;
+    private final int[] glyphTop;
+    private final int[] glyphWidth;
+    private final int glyphHeight;
+    private final int width;
+    private final int height;
+    private Bitmap bitmap;
+    private int textureId = GLESTools.NO_TEXTURE;
+
+    /**
+     * 可在任意线程构造，只做光栅化，纹理在{@link #upload()}时创建
+     *
+     * @param textSize 像素
+     */
+    public GlyphAtlas(String charset, float textSize, int textColor, Typeface typeface) {
+        chars = charset.toCharArray();
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setTextSize(textSize);
+        paint.setColor(textColor);
+        if (typeface != null) {
+            paint.setTypeface(typeface);
+        }
+        // 深色描边阴影，保证在亮背景上可读
+        paint.setShadowLayer(Math.max(1f, textSize / 16f), 0, 0, Color.BLACK);
+        Paint.FontMetrics metrics = paint.getFontMetrics();
+        int shadow = (int) Math.ceil(textSize / 16f);
+        glyphHeight = (int) Math.ceil(metrics.descent - metrics.ascent) + shadow * 2;
+
+        glyphLeft = new int[chars.length];
+        glyphTop = new int[chars.length];
+        glyphWidth = new int[chars.length];
+        for (int i = 0; i < asciiIndexes.length; i++) {
+            asciiIndexes[i] = -1;
+        }
+        int x = PADDING;
+        int y = PADDING;
+        int rowWidth = 0;
+        for (int i = 0; i < chars.length; i++) {
+            int w = (int) Math.ceil(paint.measureText(chars, i, 1)) + shadow * 2;
+            if (x + w + PADDING > MAX_WIDTH) {
+                x = PADDING;
+                y += glyphHeight + PADDING;
+            }
+            glyphLeft[i] = x;
+            glyphTop[i] = y;
+            glyphWidth[i] = w;
+            x += w + PADDING;
+            rowWidth = Math.max(rowWidth, x);
+            if (chars[i] < 128 && asciiIndexes[chars[i]] < 0) {
+                asciiIndexes[chars[i]] = i;
+            }
+        }
+        width = rowWidth;
+        height = y + glyphHeight + PADDING;
+
+        bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        for (int i = 0; i < chars.length; i++) {
+            canvas.drawText(chars, i, 1, glyphLeft[i] + shadow, glyphTop[i] + shadow - metrics.ascent, paint);
+        }
+    }
+
+    /**
+     * GL线程调用，上传后回收bitmap
+     */
+    public void upload() {
+        if (textureId == GLESTools.NO_TEXTURE && bitmap != null) {
+            textureId = GLESTools.loadTexture(bitmap, GLESTools.NO_TEXTURE);
+            bitmap.recycle();
+            bitmap = null;
+        }
+    }
+
+    /**
+     * @return 字符在字符集中的下标，不存在返回-1
+     */
+    public int indexOf(char c) {
+        if (c < 128) {
+            return asciiIndexes[c];
+        }
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getGlyphWidth(int index) {
+        return glyphWidth[index];
+    }
+
+    public int getGlyphHeight() {
+        return glyphHeight;
+    }
+
+    /**
+     * 把第index个字形的纹理坐标写入uv，偏移为offset，顺序为left, top, right, bottom
+     */
+    public void getGlyphUV(int index, float[] uv, int offset) {
+        uv[offset] = (float) glyphLeft[index] / width;
+        uv[offset + 1] = (float) glyphTop[index] / height;
+        uv[offset + 2] = (float) (glyphLeft[index] + glyphWidth[index]) / width;
+        uv[offset + 3] = (float) (glyphTop[index] + glyphHeight) / height;
+    }
+
+    public int getTextureId() {
+        return textureId;
+    }
+
+    public long getGpuMemoryUsage() {
+        return textureId == GLESTools.NO_TEXTURE ? 0 : (long) width * height * 4;
+    }
+
+    public void destroy() {
+        if (textureId != GLESTools.NO_TEXTURE) {
+            GLES20.glDeleteTextures(1, new int[]{textureId}, 0);
+            textureId = GLESTools.NO_TEXTURE;
+        }
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+        }
+    }
+}
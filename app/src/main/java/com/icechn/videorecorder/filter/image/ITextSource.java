@@ -0,0 +1,13 @@
+package com.icechn.videorecorder.filter.image;
+
+/**
+ * {@link DrawTextFilter}每帧在GL线程调用，把要显示的文字写入out，不要在这里分配内存
+ */
+public interface ITextSource {
+    /**
+     * @param timestampMs 帧时间戳，与{@link com.icechn.videorecorder.filter.hardvideofilter.BaseHardVideoFilter#onFrameTimeUpdate}相同
+     * @param out         至少{@link DrawTextFilter.TextDrawData#maxLength}长
+     * @return 写入的字符数
+     */
+    int getText(long timestampMs, char[] out);
+}
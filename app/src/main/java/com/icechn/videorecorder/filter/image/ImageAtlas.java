@@ -0,0 +1,155 @@
+package com.icechn.videorecorder.filter.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+import com.icechn.videorecorder.tools.GLESTools;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * 把多张图片按行(shelf)排布到同一张纹理中，所有贴纸只需绑定一次纹理、一次绘制。
+ * 纹理坐标v=0对应图片的第一行（顶部）。
+ */
+public class ImageAtlas {
+    private static final int PADDING = 2;
+
+    private final int width;
+    private final int height;
+    private final Rect[] regions;
+    private int textureId = GLESTools.NO_TEXTURE;
+
+    /**
+     * 只计算布局，不需要GL环境
+     *
+     * @param maxSize GL_MAX_TEXTURE_SIZE
+     */
+    public ImageAtlas(int[] widths, int[] heights, int maxSize) {
+        final int count = widths.length;
+        regions = new Rect[count];
+        Integer[] order = new Integer[count];
+        long area = 0;
+        int maxWidth = 1;
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            area += (long) (widths[i] + PADDING) * (heights[i] + PADDING);
+            maxWidth = Math.max(maxWidth, widths[i]);
+        }
+        final int[] h = heights;
+        // 高的先放，每一行的高度浪费最少
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return h[b] - h[a];
+            }
+        });
+        int atlasWidth = Math.max(maxWidth + PADDING * 2, (int) Math.ceil(Math.sqrt(area)) + PADDING);
+        atlasWidth = Math.min(atlasWidth, maxSize);
+        if (maxWidth + PADDING * 2 > atlasWidth) {
+            throw new IllegalArgumentException("image width " + maxWidth + " exceeds max texture size " + maxSize);
+        }
+        int x = PADDING;
+        int y = PADDING;
+        int shelfHeight = 0;
+        for (Integer i : order) {
+            if (x + widths[i] + PADDING > atlasWidth) {
+                x = PADDING;
+                y += shelfHeight + PADDING;
+                shelfHeight = 0;
+            }
+            regions[i] = new Rect(x, y, x + widths[i], y + heights[i]);
+            x += widths[i] + PADDING;
+            shelfHeight = Math.max(shelfHeight, heights[i]);
+        }
+        int atlasHeight = y + shelfHeight + PADDING;
+        if (atlasHeight > maxSize) {
+            throw new IllegalArgumentException("images can not fit into a " + maxSize + " atlas");
+        }
+        width = atlasWidth;
+        height = atlasHeight;
+    }
+
+    public static int getMaxTextureSize() {
+        int[] maxSize = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxSize, 0);
+        return maxSize[0];
+    }
+
+    /**
+     * GL线程调用，bitmaps的顺序和尺寸与构造时一致，调用后bitmap可以回收。
+     * 抛出异常时纹理可能已经创建，需要调用{@link #destroy()}
+     */
+    public void upload(Bitmap[] bitmaps) {
+        if (bitmaps.length != regions.length) {
+            throw new IllegalArgumentException("expect " + regions.length + " bitmaps but got " + bitmaps.length);
+        }
+        int[] texture = new int[1];
+        int[] frameBuffer = new int[1];
+        GLESTools.createFrameBuff(frameBuffer, texture, width, height);
+        // 上传中途失败时由destroy()删除
+        textureId = texture[0];
+        // glTexImage2D(null)的内容是未定义的，先清成透明，避免采样到间隔中的脏数据
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer[0]);
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glDeleteFramebuffers(1, frameBuffer, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
+        for (int i = 0; i < bitmaps.length; i++) {
+            Rect region = regions[i];
+            if (bitmaps[i].getWidth() != region.width() || bitmaps[i].getHeight() != region.height()) {
+                throw new IllegalArgumentException("bitmap " + i + " size changed");
+            }
+            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, region.left, region.top, bitmaps[i]);
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    public int getTextureId() {
+        return textureId;
+    }
+
+    public int getCount() {
+        return regions.length;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return 第index张图片在atlas中的像素区域
+     */
+    public Rect getRegion(int index) {
+        return regions[index];
+    }
+
+    /**
+     * 把第index张图片的纹理坐标写入uv，顺序为left, top, right, bottom
+     */
+    public void getRegionUV(int index, float[] uv) {
+        Rect region = regions[index];
+        uv[0] = (float) region.left / width;
+        uv[1] = (float) region.top / height;
+        uv[2] = (float) region.right / width;
+        uv[3] = (float) region.bottom / height;
+    }
+
+    public long getGpuMemoryUsage() {
+        return textureId == GLESTools.NO_TEXTURE ? 0 : (long) width * height * 4;
+    }
+
+    public void destroy() {
+        if (textureId != GLESTools.NO_TEXTURE) {
+            GLES20.glDeleteTextures(1, new int[]{textureId}, 0);
+            textureId = GLESTools.NO_TEXTURE;
+        }
+    }
+}
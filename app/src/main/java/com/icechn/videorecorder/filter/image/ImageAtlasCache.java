@@ -0,0 +1,216 @@
+package com.icechn.videorecorder.filter.image;
+
+import android.content.ComponentCallbacks2;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 贴纸纹理缓存，按EGL上下文区分，引用计数。
+ * 引用数为0的atlas按LRU保留，总大小超过限制或内存紧张时释放。
+ * 纹理只能在对应上下文的GL线程删除，其它线程触发的释放会立即post到该GL线程的Looper执行，
+ * GL线程没有Looper或执行时没有当前上下文时，推迟到该上下文下一次acquire/release。
+ */
+public class ImageAtlasCache {
+    private static final String TAG = "ImageAtlasCache";
+    private static final long MAX_UNUSED_BYTES = 16 * 1024 * 1024;
+
+    private static final HashMap<EGLContext, ContextCache> sCaches = new HashMap<>();
+    private static int sHitCount;
+    private static int sMissCount;
+
+    private static class Entry {
+        final ImageAtlas atlas;
+        int refCount;
+
+        Entry(ImageAtlas atlas) {
+            this.atlas = atlas;
+        }
+    }
+
+    private static class ContextCache {
+        // 创建缓存的GL线程，没有Looper时为null
+        final Handler glHandler;
+        final HashMap<String, Entry> entries = new HashMap<>();
+        // accessOrder，最久未使用的在前
+        final LinkedHashMap<String, Entry> unused = new LinkedHashMap<>(8, 0.75f, true);
+        final ArrayList<ImageAtlas> pendingDeletes = new ArrayList<>();
+        long unusedBytes;
+        private final Runnable deletePendingTask = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ImageAtlasCache.class) {
+                    // GL线程上的上下文都与缓存所属上下文共享，任意一个当前上下文都可以删除纹理
+                    EGLContext current = EGL14.eglGetCurrentContext();
+                    if (current != null && !EGL14.EGL_NO_CONTEXT.equals(current)) {
+                        deletePending();
+                    }
+                }
+            }
+        };
+
+        ContextCache() {
+            Looper looper = Looper.myLooper();
+            glHandler = looper == null ? null : new Handler(looper);
+        }
+
+        void markUnused(String key, Entry entry) {
+            unused.put(key, entry);
+            unusedBytes += entry.atlas.getGpuMemoryUsage();
+        }
+
+        void markUsed(String key, Entry entry) {
+            if (unused.remove(key) != null) {
+                unusedBytes -= entry.atlas.getGpuMemoryUsage();
+            }
+        }
+
+        void trimTo(long maxBytes) {
+            Iterator<Map.Entry<String, Entry>> iterator = unused.entrySet().iterator();
+            while (unusedBytes > maxBytes && iterator.hasNext()) {
+                Map.Entry<String, Entry> item = iterator.next();
+                iterator.remove();
+                entries.remove(item.getKey());
+                unusedBytes -= item.getValue().atlas.getGpuMemoryUsage();
+                pendingDeletes.add(item.getValue().atlas);
+            }
+        }
+
+        void deletePending() {
+            for (ImageAtlas atlas : pendingDeletes) {
+                atlas.destroy();
+            }
+            pendingDeletes.clear();
+        }
+
+        void postDeletePending() {
+            if (glHandler != null && !pendingDeletes.isEmpty()) {
+                glHandler.removeCallbacks(deletePendingTask);
+                glHandler.post(deletePendingTask);
+            }
+        }
+    }
+
+    /**
+     * GL线程调用
+     *
+     * @return 当前上下文中已缓存的atlas，引用数+1；没有则返回null
+     */
+    public static synchronized ImageAtlas acquire(String key) {
+        ContextCache cache = getCurrentCache();
+        cache.deletePending();
+        Entry entry = cache.entries.get(key);
+        if (entry == null) {
+            sMissCount++;
+            return null;
+        }
+        sHitCount++;
+        if (entry.refCount++ == 0) {
+            cache.markUsed(key, entry);
+        }
+        return entry.atlas;
+    }
+
+    /**
+     * GL线程调用，把新加载的atlas放入缓存，引用数为1
+     *
+     * @return 实际应使用的atlas，如果其它地方已经放入了相同的key，atlas会被释放并返回已有的
+     */
+    public static synchronized ImageAtlas put(String key, ImageAtlas atlas) {
+        ContextCache cache = getCurrentCache();
+        Entry entry = cache.entries.get(key);
+        if (entry != null) {
+            atlas.destroy();
+            if (entry.refCount++ == 0) {
+                cache.markUsed(key, entry);
+            }
+            return entry.atlas;
+        }
+        entry = new Entry(atlas);
+        entry.refCount = 1;
+        cache.entries.put(key, entry);
+        return atlas;
+    }
+
+    /**
+     * GL线程调用，引用数-1，为0时保留在缓存中直到被淘汰
+     */
+    public static synchronized void release(String key, ImageAtlas atlas) {
+        ContextCache cache = getCurrentCache();
+        Entry entry = cache.entries.get(key);
+        if (entry == null || entry.atlas != atlas) {
+            atlas.destroy();
+        } else if (--entry.refCount == 0) {
+            cache.markUnused(key, entry);
+            cache.trimTo(MAX_UNUSED_BYTES);
+        }
+        cache.deletePending();
+    }
+
+    /**
+     * 任意线程调用，未使用的atlas会被post到对应GL线程删除
+     */
+    public static synchronized void trimMemory(int level) {
+        long maxBytes = level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ? 0 : MAX_UNUSED_BYTES / 2;
+        for (ContextCache cache : sCaches.values()) {
+            cache.trimTo(maxBytes);
+            cache.postDeletePending();
+        }
+        Log.d(TAG, "trimMemory level=" + level + ", " + getStats());
+    }
+
+    /**
+     * 在上下文销毁前于其GL线程调用，删除该上下文的所有缓存纹理
+     */
+    public static synchronized void clearCurrentContext() {
+        ContextCache cache = sCaches.remove(EGL14.eglGetCurrentContext());
+        if (cache != null) {
+            if (cache.glHandler != null) {
+                cache.glHandler.removeCallbacks(cache.deletePendingTask);
+            }
+            for (Entry entry : cache.entries.values()) {
+                entry.atlas.destroy();
+            }
+            cache.deletePending();
+        }
+    }
+
+    public static synchronized int getHitCount() {
+        return sHitCount;
+    }
+
+    public static synchronized int getMissCount() {
+        return sMissCount;
+    }
+
+    public static synchronized String getStats() {
+        long unusedBytes = 0;
+        int count = 0;
+        for (ContextCache cache : sCaches.values()) {
+            unusedBytes += cache.unusedBytes;
+            count += cache.entries.size();
+        }
+        return "atlas=" + count + ", unusedBytes=" + unusedBytes + ", hit=" + sHitCount + ", miss=" + sMissCount;
+    }
+
+    private static ContextCache getCurrentCache() {
+        EGLContext context = EGL14.eglGetCurrentContext();
+        if (context == null || EGL14.EGL_NO_CONTEXT.equals(context)) {
+            throw new IllegalStateException("no EGL context on current thread");
+        }
+        ContextCache cache = sCaches.get(context);
+        if (cache == null) {
+            cache = new ContextCache();
+            sCaches.put(context, cache);
+        }
+        return cache;
+    }
+}
@@ -0,0 +1,171 @@
+package com.icechn.videorecorder.filter.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.icechn.videorecorder.core.GLHelper;
+import com.icechn.videorecorder.filter.image.DrawMultiImageFilter.ImageDrawData;
+import com.icechn.videorecorder.model.OffScreenGLWrapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 在工作线程中按目标尺寸解码贴纸、打包为{@link ImageAtlas}，
+ * 并在与渲染线程共享的EGL上下文中上传纹理，渲染线程只需拿到现成的纹理。
+ */
+class ImageAtlasLoader implements Runnable {
+    private static final String TAG = "ImageAtlasLoader";
+
+    private final Context mContext;
+    private final List<ImageDrawData> mImageInfos;
+    private final EGLContext mSharedContext;
+    private final int mMaxTextureSize;
+    private final Object mSyncObj = new Object();
+    private volatile ImageAtlas mResult;
+    private volatile Throwable mError;
+    private boolean mCancelled = false;
+
+    /**
+     * 需要在渲染线程创建，以获取当前的EGL上下文
+     */
+    ImageAtlasLoader(Context context, List<ImageDrawData> imageInfos) {
+        mContext = context;
+        mImageInfos = new ArrayList<>(imageInfos);
+        mSharedContext = EGL14.eglGetCurrentContext();
+        mMaxTextureSize = ImageAtlas.getMaxTextureSize();
+        // 在渲染线程计数，避免工作线程还没启动时display就被terminate
+        GLHelper.acquireSharedDisplay();
+    }
+
+    void start() {
+        new Thread(this, TAG).start();
+    }
+
+    /**
+     * @return 加载完成的atlas，未完成时为null
+     */
+    ImageAtlas poll() {
+        return mResult;
+    }
+
+    /**
+     * @return 加载失败的原因，未失败时为null
+     */
+    Throwable pollError() {
+        return mError;
+    }
+
+    /**
+     * 渲染线程调用，之后工作线程产生的atlas由工作线程自己释放
+     *
+     * @return 已经加载完成、需要调用方释放的atlas，可能为null
+     */
+    ImageAtlas cancel() {
+        synchronized (mSyncObj) {
+            mCancelled = true;
+            ImageAtlas atlas = mResult;
+            mResult = null;
+            return atlas;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            runInSharedContext();
+        } finally {
+            GLHelper.releaseSharedDisplay();
+        }
+    }
+
+    private void runInSharedContext() {
+        OffScreenGLWrapper wrapper = new OffScreenGLWrapper();
+        try {
+            GLHelper.initOffScreenGL(wrapper, mSharedContext);
+            GLHelper.makeCurrent(wrapper);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "create shared context failed", e);
+            mError = e;
+            return;
+        }
+        try {
+            ImageAtlas atlas = load();
+            synchronized (mSyncObj) {
+                if (mCancelled) {
+                    atlas.destroy();
+                } else {
+                    mResult = atlas;
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "load images failed", e);
+            mError = e;
+        } finally {
+            // display是进程内单例，不能eglTerminate
+            EGL14.eglMakeCurrent(wrapper.eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            EGL14.eglDestroySurface(wrapper.eglDisplay, wrapper.eglSurface);
+            EGL14.eglDestroyContext(wrapper.eglDisplay, wrapper.eglContext);
+        }
+    }
+
+    private ImageAtlas load() {
+        int size = mImageInfos.size();
+        Bitmap[] bitmaps = new Bitmap[size];
+        int[] widths = new int[size];
+        int[] heights = new int[size];
+        for (int i = 0; i < size; i++) {
+            ImageDrawData info = mImageInfos.get(i);
+            int[] targetSize = getTargetSize(info);
+            // 来自缓存，上传后不能recycle
+            bitmaps[i] = ImageBitmapCache.getRaw(mContext, info.resId, targetSize[0], targetSize[1]);
+            if (bitmaps[i] == null) {
+                throw new RuntimeException("decode image failed : " + info.resId);
+            }
+            widths[i] = bitmaps[i].getWidth();
+            heights[i] = bitmaps[i].getHeight();
+        }
+        ImageAtlas atlas = new ImageAtlas(widths, heights, mMaxTextureSize);
+        boolean uploaded = false;
+        try {
+            atlas.upload(bitmaps);
+            // 其它上下文使用该纹理之前必须保证上传已经完成
+            GLES20.glFinish();
+            uploaded = true;
+        } finally {
+            if (!uploaded) {
+                atlas.destroy();
+            }
+        }
+        return atlas;
+    }
+
+    /**
+     * @return 由所有图片的来源和目标尺寸组成的atlas缓存key
+     */
+    static String getCacheKey(List<ImageDrawData> imageInfos) {
+        StringBuilder key = new StringBuilder();
+        for (ImageDrawData info : imageInfos) {
+            int[] targetSize = getTargetSize(info);
+            key.append(info.resId).append('@').append(targetSize[0]).append('x').append(targetSize[1]).append(';');
+        }
+        return key.toString();
+    }
+
+    /**
+     * 图片（序列帧为整张sprite sheet）最终会被拉伸到的尺寸
+     */
+    private static int[] getTargetSize(ImageDrawData info) {
+        int columns = 1;
+        int rows = 1;
+        if (info instanceof AnimatedImageDrawData) {
+            columns = ((AnimatedImageDrawData) info).columns;
+            rows = ((AnimatedImageDrawData) info).rows;
+        }
+        return new int[]{Math.max(1, info.rect.width()) * columns, Math.max(1, info.rect.height()) * rows};
+    }
+}
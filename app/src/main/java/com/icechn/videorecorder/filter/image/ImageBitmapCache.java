@@ -0,0 +1,128 @@
+package com.icechn.videorecorder.filter.image;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.icechn.videorecorder.tools.BitmapUtils;
+
+/**
+ * 贴纸解码结果的LRU缓存，按字节数限制大小，key为 来源 + 目标尺寸。
+ * 缓存中的Bitmap可能同时被多处使用，取出后不要recycle。
+ * 系统内存紧张时（onTrimMemory）自动缩小或清空。
+ */
+public class ImageBitmapCache {
+    private static final String TAG = "ImageBitmapCache";
+
+    private static final LruCache<String, Bitmap> sCache = new LruCache<String, Bitmap>(
+            (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8)) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+    private static boolean sCallbackRegistered = false;
+
+    private static final ComponentCallbacks2 sTrimCallback = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+            trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+    };
+
+    /**
+     * @param reqWidth  目标宽度，0表示原图
+     * @param reqHeight 目标高度，0表示原图
+     */
+    public static Bitmap getRaw(Context context, int resId, int reqWidth, int reqHeight) {
+        register(context);
+        String key = "res:" + resId + "@" + reqWidth + "x" + reqHeight;
+        Bitmap bitmap = sCache.get(key);
+        if (bitmap == null) {
+            bitmap = put(key, BitmapUtils.loadBitmapFromRaw(context, resId, reqWidth, reqHeight), reqWidth, reqHeight);
+        }
+        return bitmap;
+    }
+
+    public static Bitmap getAsset(Context context, String filePath, int reqWidth, int reqHeight) {
+        register(context);
+        String key = "asset:" + filePath + "@" + reqWidth + "x" + reqHeight;
+        Bitmap bitmap = sCache.get(key);
+        if (bitmap == null) {
+            bitmap = put(key, BitmapUtils.loadBitmapFromAssets(context, filePath, reqWidth, reqHeight), reqWidth, reqHeight);
+        }
+        return bitmap;
+    }
+
+    public static Bitmap getFile(Context context, String filePath, int reqWidth, int reqHeight) {
+        register(context);
+        String key = "file:" + filePath + "@" + reqWidth + "x" + reqHeight;
+        Bitmap bitmap = sCache.get(key);
+        if (bitmap == null) {
+            bitmap = put(key, BitmapUtils.loadBitmapFromDisk(filePath, reqWidth, reqHeight), reqWidth, reqHeight);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 比目标尺寸大的部分没有必要保留
+     */
+    private static Bitmap put(String key, Bitmap bitmap, int reqWidth, int reqHeight) {
+        if (bitmap == null) {
+            return null;
+        }
+        int width = reqWidth > 0 ? Math.min(bitmap.getWidth(), reqWidth) : bitmap.getWidth();
+        int height = reqHeight > 0 ? Math.min(bitmap.getHeight(), reqHeight) : bitmap.getHeight();
+        if (width != bitmap.getWidth() || height != bitmap.getHeight()) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+        sCache.put(key, bitmap);
+        return bitmap;
+    }
+
+    private static synchronized void register(Context context) {
+        if (!sCallbackRegistered) {
+            context.getApplicationContext().registerComponentCallbacks(sTrimCallback);
+            sCallbackRegistered = true;
+        }
+    }
+
+    public static void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            sCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            sCache.trimToSize(sCache.size() / 2);
+        }
+        ImageAtlasCache.trimMemory(level);
+        Log.d(TAG, "trimMemory level=" + level + ", " + getStats());
+    }
+
+    public static int getHitCount() {
+        return sCache.hitCount();
+    }
+
+    public static int getMissCount() {
+        return sCache.missCount();
+    }
+
+    public static String getStats() {
+        return "size=" + sCache.size() + "/" + sCache.maxSize() + ", hit=" + sCache.hitCount()
+                + ", miss=" + sCache.missCount() + ", evict=" + sCache.evictionCount();
+    }
+}
@@ -5,7 +5,6 @@ import android.graphics.Bitmap;
 import android.opengl.GLES20;
 import android.support.annotation.IntegerRes;
 
-import com.icechn.videorecorder.tools.BitmapUtils;
 import com.icechn.videorecorder.tools.GLESTools;
 
 /**
@@ -13,45 +12,51 @@ import com.icechn.videorecorder.tools.GLESTools;
  */
 
 public class ImageTexture {
-    private int imageTextureId;
-    private int frameBufferTextureId;
-    private int frameBuffer;
+    private int imageTextureId = GLESTools.NO_TEXTURE;
     private int imageSize[];
-    private int outWidth;
-    private int outHeight;
 
-    public ImageTexture(int outWidth, int outHeight) {
+    public ImageTexture() {
         imageSize = new int[2];
-        this.outWidth = outWidth;
-        this.outHeight = outHeight;
     }
 
+    /**
+     * @deprecated 不再为每张图片创建输出大小的FrameBuffer，outWidth和outHeight不再使用，请用{@link #ImageTexture()}
+     */
+    @Deprecated
+    public ImageTexture(int outWidth, int outHeight) {
+        this();
+    }
+
+    /**
+     * 解码结果保存在{@link ImageBitmapCache}中，上传后不会recycle
+     */
     public ImageTexture load(Context context, String filePath, boolean isAssetsFile) {
         if (isAssetsFile) {
-            return loadBitmap(BitmapUtils.loadBitmapFromAssets(context, filePath));
+            return loadBitmap(ImageBitmapCache.getAsset(context, filePath, 0, 0), false);
         } else {
-            return  loadBitmap(BitmapUtils.loadBitmapFromDisk(context, filePath));
+            return loadBitmap(ImageBitmapCache.getFile(context, filePath, 0, 0), false);
         }
     }
 
     public ImageTexture load(Context context, @IntegerRes int resId) {
-        return loadBitmap(BitmapUtils.loadBitmapFromRaw(context, resId));
+        return loadBitmap(ImageBitmapCache.getRaw(context, resId, 0, 0), false);
     }
 
     public ImageTexture loadBitmap(Bitmap bitmap) {
+        return loadBitmap(bitmap, true);
+    }
+
+    /**
+     * @param recycle 上传后是否回收bitmap，来自缓存的bitmap不能回收
+     */
+    public ImageTexture loadBitmap(Bitmap bitmap, boolean recycle) {
         if (bitmap != null) {
             imageTextureId = GLESTools.loadTexture(bitmap, GLESTools.NO_TEXTURE);
             imageSize[0] = bitmap.getWidth();
             imageSize[1] = bitmap.getHeight();
-            int[] frameBufferArr = new int[1];
-            int[] frameBufferTextureArr = new int[1];
-            GLESTools.createFrameBuff(frameBufferArr,
-                    frameBufferTextureArr,
-                    outWidth,
-                    outHeight);
-            frameBuffer = frameBufferArr[0];
-            frameBufferTextureId = frameBufferTextureArr[0];
-            bitmap.recycle();
+            if (recycle) {
+                bitmap.recycle();
+            }
         }
         return this;
     }
@@ -63,12 +68,6 @@ public class ImageTexture {
     public int getImageTextureId() {
         return imageTextureId;
     }
-    public int getTextureId() {
-        return frameBufferTextureId;
-    }
-    public int getFrameBuffer() {
-        return frameBuffer;
-    }
 
     public int getImageWidth() {
         return imageSize[0];
@@ -82,8 +81,17 @@ public class ImageTexture {
         return 1.0f * imageSize[0] / imageSize[1];
     }
 
+    public long getGpuMemoryUsage() {
+        if (imageTextureId == GLESTools.NO_TEXTURE) {
+            return 0;
+        }
+        return (long) imageSize[0] * imageSize[1] * 4;
+    }
+
     public void destroy() {
-        GLES20.glDeleteTextures(2, new int[]{imageTextureId, frameBufferTextureId}, 0);
-        GLES20.glDeleteFramebuffers(1, new int[]{frameBuffer}, 0);
+        if (imageTextureId != GLESTools.NO_TEXTURE) {
+            GLES20.glDeleteTextures(1, new int[]{imageTextureId}, 0);
+            imageTextureId = GLESTools.NO_TEXTURE;
+        }
     }
 }
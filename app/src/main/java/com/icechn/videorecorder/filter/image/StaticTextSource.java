@@ -0,0 +1,19 @@
+package com.icechn.videorecorder.filter.image;
+
+/**
+ * 固定文字，例如操作员ID
+ */
+public class StaticTextSource implements ITextSource {
+    private final char[] text;
+
+    public StaticTextSource(String text) {
+        this.text = text.toCharArray();
+    }
+
+    @Override
+    public int getText(long timestampMs, char[] out) {
+        int length = Math.min(text.length, out.length);
+        System.arraycopy(text, 0, out, 0, length);
+        return length;
+    }
+}
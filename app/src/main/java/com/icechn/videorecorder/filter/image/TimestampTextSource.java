@@ -0,0 +1,67 @@
+package com.icechn.videorecorder.filter.image;
+
+import java.util.TimeZone;
+
+/**
+ * 当前本地时间，格式 yyyy-MM-dd HH:mm:ss。
+ * 帧时间戳的时钟在深度睡眠时不走，长时间录制会与真实时间偏离，所以每帧直接读取墙上时间；
+ * 时区偏移每小时重新取一次以跟上夏令时和用户修改的时区，
+ * 每帧只做整数运算换算日期，不使用Calendar/SimpleDateFormat。
+ */
+public class TimestampTextSource implements ITextSource {
+    public static final int LENGTH = 19;
+    private static final long HOUR_MS = 3600000L;
+
+    private long timeZoneOffsetMs;
+    private long timeZoneCheckedHour = Long.MIN_VALUE;
+
+    @Override
+    public int getText(long timestampMs, char[] out) {
+        if (out.length < LENGTH) {
+            return 0;
+        }
+        long wallTimeMs = System.currentTimeMillis();
+        long hour = wallTimeMs / HOUR_MS;
+        if (hour != timeZoneCheckedHour) {
+            timeZoneCheckedHour = hour;
+            timeZoneOffsetMs = TimeZone.getDefault().getOffset(wallTimeMs);
+        }
+        long localMs = wallTimeMs + timeZoneOffsetMs;
+        // Math.floorDiv需要API 24
+        long days = localMs >= 0 ? localMs / 86400000L : (localMs - 86399999L) / 86400000L;
+        int secondOfDay = (int) ((localMs - days * 86400000L) / 1000);
+        // civil from days, 以0000-03-01为起点的400年周期
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+        put4(out, 0, year);
+        out[4] = '-';
+        put2(out, 5, month);
+        out[7] = '-';
+        put2(out, 8, day);
+        out[10] = ' ';
+        put2(out, 11, secondOfDay / 3600);
+        out[13] = ':';
+        put2(out, 14, secondOfDay / 60 % 60);
+        out[16] = ':';
+        put2(out, 17, secondOfDay % 60);
+        return LENGTH;
+    }
+
+    private static void put2(char[] out, int offset, int value) {
+        out[offset] = (char) ('0' + value / 10 % 10);
+        out[offset + 1] = (char) ('0' + value % 10);
+    }
+
+    private static void put4(char[] out, int offset, int value) {
+        put2(out, offset, value / 100);
+        put2(out, offset + 2, value % 100);
+    }
+}
@@ -0,0 +1,73 @@
+package com.icechn.videorecorder.filter.lut;
+
+/**
+ * 解析后的3D LUT，已经按2D纹理的布局打包为RGBA：
+ * 每个蓝色分量为一块 size*size，块内横坐标为红色，纵坐标为绿色。
+ * 各块按 {@link #getColumns()} 列排成接近正方形的网格，
+ * 即格点(r,g,b)位于像素((b % columns)*size + r, (b / columns)*size + g)。
+ */
+public class CubeLut {
+    private final String title;
+    private final int size;
+    private final byte[] rgba;
+
+    CubeLut(String title, int size, byte[] rgba) {
+        this.title = title;
+        this.size = size;
+        this.rgba = rgba;
+    }
+
+    /**
+     * @return 网格的列数，ceil(sqrt(size))
+     */
+    public static int getColumns(int size) {
+        int columns = (int) Math.sqrt(size);
+        return columns * columns < size ? columns + 1 : columns;
+    }
+
+    /**
+     * @return 网格的行数
+     */
+    public static int getRows(int size) {
+        int columns = getColumns(size);
+        return (size + columns - 1) / columns;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return LUT_3D_SIZE
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public int getColumns() {
+        return getColumns(size);
+    }
+
+    public int getRows() {
+        return getRows(size);
+    }
+
+    public int getTextureWidth() {
+        return getColumns() * size;
+    }
+
+    public int getTextureHeight() {
+        return getRows() * size;
+    }
+
+    /**
+     * @return RGBA数据，不要修改
+     */
+    public byte[] getRgba() {
+        return rgba;
+    }
+
+    public int getByteCount() {
+        return rgba.length;
+    }
+}
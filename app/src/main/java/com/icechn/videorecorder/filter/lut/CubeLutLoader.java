@@ -0,0 +1,78 @@
+package com.icechn.videorecorder.filter.lut;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 加载 .cube 文件，解析结果按字节数缓存，切换回用过的LUT时不再重复解析。
+ * 解析比较耗时，不要在GL线程或主线程调用。
+ */
+public class CubeLutLoader {
+    private static final String TAG = "CubeLutLoader";
+    private static final int CACHE_SIZE_BYTES = 8 * 1024 * 1024;
+
+    private static final LruCache<String, CubeLut> sCache = new LruCache<String, CubeLut>(CACHE_SIZE_BYTES) {
+        @Override
+        protected int sizeOf(String key, CubeLut value) {
+            return value.getByteCount();
+        }
+    };
+
+    public static CubeLut loadFromAssets(Context context, String filePath) {
+        String key = "assets:" + filePath;
+        CubeLut lut = sCache.get(key);
+        if (lut != null) {
+            return lut;
+        }
+        InputStream inputStream = null;
+        try {
+            inputStream = context.getResources().getAssets().open(filePath);
+            lut = CubeLutParser.parse(inputStream);
+        } catch (IOException e) {
+            Log.e(TAG, "load lut from assets failed : " + filePath, e);
+            return null;
+        } finally {
+            closeQuietly(inputStream);
+        }
+        sCache.put(key, lut);
+        return lut;
+    }
+
+    public static CubeLut loadFromDisk(String filePath) {
+        String key = "file:" + filePath;
+        CubeLut lut = sCache.get(key);
+        if (lut != null) {
+            return lut;
+        }
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(filePath);
+            lut = CubeLutParser.parse(inputStream);
+        } catch (IOException e) {
+            Log.e(TAG, "load lut from disk failed : " + filePath, e);
+            return null;
+        } finally {
+            closeQuietly(inputStream);
+        }
+        sCache.put(key, lut);
+        return lut;
+    }
+
+    public static void clearCache() {
+        sCache.evictAll();
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.icechn.videorecorder.filter.lut;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Adobe .cube 格式的流式解析器。
+ * 逐字节读取，数据行直接解析为数值写入打包好的RGBA数组，不会把整个文件或每一行读成String。
+ * 支持 TITLE、LUT_3D_SIZE、DOMAIN_MIN、DOMAIN_MAX 以及 # 注释，不支持 LUT_1D_SIZE。
+ */
+public class CubeLutParser {
+    // 按网格排列后为1536x1408，GL_MAX_TEXTURE_SIZE为2048的设备也能上传
+    private static final int MAX_LUT_SIZE = 128;
+
+    private final InputStream in;
+    private int ch;
+    private int line = 1;
+
+    private CubeLutParser(InputStream in) {
+        this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 8192);
+    }
+
+    /**
+     * 调用方负责关闭inputStream
+     */
+    public static CubeLut parse(InputStream inputStream) throws IOException {
+        return new CubeLutParser(inputStream).parse();
+    }
+
+    private CubeLut parse() throws IOException {
+        String title = null;
+        int size = 0;
+        float[] domainMin = {0f, 0f, 0f};
+        float[] domainMax = {1f, 1f, 1f};
+        float[] rgb = new float[3];
+        byte[] rgba = null;
+        int columns = 0;
+        int rowStride = 0;
+        int count = 0;
+        int total = 0;
+        ch = in.read();
+        while (true) {
+            skipBlank();
+            if (ch == -1) {
+                break;
+            }
+            if (ch == '\n' || ch == '\r') {
+                nextLine();
+                continue;
+            }
+            if (ch == '#') {
+                skipLine();
+                continue;
+            }
+            if (isNumberStart(ch)) {
+                if (rgba == null) {
+                    throw error("data before LUT_3D_SIZE");
+                }
+                if (count >= total) {
+                    throw error("too many entries, expect " + total);
+                }
+                for (int i = 0; i < 3; i++) {
+                    skipBlank();
+                    rgb[i] = readFloat();
+                }
+                // .cube中红色变化最快，其次绿色，最后蓝色
+                int r = count % size;
+                int g = (count / size) % size;
+                int b = count / (size * size);
+                int x = (b % columns) * size + r;
+                int y = (b / columns) * size + g;
+                int offset = (y * rowStride + x) * 4;
+                for (int i = 0; i < 3; i++) {
+                    float v = (rgb[i] - domainMin[i]) / (domainMax[i] - domainMin[i]);
+                    v = v < 0f ? 0f : (v > 1f ? 1f : v);
+                    rgba[offset + i] = (byte) (int) (v * 255f + 0.5f);
+                }
+                rgba[offset + 3] = (byte) 0xFF;
+                count++;
+                skipLine();
+                continue;
+            }
+            String keyword = readKeyword();
+            if ("TITLE".equals(keyword)) {
+                title = readRestOfLine();
+            } else if ("LUT_3D_SIZE".equals(keyword)) {
+                skipBlank();
+                size = (int) readFloat();
+                if (size < 2 || size > MAX_LUT_SIZE) {
+                    throw error("invalid LUT_3D_SIZE " + size);
+                }
+                total = size * size * size;
+                columns = CubeLut.getColumns(size);
+                rowStride = columns * size;
+                // 网格最后一行可能不满，空位保持为0
+                rgba = new byte[rowStride * CubeLut.getRows(size) * size * 4];
+                skipLine();
+            } else if ("DOMAIN_MIN".equals(keyword) || "DOMAIN_MAX".equals(keyword)) {
+                float[] domain = "DOMAIN_MIN".equals(keyword) ? domainMin : domainMax;
+                for (int i = 0; i < 3; i++) {
+                    skipBlank();
+                    domain[i] = readFloat();
+                }
+                skipLine();
+            } else if ("LUT_1D_SIZE".equals(keyword)) {
+                throw error("1D LUT is not supported");
+            } else {
+                // 未知关键字，例如 LUT_3D_INPUT_RANGE 等厂商扩展
+                skipLine();
+            }
+        }
+        if (rgba == null) {
+            throw error("missing LUT_3D_SIZE");
+        }
+        if (count != total) {
+            throw error("expect " + total + " entries but got " + count);
+        }
+        for (int i = 0; i < 3; i++) {
+            if (domainMax[i] <= domainMin[i]) {
+                throw error("invalid domain");
+            }
+        }
+        return new CubeLut(title, size, rgba);
+    }
+
+    private static boolean isNumberStart(int c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.';
+    }
+
+    private void skipBlank() throws IOException {
+        while (ch == ' ' || ch == '\t') {
+            ch = in.read();
+        }
+    }
+
+    private void nextLine() throws IOException {
+        if (ch == '\r') {
+            ch = in.read();
+            if (ch == '\n') {
+                ch = in.read();
+            }
+        } else {
+            ch = in.read();
+        }
+        line++;
+    }
+
+    private void skipLine() throws IOException {
+        while (ch != -1 && ch != '\n' && ch != '\r') {
+            ch = in.read();
+        }
+        if (ch != -1) {
+            nextLine();
+        }
+    }
+
+    private String readKeyword() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (ch != -1 && ch != ' ' && ch != '\t' && ch != '\n' && ch != '\r') {
+            sb.append((char) ch);
+            ch = in.read();
+        }
+        return sb.toString();
+    }
+
+    private String readRestOfLine() throws IOException {
+        skipBlank();
+        StringBuilder sb = new StringBuilder();
+        while (ch != -1 && ch != '\n' && ch != '\r') {
+            if (ch != '"') {
+                sb.append((char) ch);
+            }
+            ch = in.read();
+        }
+        if (ch != -1) {
+            nextLine();
+        }
+        return sb.toString().trim();
+    }
+
+    private float readFloat() throws IOException {
+        boolean negative = false;
+        if (ch == '-' || ch == '+') {
+            negative = ch == '-';
+            ch = in.read();
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        while (ch >= '0' && ch <= '9') {
+            if (mantissa < Long.MAX_VALUE / 10 - 10) {
+                mantissa = mantissa * 10 + (ch - '0');
+            } else {
+                exponent++;
+            }
+            digits++;
+            ch = in.read();
+        }
+        if (ch == '.') {
+            ch = in.read();
+            while (ch >= '0' && ch <= '9') {
+                if (mantissa < Long.MAX_VALUE / 10 - 10) {
+                    mantissa = mantissa * 10 + (ch - '0');
+                    exponent--;
+                }
+                digits++;
+                ch = in.read();
+            }
+        }
+        if (digits == 0) {
+            throw error("number expected");
+        }
+        if (ch == 'e' || ch == 'E') {
+            ch = in.read();
+            boolean negativeExp = false;
+            if (ch == '-' || ch == '+') {
+                negativeExp = ch == '-';
+                ch = in.read();
+            }
+            int exp = 0;
+            int expDigits = 0;
+            while (ch >= '0' && ch <= '9') {
+                exp = exp * 10 + (ch - '0');
+                expDigits++;
+                ch = in.read();
+            }
+            if (expDigits == 0) {
+                throw error("exponent expected");
+            }
+            exponent += negativeExp ? -exp : exp;
+        }
+        double value = exponent == 0 ? mantissa : mantissa * Math.pow(10, exponent);
+        return (float) (negative ? -value : value);
+    }
+
+    private IOException error(String msg) {
+        return new IOException("invalid cube file at line " + line + " : " + msg);
+    }
+}
@@ -4,6 +4,11 @@ public class MediaConfig {
 
     public static final int Rending_Model_OpenGLES = MediaMakerConfig.RENDERING_MODE_OPENGLES;
 
+    public static class VideoCodec {
+        public static final String AVC = MediaMakerConfig.VIDEO_CODEC_AVC;
+        public static final String HEVC = MediaMakerConfig.VIDEO_CODEC_HEVC;
+    }
+
     public static class DirectionMode {
         public static final int FLAG_DIRECTION_FLIP_HORIZONTAL = MediaMakerConfig.FLAG_DIRECTION_FLIP_HORIZONTAL;
         public static final int FLAG_DIRECTION_FLIP_VERTICAL = MediaMakerConfig.FLAG_DIRECTION_FLIP_VERTICAL;
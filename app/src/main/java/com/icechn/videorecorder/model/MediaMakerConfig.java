@@ -8,6 +8,10 @@ import java.lang.reflect.Modifier;
 public class MediaMakerConfig {
 
     public static final int RENDERING_MODE_OPENGLES = 2;
+    public static final String VIDEO_CODEC_AVC = "video/avc";
+    public static final String VIDEO_CODEC_HEVC = "video/hevc";
+    // 相同画质下HEVC大约只需要AVC 60%的码率
+    public static final float HEVC_BITRATE_RATIO = 0.6f;
     /**
      * same with jni
      */
@@ -48,7 +52,21 @@ public class MediaMakerConfig {
     public int mediaCodecAVCFrameRate;
     public int mediaCodecAVCIFrameInterval;
     public int mediaCodecAVCProfile;
+    // 实际使用的视频编码，HEVC不可用时为AVC，以下mediaCodecAVC*参数都属于该编码
+    public String videoCodec;
     public int mediaCodecAVCLevel;
+    public int mediaCodecAVCBitrateMode;
+    // 视频轨每分钟的存储预算（字节），0表示使用固定码率
+    public long videoStorageBudget;
+    // 按该间隔（毫秒）强制关键帧，0表示只按GOP
+    public int keyFrameAlignInterval;
+    // true时编码器使用YUV buffer输入，Surface输入失败时也会自动置为true
+    public boolean videoBufferInput;
+    // 代理视频相对videoWidth/videoHeight的缩放，0表示不编码代理视频
+    public float proxyVideoScale;
+    public int proxyBitRate;
+    // 探测出的编码器名，null时按类型创建
+    public String mediaCodecAVCName;
 
     public int mediaCodecAACProfile;
     public int mediaCodecAACSampleRate;
@@ -62,6 +80,7 @@ public class MediaMakerConfig {
 
     public boolean saveVideoEnable = false;
     public String saveVideoPath;
+    public String proxyVideoPath;
 
     public MediaMakerConfig() {
         done = false;
@@ -78,7 +97,9 @@ public class MediaMakerConfig {
         mediaCodecAVCFrameRate = -1;
         mediaCodecAVCIFrameInterval = -1;
         mediaCodecAVCProfile = -1;
+        videoCodec = VIDEO_CODEC_AVC;
         mediaCodecAVCLevel = -1;
+        mediaCodecAVCBitrateMode = -1;
         mediaCodecAACProfile = -1;
         mediaCodecAACSampleRate = -1;
         mediaCodecAACChannelCount = -1;
@@ -13,6 +13,12 @@ public class RecordConfig {
     private int backCameraDirectionMode;
     private int videoFPS;
     private int videoGOP;
+    private String videoCodec;
+    private long videoStorageBudget;
+    private int keyFrameAlignInterval;
+    private boolean videoBufferInput;
+    private float proxyVideoScale;
+    private int proxyBitRate;
     private boolean printDetailMsg;
 
 
@@ -25,6 +31,7 @@ public class RecordConfig {
         res.setTargetVideoSize(new Size(640, 480));
         res.setVideoFPS(25);
         res.setVideoGOP(1);
+        res.setVideoCodec(MediaConfig.VideoCodec.AVC);
         res.setVideoBufferQueueNum(5);
         res.setBitRate(2000000);
         res.setPrintDetailMsg(false);
@@ -94,7 +101,7 @@ public class RecordConfig {
 
     /**
      * set video bitrate
-     * @param bitRate
+     * @param bitRate bitrate for AVC, it is scaled by {@link com.icechn.videorecorder.model.MediaMakerConfig#HEVC_BITRATE_RATIO} when HEVC is used
      */
     public void setBitRate(int bitRate) {
         this.bitRate = bitRate;
@@ -116,6 +123,95 @@ public class RecordConfig {
         this.videoGOP = videoGOP;
     }
 
+    /**
+     * set video codec.<br/>
+     * HEVC falls back to AVC when the device has no HEVC encoder or is below Android 7.0(MediaMuxer has no HEVC support).
+     * @param videoCodec {@link MediaConfig.VideoCodec}
+     */
+    public void setVideoCodec(String videoCodec) {
+        if (!MediaConfig.VideoCodec.AVC.equals(videoCodec) && !MediaConfig.VideoCodec.HEVC.equals(videoCodec)) {
+            throw new IllegalArgumentException("unsupported video codec " + videoCodec);
+        }
+        this.videoCodec = videoCodec;
+    }
+
+    public String getVideoCodec() {
+        return videoCodec;
+    }
+
+    /**
+     * limit the video track to a storage budget, bitrate is adjusted every second to meet it.<br/>
+     * 0 to disable(default), then {@link #setBitRate(int)} is used all the time.
+     * @param megabytesPerMinute budget of video track
+     */
+    public void setVideoStorageBudget(float megabytesPerMinute) {
+        if (megabytesPerMinute < 0) {
+            throw new IllegalArgumentException("invalid storage budget " + megabytesPerMinute);
+        }
+        this.videoStorageBudget = (long) (megabytesPerMinute * 1024 * 1024);
+    }
+
+    /**
+     * @return bytes per minute, 0 if disabled
+     */
+    public long getVideoStorageBudget() {
+        return videoStorageBudget;
+    }
+
+    /**
+     * force a keyframe at every multiple of interval since recording start,<br/>
+     * so files can be cut, rolled or buffered at these points without re-encoding.<br/>
+     * should be a multiple of the GOP. 0 to disable(default).
+     * @param intervalMs segment or chunk duration in milliseconds
+     */
+    public void setKeyFrameAlignInterval(int intervalMs) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("invalid keyframe align interval " + intervalMs);
+        }
+        this.keyFrameAlignInterval = intervalMs;
+    }
+
+    public int getKeyFrameAlignInterval() {
+        return keyFrameAlignInterval;
+    }
+
+    /**
+     * 强制编码器使用YUV buffer输入而不是Surface输入，用于Surface输入有问题的机型。
+     * 颜色转换在GPU上完成，视频宽需为8的倍数、高需为4的倍数
+     */
+    public void setVideoBufferInput(boolean bufferInput) {
+        this.videoBufferInput = bufferInput;
+    }
+
+    public boolean isVideoBufferInput() {
+        return videoBufferInput;
+    }
+
+    /**
+     * also encode a scaled down AVC proxy of the same frames while recording, written to {@link #setProxyVideoPath(String)}.<br/>
+     * the proxy gets its own copy of the audio track.<br/>
+     * @param scale   proxy size relative to the video size, in (0, 1). 0 to disable(default)
+     * @param bitRate proxy video bitrate
+     */
+    public void setProxyVideo(float scale, int bitRate) {
+        if (scale < 0 || scale >= 1) {
+            throw new IllegalArgumentException("invalid proxy scale " + scale);
+        }
+        if (scale > 0 && bitRate <= 0) {
+            throw new IllegalArgumentException("invalid proxy bitrate " + bitRate);
+        }
+        this.proxyVideoScale = scale;
+        this.proxyBitRate = bitRate;
+    }
+
+    public float getProxyVideoScale() {
+        return proxyVideoScale;
+    }
+
+    public int getProxyBitRate() {
+        return proxyBitRate;
+    }
+
     public int getVideoBufferQueueNum() {
         return videoBufferQueueNum;
     }
@@ -168,4 +264,12 @@ public class RecordConfig {
         return this.saveVideoPath;
     }
 
+    private String proxyVideoPath = null;
+    public void setProxyVideoPath(String path) {
+        this.proxyVideoPath = path;
+    }
+    public String getProxyVideoPath() {
+        return this.proxyVideoPath;
+    }
+
 }
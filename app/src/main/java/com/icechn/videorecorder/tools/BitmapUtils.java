@@ -52,6 +52,72 @@ public class BitmapUtils {
         return bitmap;
     }
 
+    /**
+     * 按目标尺寸计算inSampleSize解码，解码结果不小于reqWidth x reqHeight（除非原图更小）。
+     * 与不带尺寸的版本一样inScaled=false，按图片本身的像素尺寸解码，不随drawable目录的density缩放
+     */
+    public static Bitmap loadBitmapFromRaw(Context context, int resourceId, int reqWidth, int reqHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(context.getResources(), resourceId, options);
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        options.inScaled = false;
+        return BitmapFactory.decodeResource(context.getResources(), resourceId, options);
+    }
+
+    public static Bitmap loadBitmapFromAssets(Context context, String filePath, int reqWidth, int reqHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream inputStream = null;
+        try {
+            inputStream = context.getResources().getAssets().open(filePath);
+            BitmapFactory.decodeStream(inputStream, null, options);
+            closeQuietly(inputStream);
+            options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+            options.inJustDecodeBounds = false;
+            options.inScaled = false;
+            inputStream = context.getResources().getAssets().open(filePath);
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(inputStream);
+        }
+    }
+
+    public static Bitmap loadBitmapFromDisk(String filePath, int reqWidth, int reqHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(filePath, options);
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        options.inScaled = false;
+        return BitmapFactory.decodeFile(filePath, options);
+    }
+
+    public static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return inSampleSize;
+        }
+        while (options.outWidth / (inSampleSize * 2) >= reqWidth
+                && options.outHeight / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
     public static void saveBitmap(byte[] buffer, int width, int height) {
         try {
             // 调用image.compressToJpeg（）将YUV格式图像数据data转为jpg格式
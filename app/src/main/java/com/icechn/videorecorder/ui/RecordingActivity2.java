@@ -28,6 +28,7 @@ import android.widget.Toast;
 
 import com.icechn.videorecorder.R;
 import com.icechn.videorecorder.client.RecorderClient;
+import com.icechn.videorecorder.core.listener.ISegmentListener;
 import com.icechn.videorecorder.core.listener.IVideoChange;
 import com.icechn.videorecorder.filter.image.DrawMultiImageFilter;
 import com.icechn.videorecorder.filter.image.DrawMultiImageFilter.ImageDrawData;
@@ -40,10 +41,11 @@ import com.icechn.videorecorder.tools.VideoSplicer;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 
 public class RecordingActivity2 extends AppCompatActivity implements
-        TextureView.SurfaceTextureListener, View.OnClickListener, IVideoChange {
+        TextureView.SurfaceTextureListener, View.OnClickListener, IVideoChange, ISegmentListener {
     private static final String TAG = "RecordingActivity2";
     public static final String IS_SQUARE = "is_square";
     private static final int MIN_RECORD_DURATION = 10000;//10S
@@ -107,7 +109,7 @@ public class RecordingActivity2 extends AppCompatActivity implements
                 return false;
             }
         });
-        findViewById(R.id.btn_del).setEnabled(mFileIdx > 0);
+        findViewById(R.id.btn_del).setEnabled(false);
 
         prepareStreamingClient();
         onSetFilters();
@@ -134,7 +136,7 @@ public class RecordingActivity2 extends AppCompatActivity implements
         if (mainHander != null) {
             mainHander.removeCallbacksAndMessages(null);
         }
-        if (isRecording) {
+        if (isEncoding) {
             mRecorderClient.stopRecording();
         }
         if (mRecorderClient != null) {
@@ -188,6 +190,7 @@ public class RecordingActivity2 extends AppCompatActivity implements
         mTextureView.setAspectRatio(AspectTextureView.MODE_INSIDE, ((double) s.getWidth()) / s.getHeight());
 
         mRecorderClient.setVideoChangeListener(this);
+        mRecorderClient.setSegmentListener(this);
 
         mRecorderClient.setSoftAudioFilter(new SetVolumeAudioFilter());
     }
@@ -247,8 +250,10 @@ public class RecordingActivity2 extends AppCompatActivity implements
             return ;
         }
         mFileIdx++;
-        mRecorderClient.updateVideoSavePath(getTmpFolderPath() + "/"+mFileIdx+".mp4");
-        mRecorderClient.startRecording();
+        mSegmentPath = getTmpFolderPath() + "/"+mFileIdx+".mp4";
+        // 编码器一直运行，只切换文件
+        mRecorderClient.startSegment(mSegmentPath);
+        isEncoding = true;
         isRecording = true;
         mStartTime = System.currentTimeMillis();
         mTimeHandle.sendLoopMsg(0L, 100L);
@@ -257,37 +262,51 @@ public class RecordingActivity2 extends AppCompatActivity implements
         if (!isRecording) {
             return ;
         }
-        mRecorderClient.stopRecording();
+        mRecorderClient.pauseSegment();
         isRecording = false;
         stopTimeTask();
+        // 文件在onSegmentFinished之后才可用
+        mPendingSegments.put(mSegmentPath, mCurrentDuration);
+        totalTime += mCurrentDuration;
+    }
 
-        String path = mRecorderClient.getVideoSavePath();
-        if (mCurrentDuration > 1000) {
+    @Override
+    public void onSegmentFinished(String path, boolean success) {
+        Long duration = mPendingSegments.remove(path);
+        if (duration == null) {
+            return;
+        }
+        if (success && duration > 1000 && !TextUtils.isEmpty(path)) {
+            durationList.add(duration);
+            mp4List.add(path);
+        } else {
+            totalTime -= duration;
             if (!TextUtils.isEmpty(path)) {
-                totalTime += mCurrentDuration;
-                durationList.add(mCurrentDuration);
-                mp4List.add(path);
-                findViewById(R.id.btn_del).setEnabled(mFileIdx > 0);
-                return ;
+                File file = new File(path);
+                if (file.exists()) {
+                    file.delete();
+                }
             }
-        }
-        if (!TextUtils.isEmpty(path)) {
-            File file = new File(path);
-            if (file.exists()) {
-                file.delete();
+            mTimeProgressBar.setProgress((int) (totalTime));
+            mTimeView.setText((totalTime)/1000+"s");
+            if (totalTime < MIN_RECORD_DURATION) {
+                findViewById(R.id.btn_ok).setEnabled(false);
             }
         }
-        mFileIdx--;
-        mTimeProgressBar.setProgress((int) (totalTime));
-        mTimeView.setText((totalTime)/1000+"s");
-        if (totalTime < MIN_RECORD_DURATION) {
-            findViewById(R.id.btn_ok).setEnabled(false);
+        findViewById(R.id.btn_del).setEnabled(mp4List.size() > 0);
+        if (isMergePending && mPendingSegments.isEmpty()) {
+            isMergePending = false;
+            mergeFile();
         }
-        findViewById(R.id.btn_del).setEnabled(mFileIdx > 0);
     }
 
     private boolean isRecording = false;
+    // 分段之间编码器不停
+    private boolean isEncoding = false;
+    private boolean isMergePending = false;
     private int mFileIdx = 0;
+    private String mSegmentPath;
+    private HashMap<String, Long> mPendingSegments = new HashMap<>();
     private ArrayList<String> mp4List;
     private ArrayList<Long> durationList;
 
@@ -349,9 +368,6 @@ public class RecordingActivity2 extends AppCompatActivity implements
     }
 
     private void fallBack() {
-        if(mFileIdx > 0) {
-            mFileIdx--;
-        }
         if(mp4List.size()>0) {
             String path = mp4List.remove(mp4List.size() - 1);
             File file = new File(path);
@@ -365,7 +381,7 @@ public class RecordingActivity2 extends AppCompatActivity implements
             if (totalTime < MIN_RECORD_DURATION) {
                 findViewById(R.id.btn_ok).setEnabled(false);
             }
-            findViewById(R.id.btn_del).setEnabled(mFileIdx > 0);
+            findViewById(R.id.btn_del).setEnabled(mp4List.size() > 0);
         }
     }
 
@@ -373,16 +389,24 @@ public class RecordingActivity2 extends AppCompatActivity implements
     public void onClick(View v) {
         switch (v.getId()) {
             case R.id.btn_del:
-                if (isRecording) {
+                if (isRecording || !mPendingSegments.isEmpty()) {
                     return ;
                 }
                 fallBack();
                 break;
             case R.id.btn_ok:
-                if (isRecording) {
+                if (isRecording || isMergePending) {
                     return ;
                 }
-                mergeFile();
+                if (isEncoding) {
+                    mRecorderClient.stopRecording();
+                    isEncoding = false;
+                }
+                if (mPendingSegments.isEmpty()) {
+                    mergeFile();
+                } else {
+                    isMergePending = true;
+                }
                 break;
             case R.id.btn_swap:
                 mRecorderClient.swapCamera();
@@ -0,0 +1,74 @@
+package com.icechn.videorecorder.core;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 扫描吞吐量，耗时较长，默认不运行，需要时去掉@Ignore手动执行。
+ * 只校验NAL个数，吞吐量通过java.util.logging输出
+ */
+@Ignore("benchmark, run manually")
+public class NalUnitScannerBenchmark {
+    private static final int BUFFER_SIZE = 8 * 1024 * 1024;
+    private static final int MEAN_NAL_SIZE = 1500;
+    private static final int ROUNDS = 10;
+    private static final Logger LOGGER = Logger.getLogger(NalUnitScannerBenchmark.class.getName());
+
+    /**
+     * 模拟码流：数据中没有0，起始码随机为3或4字节
+     */
+    private static int fill(ByteBuffer buffer, Random random) {
+        int nalCount = 0;
+        while (buffer.remaining() > 4 + MEAN_NAL_SIZE * 2) {
+            if (random.nextBoolean()) {
+                buffer.put((byte) 0);
+            }
+            buffer.put((byte) 0).put((byte) 0).put((byte) 1);
+            int size = 1 + random.nextInt(MEAN_NAL_SIZE * 2);
+            for (int i = 0; i < size; i++) {
+                buffer.put((byte) (1 + random.nextInt(255)));
+            }
+            nalCount++;
+        }
+        buffer.flip();
+        return nalCount;
+    }
+
+    /**
+     * @return 最快一轮的吞吐量，MB/s
+     */
+    private static float run(ByteBuffer buffer, int expectedNalCount) {
+        NalUnitScanner scanner = new NalUnitScanner();
+        long bestNs = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            int count = 0;
+            scanner.reset(buffer);
+            while (scanner.next()) {
+                count++;
+            }
+            bestNs = Math.min(bestNs, System.nanoTime() - start);
+            assertEquals(expectedNalCount, count);
+        }
+        return buffer.remaining() * 1000f / bestNs;
+    }
+
+    @Test
+    public void scanThroughput() {
+        ByteBuffer heap = ByteBuffer.allocate(BUFFER_SIZE);
+        int nalCount = fill(heap, new Random(42));
+        float heapMBps = run(heap, nalCount);
+        ByteBuffer direct = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        direct.put(heap.duplicate()).flip();
+        float directMBps = run(direct, nalCount);
+        String result = "heap " + heapMBps + " MB/s, direct " + directMBps + " MB/s, " + nalCount + " nals";
+        LOGGER.info(result);
+        assertTrue(result, heapMBps > 0 && directMBps > 0);
+    }
+}
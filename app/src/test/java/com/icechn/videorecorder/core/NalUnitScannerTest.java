@@ -0,0 +1,185 @@
+package com.icechn.videorecorder.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class NalUnitScannerTest {
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, (byte) 0x8C};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] IDR = {0x65, (byte) 0x88, (byte) 0x84, 0x00, 0x03, 0x7F};
+    private static final byte[] SLICE = {0x41, (byte) 0x9A, 0x22};
+
+    private static ByteBuffer wrap(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            buffer.put(part);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] startCode3() {
+        return new byte[]{0, 0, 1};
+    }
+
+    private static byte[] startCode4() {
+        return new byte[]{0, 0, 0, 1};
+    }
+
+    private static byte[] lengthOf(byte[] nal) {
+        return ByteBuffer.allocate(4).putInt(nal.length).array();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
+    }
+
+    @Test
+    public void singleNalWithFourByteStartCode() {
+        NalUnitScanner scanner = new NalUnitScanner().reset(wrap(startCode4(), IDR));
+        assertTrue(scanner.next());
+        assertEquals(4, scanner.getNalOffset());
+        assertEquals(IDR.length, scanner.getNalLength());
+        assertEquals(NalUnitScanner.AVC_NAL_IDR, scanner.getAvcNalType());
+        assertFalse(scanner.next());
+    }
+
+    @Test
+    public void singleNalWithThreeByteStartCode() {
+        NalUnitScanner scanner = new NalUnitScanner().reset(wrap(startCode3(), IDR));
+        assertTrue(scanner.next());
+        assertEquals(3, scanner.getNalOffset());
+        assertArrayEquals(IDR, toArray(scanner.slice()));
+        assertFalse(scanner.next());
+    }
+
+    @Test
+    public void multipleNalsWithMixedStartCodes() {
+        ByteBuffer buffer = wrap(startCode4(), SPS, startCode3(), PPS, startCode4(), IDR, startCode3(), SLICE);
+        NalUnitScanner scanner = new NalUnitScanner().reset(buffer);
+        byte[][] expected = {SPS, PPS, IDR, SLICE};
+        for (byte[] nal : expected) {
+            assertTrue(scanner.next());
+            assertArrayEquals(nal, toArray(scanner.slice()));
+        }
+        assertFalse(scanner.next());
+    }
+
+    @Test
+    public void trailingZerosAreNotPartOfNal() {
+        NalUnitScanner scanner = new NalUnitScanner().reset(wrap(startCode3(), SLICE, new byte[]{0, 0}, startCode4(), IDR));
+        assertTrue(scanner.next());
+        assertArrayEquals(SLICE, toArray(scanner.slice()));
+        assertTrue(scanner.next());
+        assertArrayEquals(IDR, toArray(scanner.slice()));
+    }
+
+    @Test
+    public void scansOnlyBetweenPositionAndLimit() {
+        ByteBuffer buffer = wrap(new byte[]{0x11, 0x22}, startCode3(), SLICE, startCode3(), IDR);
+        buffer.position(2);
+        buffer.limit(2 + 3 + SLICE.length);
+        NalUnitScanner scanner = new NalUnitScanner().reset(buffer);
+        assertTrue(scanner.next());
+        assertEquals(5, scanner.getNalOffset());
+        assertArrayEquals(SLICE, toArray(scanner.slice()));
+        assertFalse(scanner.next());
+        assertEquals(2, buffer.position());
+        assertEquals(2 + 3 + SLICE.length, buffer.limit());
+    }
+
+    @Test
+    public void sliceSharesContentWithoutCopy() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(3 + IDR.length);
+        buffer.put(startCode3()).put(IDR).flip();
+        NalUnitScanner scanner = new NalUnitScanner().reset(buffer);
+        assertTrue(scanner.next());
+        ByteBuffer slice = scanner.slice();
+        assertTrue(slice.isDirect());
+        buffer.put(3, (byte) 0x61);
+        assertEquals(0x61, slice.get(0));
+    }
+
+    @Test
+    public void lengthPrefixedNals() {
+        ByteBuffer buffer = wrap(lengthOf(SPS), SPS, lengthOf(IDR), IDR);
+        // 长度前缀按大端读取，与buffer的ByteOrder无关
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        NalUnitScanner scanner = new NalUnitScanner().reset(buffer);
+        assertTrue(scanner.next());
+        assertArrayEquals(SPS, toArray(scanner.slice()));
+        assertTrue(scanner.next());
+        assertArrayEquals(IDR, toArray(scanner.slice()));
+        assertFalse(scanner.next());
+    }
+
+    @Test
+    public void lengthPrefixLooksLikeStartCode() {
+        // 长度0x100~0x1FF的前缀是00 00 01 xx
+        byte[] nal = new byte[0x1A0];
+        nal[0] = 0x65;
+        for (int i = 1; i < nal.length; i++) {
+            nal[i] = (byte) (i % 251 + 1);
+        }
+        ByteBuffer buffer = wrap(lengthOf(nal), nal, lengthOf(SLICE), SLICE);
+        NalUnitScanner scanner = new NalUnitScanner().reset(buffer);
+        assertTrue(scanner.next());
+        assertEquals(4, scanner.getNalOffset());
+        assertArrayEquals(nal, toArray(scanner.slice()));
+        assertTrue(scanner.next());
+        assertArrayEquals(SLICE, toArray(scanner.slice()));
+        assertFalse(scanner.next());
+        assertEquals(4, new NalUnitScanner().findFirstPictureNal(buffer, false));
+    }
+
+    @Test
+    public void rawNalWithoutPrefixIsOneNal() {
+        NalUnitScanner scanner = new NalUnitScanner().reset(wrap(IDR));
+        assertTrue(scanner.next());
+        assertEquals(0, scanner.getNalOffset());
+        assertEquals(IDR.length, scanner.getNalLength());
+        assertFalse(scanner.next());
+    }
+
+    @Test
+    public void emptyBufferHasNoNal() {
+        assertFalse(new NalUnitScanner().reset(ByteBuffer.allocate(0)).next());
+        assertFalse(new NalUnitScanner().reset(wrap(startCode4())).next());
+    }
+
+    @Test
+    public void findFirstPictureNalSkipsParameterSets() {
+        ByteBuffer buffer = wrap(startCode4(), SPS, startCode4(), PPS, startCode3(), IDR);
+        int offset = new NalUnitScanner().findFirstPictureNal(buffer, false);
+        assertEquals(4 + SPS.length + 4 + PPS.length + 3, offset);
+        assertEquals(-1, new NalUnitScanner().findFirstPictureNal(wrap(startCode4(), SPS, startCode4(), PPS), false));
+    }
+
+    @Test
+    public void findFirstPictureNalHevc() {
+        byte[] vps = {0x40, 0x01, 0x0C};
+        byte[] idrWRadl = {0x26, 0x01, (byte) 0xAF};
+        ByteBuffer buffer = wrap(startCode4(), vps, startCode3(), idrWRadl);
+        NalUnitScanner scanner = new NalUnitScanner();
+        assertEquals(4 + vps.length + 3, scanner.findFirstPictureNal(buffer, true));
+        assertEquals(19, scanner.getHevcNalType());
+    }
+
+    @Test
+    public void findStartCodeSkipsNonZeroBytes() {
+        ByteBuffer buffer = wrap(new byte[]{5, 6, 7, 1, 0, 1, 0, 0, 1, 9});
+        assertEquals(6, NalUnitScanner.findStartCode(buffer, 0, buffer.limit()));
+        assertEquals(-1, NalUnitScanner.findStartCode(buffer, 0, 8));
+    }
+}
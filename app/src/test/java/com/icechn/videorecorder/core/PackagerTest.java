@@ -0,0 +1,65 @@
+package com.icechn.videorecorder.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class PackagerTest {
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, (byte) 0x8C};
+    private static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    private static ByteBuffer wrap(byte[] startCode, byte[] nal) {
+        ByteBuffer buffer = ByteBuffer.allocate(startCode.length + nal.length);
+        buffer.put(startCode).put(nal).flip();
+        return buffer;
+    }
+
+    private static void assertRecord(byte[] record) {
+        assertEquals(11 + SPS.length + PPS.length, record.length);
+        assertEquals(0x01, record[0]);
+        assertEquals(SPS[1], record[1]);
+        assertEquals(SPS[2], record[2]);
+        assertEquals(SPS[3], record[3]);
+        assertEquals(SPS.length, ((record[6] & 0xFF) << 8) | (record[7] & 0xFF));
+        for (int i = 0; i < SPS.length; i++) {
+            assertEquals(SPS[i], record[8 + i]);
+        }
+        int pos = 8 + SPS.length;
+        assertEquals(0x01, record[pos]);
+        assertEquals(PPS.length, ((record[pos + 1] & 0xFF) << 8) | (record[pos + 2] & 0xFF));
+        for (int i = 0; i < PPS.length; i++) {
+            assertEquals(PPS[i], record[pos + 3 + i]);
+        }
+    }
+
+    @Test
+    public void fourByteStartCodes() {
+        byte[] startCode = {0, 0, 0, 1};
+        assertRecord(Packager.H264Packager.generateAVCDecoderConfigurationRecord(wrap(startCode, SPS), wrap(startCode, PPS)));
+    }
+
+    @Test
+    public void threeByteStartCodesDoNotMoveCsd() {
+        byte[] startCode = {0, 0, 1};
+        ByteBuffer csd0 = wrap(startCode, SPS);
+        ByteBuffer csd1 = wrap(startCode, PPS);
+        assertRecord(Packager.H264Packager.generateAVCDecoderConfigurationRecord(csd0, csd1));
+        assertEquals(0, csd0.position());
+        assertEquals(0, csd1.position());
+    }
+
+    @Test
+    public void spsAndPpsInCsd0() {
+        ByteBuffer csd0 = ByteBuffer.allocate(4 + SPS.length + 3 + PPS.length);
+        csd0.put(new byte[]{0, 0, 0, 1}).put(SPS).put(new byte[]{0, 0, 1}).put(PPS).flip();
+        assertRecord(Packager.H264Packager.generateAVCDecoderConfigurationRecord(csd0, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingPps() {
+        Packager.H264Packager.generateAVCDecoderConfigurationRecord(wrap(new byte[]{0, 0, 0, 1}, SPS), null);
+    }
+}